@@ -5,6 +5,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.Hashtable;
 import java.util.Properties;
 import java.util.StringTokenizer;
@@ -13,6 +22,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.runjva.sourceforge.jsocks.protocol.InetRange;
+import com.runjva.sourceforge.jsocks.protocol.ProxyListener;
 import com.runjva.sourceforge.jsocks.protocol.ProxyServer;
 import com.runjva.sourceforge.jsocks.protocol.SocksProxyBase;
 import com.runjva.sourceforge.jsocks.server.IdentAuthenticator;
@@ -58,6 +68,7 @@ public class SOCKS {
         usage();
         return;
       }
+      configFileName = DEFAULT_CONFIG_FILE;
     }
 
 
@@ -98,9 +109,121 @@ public class SOCKS {
     // config
     serverInit(server, properties);
     proxyInit(server, properties);
+    if (!addListeners(server, properties)) {
+      return;
+    }
+    watchConfig(server, configFileName);
+
+    final int drainTimeout = readInt(properties, "drainTimeout");
+    if (drainTimeout >= 0) {
+      inform("Draining sessions for up to " + drainTimeout + " ms on shutdown.");
+      Runtime.getRuntime().addShutdownHook(new Thread("SOCKS-drain") {
+        @Override
+        public void run() {
+          try {
+            server.drain(drainTimeout);
+          }
+          catch (final InterruptedException e) {
+            server.stop();
+          }
+        }
+      });
+    }
+
+    // start, on the listener of the supervisor if there is one
+    final ServerSocketChannel inherited = inheritedListener();
+    if (inherited != null) {
+      server.start(inherited);
+    }
+    else {
+      server.start(port, 5, localIP);
+    }
+  }
+
+  /**
+   * The listening socket passed in by a supervisor, like inetd or systemd
+   * with StandardInput=socket, or null if there is none.
+   */
+  private static ServerSocketChannel inheritedListener() {
+    try {
+      final Channel channel = System.inheritedChannel();
+      if (channel instanceof ServerSocketChannel) {
+        inform("Using inherited listener " + ((ServerSocketChannel) channel).getLocalAddress());
+        return (ServerSocketChannel) channel;
+      }
+      if (channel != null) {
+        log.warn("Ignoring inherited channel {}, it is not a listening socket", channel);
+      }
+    }
+    catch (final IOException ioe) {
+      log.warn("Can't get inherited channel", ioe);
+    }
+    return null;
+  }
 
-    // start
-    server.start(port, 5, localIP);
+  /**
+   * Reloads the configuration whenever the file changes. Port and host only
+   * apply on restart, sessions already running keep their settings.
+   */
+  private static void watchConfig(final ProxyServer server, final String fileName) {
+    final Path file = Paths.get(fileName).toAbsolutePath();
+    final WatchService watcher;
+    try {
+      watcher = FileSystems.getDefault().newWatchService();
+      file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+    catch (final IOException ioe) {
+      log.warn("Can't watch {}, changes need a restart", file, ioe);
+      return;
+    }
+    final Thread thread = new Thread("SOCKS-config") {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            final WatchKey key = watcher.take();
+            boolean changed = false;
+            for (final WatchEvent<?> event : key.pollEvents()) {
+              changed |= file.getFileName().equals(event.context());
+            }
+            key.reset();
+            if (changed) {
+              reload(server, file.toString());
+            }
+          }
+        }
+        catch (final InterruptedException e) {
+          log.debug("Stopped watching {}", file);
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void reload(final ProxyServer server, final String fileName) {
+    final Properties properties = loadProperties(fileName);
+    if (properties == null) {
+      log.warn("Can't reload {}, keeping the current configuration", fileName);
+      return;
+    }
+    final IdentAuthenticator auth = new IdentAuthenticator();
+    if (!addAuth(auth, properties)) {
+      log.error("Error auth info(range, user) in config file {}, keeping the current configuration", fileName);
+      return;
+    }
+    server.reconfigure(new Runnable() {
+      @Override
+      public void run() {
+        server.setAuthenticator(auth);
+        // Settings removed from the file are back to their defaults.
+        server.resetSettings();
+        serverInit(server, properties);
+        proxyInit(server, properties);
+      }
+    });
+    inform("Reloaded " + fileName + ", using Ident Authentication scheme: " + auth);
   }
 
   private static Properties loadProperties(String file_name) {
@@ -166,12 +289,38 @@ public class SOCKS {
       proxyServer.setUDPTimeout(val);
       inform("Setting udp timeout to " + val + " ms.");
     }
+    val = readInt(props, "handshakeTimeout");
+    if (val >= 0) {
+      proxyServer.setHandshakeTimeout(val);
+      inform("Setting handshake timeout to " + val + " ms.");
+    }
 
     val = readInt(props, "datagramSize");
     if (val >= 0) {
       proxyServer.setDatagramSize(val);
       inform("Setting datagram size to " + val + " bytes.");
     }
+
+    final int maxSessions = readInt(props, "maxSessions");
+    final int sessionWatermark = readInt(props, "sessionWatermark");
+    final int maxHandshakes = readInt(props, "maxHandshakes");
+    if (maxSessions >= 0 || sessionWatermark >= 0 || maxHandshakes >= 0) {
+      proxyServer.setSessionLimits(Math.max(0, maxSessions), Math.max(0, sessionWatermark),
+          Math.max(0, maxHandshakes));
+      inform("Setting session limits to " + maxSessions + " sessions, watermark " + sessionWatermark
+          + ", " + maxHandshakes + " handshakes.");
+    }
+
+    final int shedTargetDelay = readInt(props, "shedTargetDelay");
+    final int shedInterval = readInt(props, "shedInterval");
+    if (shedTargetDelay >= 0 && shedInterval >= 0) {
+      proxyServer.setLoadShedding(shedTargetDelay, shedInterval);
+      inform("Setting load shedding to " + shedTargetDelay + " ms target delay, " + shedInterval
+          + " ms interval.");
+    }
+    else if (shedTargetDelay >= 0 || shedInterval >= 0) {
+      log.warn("Load shedding needs both shedTargetDelay and shedInterval, keeping the default");
+    }
   }
 
   /**
@@ -234,6 +383,41 @@ public class SOCKS {
     return irange;
   }
 
+  /**
+   * Adds a listener for every host:port of the listen property, IPv6
+   * addresses in brackets.
+   */
+  private static boolean addListeners(ProxyServer server, Properties props) {
+    final String val = (String) props.get("listen");
+    if (val == null) {
+      return true;
+    }
+    final StringTokenizer st = new StringTokenizer(val, " \t,");
+    while (st.hasMoreTokens()) {
+      final String listen = st.nextToken();
+      final int colon = listen.lastIndexOf(':');
+      String host = colon < 0 ? "" : listen.substring(0, colon);
+      if (host.startsWith("[") && host.endsWith("]")) {
+        host = host.substring(1, host.length() - 1);
+      }
+      try {
+        final InetAddress ip = host.length() == 0 ? null : InetAddress.getByName(host);
+        final int listenPort = Integer.parseInt(listen.substring(colon + 1));
+        server.addListener(new ProxyListener(listenPort, 5, ip));
+        inform("Listening on " + listen + " as well.");
+      }
+      catch (final NumberFormatException nfe) {
+        log.error("Can't parse listen port: " + listen);
+        return false;
+      }
+      catch (final UnknownHostException uhe) {
+        log.error("Can't resolve listen address: " + listen);
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Integer representaion of the property named name, or -1 if one is not
    * found.
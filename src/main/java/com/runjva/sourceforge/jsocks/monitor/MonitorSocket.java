@@ -9,6 +9,7 @@ import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +24,8 @@ public final class MonitorSocket extends Socket {
   private final Socket socket;
   private final InputStream inputStream;
   private final OutputStream outputStream;
+  private final AtomicLong channelInput = new AtomicLong();
+  private final AtomicLong channelOutput = new AtomicLong();
   private long runTime;
 
   public MonitorSocket(final ProxyMonitor monitor, final ProxyMonitor.StreamEndpoint type, final String user,
@@ -224,9 +227,13 @@ public final class MonitorSocket extends Socket {
     return socket.getTcpNoDelay();
   }
 
+  /**
+   * Returns the channel of the wrapped socket, if any. Bytes transferred through the channel bypass the monitored
+   * streams and must be reported with {@link #countChannelBytes(ProxyMonitor.StreamDirection, long)}.
+   */
   @Override
   public SocketChannel getChannel() {
-    throw new UnsupportedOperationException();
+    return socket.getChannel();
   }
 
   @Override
@@ -249,8 +256,23 @@ public final class MonitorSocket extends Socket {
     socket.setTrafficClass(tc);
   }
 
+  /**
+   * Record bytes which were transferred through the socket channel rather than the streams, they are included in the
+   * totals reported when the socket is closed.
+   */
+  public void countChannelBytes(final ProxyMonitor.StreamDirection direction, final long bytes) {
+    if (ProxyMonitor.StreamDirection.INPUT == direction) {
+      channelInput.addAndGet(bytes);
+    }
+    else {
+      channelOutput.addAndGet(bytes);
+    }
+  }
+
   public void accountFor(final ProxyMonitor.StreamDirection direction, final long bytes) {
     final long time = 0 == runTime ? System.nanoTime() - startTime : runTime;
-    monitor.accountFor(type, direction, getRemoteSocketAddress(), user, bytes, time);
+    final long channelBytes =
+        ProxyMonitor.StreamDirection.INPUT == direction ? channelInput.get() : channelOutput.get();
+    monitor.accountFor(type, direction, getRemoteSocketAddress(), user, bytes + channelBytes, time);
   }
 }
@@ -0,0 +1,114 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loop accepting connections on one or more non blocking server channels.
+ * <p/>
+ * Several acceptor loops may share the same server channels, each of them
+ * waits on its own selector and the loop which wins the race for a pending
+ * connection hands it over to the {@link AcceptHandler} of its channel.
+ */
+class AcceptorLoop implements Runnable {
+  private static final Logger log = LoggerFactory.getLogger(AcceptorLoop.class);
+
+  /**
+   * Receives the connections accepted by an acceptor loop.
+   */
+  interface AcceptHandler {
+    void accepted(SocketChannel channel);
+  }
+
+  private final Selector selector;
+  private volatile boolean running = true;
+  private final CountDownLatch stopped = new CountDownLatch(1);
+
+  AcceptorLoop() throws IOException {
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Accept on another server channel as well, before the loop runs.
+   */
+  void add(final ServerSocketChannel serverChannel, final AcceptHandler handler) throws IOException {
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT, handler);
+  }
+
+  /**
+   * Stop accepting connections.
+   */
+  void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  /**
+   * Wait for the loop to hand over the last connection it accepted.
+   *
+   * @return false if the loop did not stop in time.
+   */
+  boolean awaitStopped(final long timeout) throws InterruptedException {
+    return stopped.await(timeout, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Accepts connections until shut down or all server channels are closed.
+   */
+  @Override
+  public void run() {
+    try {
+      // Keys of closed channels are dropped by the next select.
+      while (running && !selector.keys().isEmpty()) {
+        selector.select();
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (running && keys.hasNext()) {
+          final SelectionKey key = keys.next();
+          keys.remove();
+          accept((ServerSocketChannel) key.channel(), (AcceptHandler) key.attachment());
+        }
+      }
+    }
+    catch (final IOException e) {
+      log.error("Acceptor selector failed", e);
+    }
+    finally {
+      try {
+        selector.close();
+      }
+      catch (final IOException e) {
+        log.warn("Exception closing selector", e);
+      }
+      stopped.countDown();
+      log.info("Acceptor loop stopped");
+    }
+  }
+
+  // Private methods
+  // ///////////////
+
+  private void accept(final ServerSocketChannel serverChannel, final AcceptHandler handler) {
+    try {
+      SocketChannel channel;
+      while (running && null != (channel = serverChannel.accept())) {
+        handler.accepted(channel);
+      }
+    }
+    catch (final IOException e) {
+      if (serverChannel.isOpen()) {
+        // Most likely out of file descriptors, keep the listener alive.
+        log.warn("Accept failed", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One line per session, written when the session ends.
+ * <p/>
+ * Clients are identified by their numeric address. The host name is looked
+ * up in the background when the session starts and added to the line if the
+ * lookup finished by the time the session ends. The lines go to the logger of
+ * this class, so they can be routed to a file of their own.
+ */
+class AccessLog {
+  private static final Logger log = LoggerFactory.getLogger(AccessLog.class);
+
+  private final HostNameCache names;
+
+  /**
+   * @param names
+   *     Host names of clients, or null to log numeric addresses only.
+   */
+  AccessLog(final HostNameCache names) {
+    this.names = names;
+  }
+
+  /**
+   * Starts the record of an accepted connection.
+   */
+  Record open(final Socket client) {
+    final InetAddress address = client.getInetAddress();
+    if (null != names && null != address) {
+      names.resolve(address);
+    }
+    return new Record(address, client.getPort());
+  }
+
+  /**
+   * What is known about a session so far.
+   */
+  final class Record {
+    private final InetAddress address;
+    private final int port;
+    private final long started = System.currentTimeMillis();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile String user;
+    private volatile String request;
+    private volatile long bytesUp = -1;
+    private volatile long bytesDown = -1;
+    private volatile long earlyBytes;
+
+    private Record(final InetAddress address, final int port) {
+      this.address = address;
+      this.port = port;
+    }
+
+    void setRequest(final ProxyMessage msg, final String user) {
+      this.user = user;
+      this.request = ProxyServerRunnable.command2String(msg.command) + " "
+          + (null == msg.getHost() ? "-" : msg.getHost()) + ":" + msg.port;
+    }
+
+    void setBytes(final long up, final long down) {
+      bytesUp = up;
+      bytesDown = down;
+    }
+
+    /**
+     * Client data forwarded before the relay started, which the relay does
+     * not count.
+     */
+    void setEarlyBytes(final long early) {
+      earlyBytes = early;
+    }
+
+    /**
+     * Writes the line, only the first call has an effect.
+     */
+    void close() {
+      if (!closed.compareAndSet(false, true) || !log.isInfoEnabled()) {
+        return;
+      }
+      final String name = null == names || null == address ? null : names.getIfResolved(address);
+      log.info("{}:{} {} {} \"{}\" {} ms {} {}", null == address ? "-" : address.getHostAddress(), port,
+          null == name ? "-" : name, null == user ? "-" : user, null == request ? "-" : request,
+          System.currentTimeMillis() - started, bytesUp < 0 ? "-" : bytesUp + earlyBytes, bytesDown < 0 ? "-" : bytesDown);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses the relay buffer size of one tunnel direction from the observed
+ * reads.
+ * <p/>
+ * A read filling the whole buffer while data keeps arriving grows the buffer
+ * to the next size. Two reads in a row which would have fit into a buffer of
+ * half the size shrink it, and so does a read after a pause, which is typical
+ * for interactive sessions. Not thread safe, each direction has its own sizer.
+ */
+class AdaptiveBufferSizer {
+  private static final Logger log = LoggerFactory.getLogger(AdaptiveBufferSizer.class);
+
+  /**
+   * Reads further apart than this are considered interactive traffic.
+   */
+  static final long PAUSE_MILLIS = 1000;
+
+  private final BufferSizing sizing;
+  private int index;
+  private long reserved;
+  private boolean shrinkNext;
+  private long lastReadTime;
+
+  AdaptiveBufferSizer(final BufferSizing sizing) {
+    this.sizing = sizing;
+    this.index = sizing.getInitialIndex();
+    this.lastReadTime = System.currentTimeMillis();
+    sizing.sizeChanged(-1, index);
+  }
+
+  /**
+   * Current buffer size.
+   */
+  int getSize() {
+    return BufferSizing.SIZES[index];
+  }
+
+  /**
+   * Records a read of the given number of bytes into a buffer of the current
+   * size.
+   *
+   * @return true if the buffer size changed.
+   */
+  boolean record(final int bytesRead, final long now) {
+    final boolean paused = now - lastReadTime >= PAUSE_MILLIS;
+    lastReadTime = now;
+
+    if (bytesRead >= getSize()) {
+      shrinkNext = false;
+      return !paused && resize(index + 1);
+    }
+    if (index > sizing.getMinIndex() && bytesRead <= BufferSizing.SIZES[index - 1] / 2) {
+      if (shrinkNext || paused) {
+        shrinkNext = false;
+        return resize(index - 1);
+      }
+      shrinkNext = true;
+    }
+    else {
+      shrinkNext = false;
+    }
+    return false;
+  }
+
+  /**
+   * Sets the receive buffer of the socket read from and the send buffer of
+   * the socket written to the current size, if the limits ask for it.
+   */
+  void tuneSockets(final Socket from, final Socket to) {
+    if (!sizing.isTuneSocketBuffers()) {
+      return;
+    }
+    try {
+      from.setReceiveBufferSize(getSize());
+      to.setSendBufferSize(getSize());
+    }
+    catch (final SocketException e) {
+      log.debug("Can't set socket buffer sizes", e);
+    }
+  }
+
+  /**
+   * Gives back any memory reserved for this sizer, must be called once the
+   * tunnel direction is finished.
+   */
+  void close() {
+    sizing.sizeChanged(index, -1);
+    sizing.release(reserved);
+    reserved = 0;
+  }
+
+  private boolean resize(final int newIndex) {
+    if (newIndex > sizing.getMaxIndex() || newIndex < sizing.getMinIndex()) {
+      return false;
+    }
+    final long initial = BufferSizing.SIZES[sizing.getInitialIndex()];
+    final long needed = Math.max(0, BufferSizing.SIZES[newIndex] - initial);
+    if (needed > reserved) {
+      if (!sizing.reserve(needed - reserved)) {
+        return false;
+      }
+    }
+    else {
+      sizing.release(reserved - needed);
+    }
+    reserved = needed;
+    sizing.sizeChanged(index, newIndex);
+    index = newIndex;
+    return true;
+  }
+}
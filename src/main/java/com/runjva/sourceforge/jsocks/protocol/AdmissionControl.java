@@ -0,0 +1,329 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admission control of the sessions of a proxy server.
+ * <p/>
+ * Connections beyond the session or handshake limit are closed right after
+ * accept, before any thread is spent on them. Sessions accepted above the
+ * soft watermark, or whose handshake waited too long for a thread, are
+ * rejected with a failure reply instead of being served. The queue delay
+ * shedding follows CoDel: once the delay stayed above the target for a whole
+ * interval, handshakes are shed at an increasing rate until the delay drops
+ * below the target again. Established tunnels are never shed.
+ * <p/>
+ * A listener with limits of its own has an admission control whose parent is
+ * the one of the server. A session must pass both, and is counted by both.
+ * Shedding is decided by the parent only.
+ */
+class AdmissionControl {
+  private static final Logger log = LoggerFactory.getLogger(AdmissionControl.class);
+
+  static final int DEFAULT_TARGET_DELAY = 100;
+  static final int DEFAULT_INTERVAL = 1000;
+  static final int DEFAULT_HANDSHAKE_TIMEOUT = 30000;
+
+  private volatile int maxSessions;
+  private volatile int maxHandshakes;
+  private volatile int sessionWatermark;
+  private volatile long targetDelay = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TARGET_DELAY);
+  private volatile long interval = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INTERVAL);
+
+  private final AdmissionControl parent;
+  private final AtomicInteger sessions = new AtomicInteger();
+  private final AtomicInteger handshakes = new AtomicInteger();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong shed = new AtomicLong();
+  private final AtomicLong handshakeTimeouts = new AtomicLong();
+  private final LatencyHistogram handshakeTimes = new LatencyHistogram();
+
+  // Replaced as a whole, so every handshake start reads it without a lock.
+  private final AtomicReference<CoDel> codel = new AtomicReference<CoDel>(CoDel.IDLE);
+
+  AdmissionControl() {
+    this(null);
+  }
+
+  /**
+   * @param parent
+   *     Admission control every session must pass as well, or null.
+   */
+  AdmissionControl(final AdmissionControl parent) {
+    this.parent = parent;
+    if (null != parent) {
+      targetDelay = 0;
+    }
+  }
+
+  /**
+   * @param maxSessions
+   *     Sessions, handshaking or relaying, at most, zero means unlimited.
+   * @param sessionWatermark
+   *     Sessions above which new ones get a failure reply, zero means none.
+   * @param maxHandshakes
+   *     Handshakes in progress at most, zero means unlimited.
+   */
+  void setLimits(final int maxSessions, final int sessionWatermark, final int maxHandshakes) {
+    this.maxSessions = maxSessions;
+    this.sessionWatermark = sessionWatermark;
+    this.maxHandshakes = maxHandshakes;
+  }
+
+  /**
+   * @param targetDelay
+   *     Acceptable queue delay of handshakes in milliseconds, zero turns
+   *     shedding off.
+   * @param interval
+   *     How long in milliseconds the delay may stay above the target before
+   *     handshakes are shed.
+   */
+  void setShedding(final int targetDelay, final int interval) {
+    this.targetDelay = TimeUnit.MILLISECONDS.toNanos(targetDelay);
+    this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+  }
+
+  /**
+   * Called right after accept, a session admitted must be ended with
+   * {@link #sessionEnded()} and its handshake with {@link #handshakeEnded()}.
+   *
+   * @return false if the connection is to be closed right away.
+   */
+  boolean tryAdmit() {
+    if (!acquire(sessions, maxSessions)) {
+      rejected.incrementAndGet();
+      return false;
+    }
+    if (!acquire(handshakes, maxHandshakes)) {
+      sessions.decrementAndGet();
+      rejected.incrementAndGet();
+      return false;
+    }
+    if (null != parent && !parent.tryAdmit()) {
+      handshakes.decrementAndGet();
+      sessions.decrementAndGet();
+      rejected.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Called when the handshake of an admitted session starts running.
+   *
+   * @param acceptedAt
+   *     {@link System#nanoTime()} when the connection was accepted.
+   * @return false if the session is to be rejected with a failure reply.
+   */
+  boolean handshakeStarted(final long acceptedAt) {
+    if (null != parent && !parent.handshakeStarted(acceptedAt)) {
+      return false;
+    }
+    final int watermark = sessionWatermark;
+    final long now = System.nanoTime();
+    if ((0 != watermark && sessions.get() > watermark) || shouldShed(now - acceptedAt, now)) {
+      shed.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  void handshakeEnded() {
+    handshakes.decrementAndGet();
+    if (null != parent) {
+      parent.handshakeEnded();
+    }
+  }
+
+  /**
+   * Record the time from accept until the request was read.
+   */
+  void requestRead(final long acceptedAt) {
+    handshakeTimes.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - acceptedAt));
+    if (null != parent) {
+      parent.requestRead(acceptedAt);
+    }
+  }
+
+  void handshakeTimedOut() {
+    handshakeTimeouts.incrementAndGet();
+    if (null != parent) {
+      parent.handshakeTimedOut();
+    }
+  }
+
+  void sessionEnded() {
+    sessions.decrementAndGet();
+    if (null != parent) {
+      parent.sessionEnded();
+    }
+  }
+
+  int getSessions() {
+    return sessions.get();
+  }
+
+  int getHandshakes() {
+    return handshakes.get();
+  }
+
+  long getRejected() {
+    return rejected.get();
+  }
+
+  long getShed() {
+    return shed.get();
+  }
+
+  long getHandshakeTimeouts() {
+    return handshakeTimeouts.get();
+  }
+
+  /**
+   * @see LatencyHistogram#getPercentile(double)
+   */
+  long getHandshakeTime(final double percentile) {
+    return handshakeTimes.getPercentile(percentile);
+  }
+
+  /**
+   * Answer the greeting of a rejected client with a failure, if it has
+   * arrived already. Never blocks, a client that sent nothing yet is just
+   * closed by the caller.
+   */
+  static void reject(final Socket socket) {
+    try {
+      final InputStream in = socket.getInputStream();
+      if (0 == in.available()) {
+        return;
+      }
+      final int version = in.read();
+      if (5 == version) {
+        // No acceptable authentication method.
+        socket.getOutputStream().write(new byte[] { 5, (byte) 0xFF });
+      }
+      else if (4 == version) {
+        new Socks4Message(Socks4Message.REPLY_REJECTED).write(socket.getOutputStream());
+      }
+    }
+    catch (final IOException e) {
+      log.debug("Exception rejecting {}", socket, e);
+    }
+  }
+
+  /**
+   * Make closing the socket reset the connection, so a client that timed out
+   * costs no TIME_WAIT state.
+   */
+  static void resetOnClose(final Socket socket) {
+    try {
+      socket.setSoLinger(true, 0);
+    }
+    catch (final IOException e) {
+      log.debug("Exception setting linger of {}", socket, e);
+    }
+  }
+
+  // Private methods
+  // ///////////////
+
+  private static boolean acquire(final AtomicInteger counter, final int max) {
+    if (counter.incrementAndGet() > max && 0 != max) {
+      counter.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Runs CoDel on the queue delay of a handshake. While the delay stays
+   * below the target the state is only read, otherwise the new state is
+   * swapped in, and computed again if another thread was faster.
+   */
+  private boolean shouldShed(final long delay, final long now) {
+    if (0 == targetDelay) {
+      return false;
+    }
+    while (true) {
+      final CoDel state = codel.get();
+      long firstAboveTime = state.firstAboveTime;
+      long dropNext = state.dropNext;
+      int dropCount = state.dropCount;
+      boolean dropping = state.dropping;
+      boolean shedding = false;
+
+      final boolean above;
+      if (delay < targetDelay) {
+        firstAboveTime = 0;
+        above = false;
+      }
+      else if (0 == firstAboveTime) {
+        firstAboveTime = now + interval;
+        above = false;
+      }
+      else {
+        above = now - firstAboveTime >= 0;
+      }
+
+      if (dropping) {
+        if (!above) {
+          dropping = false;
+        }
+        else if (now - dropNext >= 0) {
+          dropCount++;
+          dropNext = controlLaw(dropNext, dropCount);
+          shedding = true;
+        }
+      }
+      else if (above) {
+        dropping = true;
+        // Resume near the previous rate if shedding stopped only shortly ago.
+        dropCount = dropCount > 2 && now - dropNext < 8 * interval ? dropCount - 2 : 1;
+        dropNext = controlLaw(now, dropCount);
+        shedding = true;
+      }
+
+      if (state.sameAs(firstAboveTime, dropNext, dropCount, dropping)
+          || codel.compareAndSet(state, new CoDel(firstAboveTime, dropNext, dropCount, dropping))) {
+        return shedding;
+      }
+    }
+  }
+
+  private long controlLaw(final long t, final int dropCount) {
+    return t + (long) (interval / Math.sqrt(dropCount));
+  }
+
+  /**
+   * Immutable CoDel state.
+   */
+  private static final class CoDel {
+    static final CoDel IDLE = new CoDel(0, 0, 0, false);
+
+    private final long firstAboveTime;
+    private final long dropNext;
+    private final int dropCount;
+    private final boolean dropping;
+
+    CoDel(final long firstAboveTime, final long dropNext, final int dropCount, final boolean dropping) {
+      this.firstAboveTime = firstAboveTime;
+      this.dropNext = dropNext;
+      this.dropCount = dropCount;
+      this.dropping = dropping;
+    }
+
+    boolean sameAs(final long firstAboveTime, final long dropNext, final int dropCount, final boolean dropping) {
+      return this.firstAboveTime == firstAboveTime && this.dropNext == dropNext && this.dropCount == dropCount
+          && this.dropping == dropping;
+    }
+  }
+}
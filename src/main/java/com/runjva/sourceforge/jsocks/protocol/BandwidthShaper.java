@@ -0,0 +1,78 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Hierarchical token bucket shaping of the relayed bandwidth of a server.
+ * <p/>
+ * Bytes relayed in either direction of a session are taken from up to three
+ * buckets: one of the whole server, one shared by all sessions of the same
+ * user, or of the same client address for anonymous sessions, and one of the
+ * session itself. A session may relay as much as the emptiest of them allows.
+ * The user buckets are dropped once they were idle for a while.
+ */
+class BandwidthShaper {
+  private static final long USER_IDLE_MINUTES = 10;
+
+  private final TokenBucket global;
+  private final long userRate;
+  private final long userBurst;
+  private final long connectionRate;
+  private final long connectionBurst;
+  private final LoadingCache<String, TokenBucket> users;
+
+  /**
+   * Rates are in bytes per second, bursts in bytes. A rate of zero means no
+   * limit on that level.
+   */
+  BandwidthShaper(final long globalRate, final long globalBurst, final long userRate, final long userBurst,
+      final long connectionRate, final long connectionBurst) {
+    checkLimit(globalRate, globalBurst);
+    checkLimit(userRate, userBurst);
+    checkLimit(connectionRate, connectionBurst);
+    this.global = 0 == globalRate ? null : new TokenBucket(globalRate, globalBurst);
+    this.userRate = userRate;
+    this.userBurst = userBurst;
+    this.connectionRate = connectionRate;
+    this.connectionBurst = connectionBurst;
+    this.users = CacheBuilder.newBuilder().expireAfterAccess(USER_IDLE_MINUTES, TimeUnit.MINUTES)
+        .build(new CacheLoader<String, TokenBucket>() {
+          @Override
+          public TokenBucket load(final String key) {
+            return new TokenBucket(BandwidthShaper.this.userRate, BandwidthShaper.this.userBurst);
+          }
+        });
+  }
+
+  /**
+   * Create the throttle of a new session.
+   *
+   * @param user
+   *     Authenticated user of the session, or null if anonymous.
+   * @param client
+   *     Address of the client.
+   * @return The throttle, or null if no level is limited.
+   */
+  Throttle newThrottle(final String user, final InetAddress client) {
+    final TokenBucket connection = 0 == connectionRate ? null : new TokenBucket(connectionRate, connectionBurst);
+    TokenBucket shared = null;
+    if (0 != userRate) {
+      shared = users.getUnchecked(null != user ? "user:" + user : "address:" + client.getHostAddress());
+    }
+    if (null == connection && null == shared && null == global) {
+      return null;
+    }
+    return new Throttle(connection, shared, global);
+  }
+
+  private static void checkLimit(final long rate, final long burst) {
+    if (rate < 0 || (0 != rate && burst <= 0)) {
+      throw new IllegalArgumentException("Invalid rate " + rate + " or burst " + burst);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded pool of direct buffers owned by a single {@link RelayEventLoop}.
+ * <p/>
+ * The pool is confined to the thread of its loop, so it needs no locking.
+ * There is one pool for every size of {@link BufferSizing#SIZES}. Buffers are
+ * allocated on demand, once released they are kept for reuse as long as all
+ * the buffers kept stay within maxPooledBytes, any further ones are left to
+ * the garbage collector.
+ * <p/>
+ * The buffers kept count against the {@link RelayMemoryBudget} of the tunnel
+ * which released the last of them, and are not kept while it is exhausted.
+ */
+class BufferPool {
+  static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+  private final long maxPooledBytes;
+  private final ArrayDeque<ByteBuffer>[] pools;
+  private int allocated;
+  private long pooledBytes;
+  private RelayMemoryBudget budget;
+
+  @SuppressWarnings("unchecked")
+  BufferPool(final long maxPooledBytes) {
+    this.maxPooledBytes = maxPooledBytes;
+    this.pools = new ArrayDeque[BufferSizing.SIZES.length];
+    for (int i = 0; i < pools.length; i++) {
+      pools[i] = new ArrayDeque<ByteBuffer>();
+    }
+  }
+
+  /**
+   * Get a cleared buffer of the given size, reusing a pooled one if there is
+   * any.
+   *
+   * @param size
+   *     One of {@link BufferSizing#SIZES}.
+   */
+  ByteBuffer acquire(final int size) {
+    final ByteBuffer buffer = pools[BufferSizing.indexOf(size)].pollFirst();
+    if (null != buffer) {
+      pooledBytes -= size;
+      budget.unpool(size);
+      return buffer;
+    }
+    allocated++;
+    return ByteBuffer.allocateDirect(size);
+  }
+
+  /**
+   * Give a buffer back to the pool, it must not be used afterwards.
+   *
+   * @param budget
+   *     Budget of the tunnel releasing the buffer, charged with it if kept.
+   */
+  void release(final ByteBuffer buffer, final RelayMemoryBudget budget) {
+    if (budget != this.budget) {
+      // The settings changed, the buffers kept count against the new budget.
+      if (null != this.budget) {
+        this.budget.unpool(pooledBytes);
+      }
+      budget.pool(pooledBytes);
+      this.budget = budget;
+    }
+    final int size = buffer.capacity();
+    if (pooledBytes + size > maxPooledBytes || budget.isExhausted()) {
+      return;
+    }
+    buffer.clear();
+    pools[BufferSizing.indexOf(size)].addFirst(buffer);
+    pooledBytes += size;
+    budget.pool(size);
+  }
+
+  /**
+   * Number of buffers this pool has allocated so far.
+   */
+  int getAllocated() {
+    return allocated;
+  }
+
+  /**
+   * Number of buffers currently waiting for reuse.
+   */
+  int getPooled() {
+    int pooled = 0;
+    for (final ArrayDeque<ByteBuffer> pool : pools) {
+      pooled += pool.size();
+    }
+    return pooled;
+  }
+}
@@ -0,0 +1,125 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Limits for adaptive relay buffers, shared by all tunnels of a server.
+ * <p/>
+ * Buffer sizes are powers of two from {@link #SIZES}. Every tunnel direction
+ * starts with the initial size and may grow up to the maximum, as long as the
+ * memory of all buffers grown beyond the initial size stays within the global
+ * limit.
+ */
+class BufferSizing {
+  static final int[] SIZES = { 1024, 2048, 4096, 8192, 16384, 32768, 65536, 131072 };
+  static final int DEFAULT_MIN = 1024;
+  static final int DEFAULT_INITIAL = 8192;
+  static final int DEFAULT_MAX = 131072;
+  static final long DEFAULT_MAX_GROWN_BYTES = 64L * 1024 * 1024;
+
+  private final int minIndex;
+  private final int initialIndex;
+  private final int maxIndex;
+  private final long maxGrownBytes;
+  private final boolean tuneSocketBuffers;
+  private final AtomicLong grownBytes = new AtomicLong();
+  private final AtomicLongArray sizeCounts = new AtomicLongArray(SIZES.length);
+
+  /**
+   * @param min
+   *     Smallest buffer size.
+   * @param initial
+   *     Size of the buffer of a new tunnel.
+   * @param max
+   *     Largest buffer size.
+   * @param maxGrownBytes
+   *     Limit of the memory of all buffers beyond their initial size.
+   * @param tuneSocketBuffers
+   *     Wether SO_RCVBUF and SO_SNDBUF follow the relay buffer size.
+   */
+  BufferSizing(final int min, final int initial, final int max, final long maxGrownBytes,
+      final boolean tuneSocketBuffers) {
+    this.minIndex = indexOf(min);
+    this.initialIndex = indexOf(initial);
+    this.maxIndex = indexOf(max);
+    if (minIndex > initialIndex || initialIndex > maxIndex) {
+      throw new IllegalArgumentException("Need min <= initial <= max, got " + min + ", " + initial + ", " + max);
+    }
+    this.maxGrownBytes = maxGrownBytes;
+    this.tuneSocketBuffers = tuneSocketBuffers;
+  }
+
+  /**
+   * Index of the given size in {@link #SIZES}.
+   *
+   * @throws IllegalArgumentException
+   *     If the size is not one of the supported sizes.
+   */
+  static int indexOf(final int size) {
+    for (int i = 0; i < SIZES.length; i++) {
+      if (SIZES[i] == size) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Unsupported buffer size " + size);
+  }
+
+  AdaptiveBufferSizer newSizer() {
+    return new AdaptiveBufferSizer(this);
+  }
+
+  int getMinIndex() {
+    return minIndex;
+  }
+
+  int getInitialIndex() {
+    return initialIndex;
+  }
+
+  int getMaxIndex() {
+    return maxIndex;
+  }
+
+  boolean isTuneSocketBuffers() {
+    return tuneSocketBuffers;
+  }
+
+  /**
+   * Reserve memory for growing a buffer beyond its initial size.
+   *
+   * @return false if the global limit would be exceeded.
+   */
+  boolean reserve(final long bytes) {
+    while (true) {
+      final long current = grownBytes.get();
+      if (current + bytes > maxGrownBytes) {
+        return false;
+      }
+      if (grownBytes.compareAndSet(current, current + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  void release(final long bytes) {
+    grownBytes.addAndGet(-bytes);
+  }
+
+  void sizeChanged(final int oldIndex, final int newIndex) {
+    if (oldIndex >= 0) {
+      sizeCounts.decrementAndGet(oldIndex);
+    }
+    if (newIndex >= 0) {
+      sizeCounts.incrementAndGet(newIndex);
+    }
+  }
+
+  long getGrownBytes() {
+    return grownBytes.get();
+  }
+
+  long getSizeCount(final int index) {
+    return sizeCounts.get(index);
+  }
+}
@@ -0,0 +1,122 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deficit round robin scheduler of the ready tunnel directions of a
+ * {@link RelayEventLoop}.
+ * <p/>
+ * Instead of relaying in the order the selector reports readiness, ready
+ * directions queue up per {@link SchedulingClass}. Every round each class
+ * with queued directions gets its weight times the quantum in bytes, and
+ * serves directions until that is used up. The cost of a transfer is only
+ * known afterwards, so a class may overdraw and pays for it in the next
+ * round. When the loop cannot keep up, the relayed bytes are thus shared by
+ * weight, and no class waits for more than a round.
+ * <p/>
+ * Confined to the thread of its loop.
+ */
+class DeficitRoundRobin {
+  private static final Logger log = LoggerFactory.getLogger(DeficitRoundRobin.class);
+
+  static final int QUANTUM = 32768;
+  /**
+   * Bytes served before the loop selects again, so newly ready directions
+   * get their turn.
+   */
+  static final int MAX_BYTES_PER_RUN = 1024 * 1024;
+
+  /**
+   * By class name, replacing a class for a new weight creates a new
+   * instance, the tunnels of the old one share its flow.
+   */
+  private final Map<String, Flow> flows = new HashMap<String, Flow>();
+  private final ArrayDeque<Flow> active = new ArrayDeque<Flow>();
+
+  /**
+   * A unit of work queued by the scheduler, like reading and forwarding the
+   * available data of a tunnel direction. A task with more work left
+   * enqueues itself again while it runs, and is served again as long as its
+   * class has deficit left.
+   */
+  abstract static class Task {
+    private long enqueued;
+
+    abstract SchedulingClass getSchedulingClass();
+
+    /**
+     * @return The bytes relayed.
+     */
+    abstract long run();
+  }
+
+  void enqueue(final Task task) {
+    final SchedulingClass schedulingClass = task.getSchedulingClass();
+    Flow flow = flows.get(schedulingClass.getName());
+    if (null == flow) {
+      flow = new Flow();
+      flows.put(schedulingClass.getName(), flow);
+    }
+    // The weight of the class enqueued last, which is the current one once
+    // the new tunnels are served.
+    flow.schedulingClass = schedulingClass;
+    task.enqueued = System.nanoTime();
+    flow.tasks.addLast(task);
+    if (!flow.active) {
+      flow.active = true;
+      active.addLast(flow);
+    }
+  }
+
+  boolean isEmpty() {
+    return active.isEmpty();
+  }
+
+  /**
+   * Serve rounds until the queues are empty or enough was relayed for now.
+   */
+  void run() {
+    long served = 0;
+    while (!active.isEmpty() && served < MAX_BYTES_PER_RUN) {
+      for (int n = active.size(); n > 0; n--) {
+        final Flow flow = active.pollFirst();
+        flow.deficit += (long) QUANTUM * flow.schedulingClass.getWeight();
+        while (flow.deficit > 0 && !flow.tasks.isEmpty()) {
+          final Task task = flow.tasks.pollFirst();
+          final SchedulingClass schedulingClass = task.getSchedulingClass();
+          final long delay = System.nanoTime() - task.enqueued;
+          long bytes = 0;
+          try {
+            bytes = task.run();
+          }
+          catch (final RuntimeException e) {
+            log.warn("Task threw exception", e);
+          }
+          schedulingClass.served(bytes, delay);
+          flow.deficit -= bytes;
+          served += bytes;
+        }
+        if (flow.tasks.isEmpty()) {
+          // An idle class keeps its debt, but saves no credit.
+          flow.deficit = Math.min(0, flow.deficit);
+          flow.active = false;
+        }
+        else {
+          active.addLast(flow);
+        }
+      }
+    }
+  }
+
+  private static final class Flow {
+    private final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+    private SchedulingClass schedulingClass;
+    private long deficit;
+    private boolean active;
+  }
+}
@@ -13,6 +13,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +39,12 @@ public class DnsProxyServer implements Runnable {
   private static final Logger log = LoggerFactory
       .getLogger(DnsProxyServer.class);
   private static final int DEFAULT_POOL_SIZE = 16;
+  private static final ThreadFactory PLATFORM_THREAD_FACTORY = new ThreadFactory() {
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      return new Thread(runnable);
+    }
+  };
   ServerAuthenticator auth;
   ProxyMessage msg = null;
 
@@ -46,25 +54,76 @@ public class DnsProxyServer implements Runnable {
   InputStream in, remote_in;
   OutputStream out, remote_out;
 
-  int mode;
+  volatile int mode;
+  private final AtomicBoolean aborted = new AtomicBoolean();
+  private volatile boolean clientEof;
+  private volatile boolean remoteEof;
   static final int START_MODE = 0;
   static final int ACCEPT_MODE = 1;
   static final int PIPE_MODE = 2;
   static final int ABORT_MODE = 3;
 
-  static final int BUF_SIZE = 8192;
-
-  Thread pipe_thread1, pipe_thread2;
-  long lastReadTime;
+  Thread pipe_thread2;
+  private volatile TimingWheel.Timeout deadline;
+  private TimingWheel.Timeout acceptDeadline;
 
   private int iddleTimeout = 180000; // 3 minutes
   private int acceptTimeout = 180000; // 3 minutes
+  private int handshakeTimeout = AdmissionControl.DEFAULT_HANDSHAKE_TIMEOUT;
   private SocksProxyBase proxy;
+  private int udpTimeout = UDPRelayServer.DEFAULT_TIMEOUT;
+  private int datagramSize = UDPRelayServer.DEFAULT_DATAGRAM_SIZE;
 
   private final DnsResolver dnsResolver;
   private int poolSize = DEFAULT_POOL_SIZE;
   private ExecutorService executor;
+  private ProxyEngine engine = ProxyEngine.BLOCKING;
+  private ThreadFactory threadFactory = PLATFORM_THREAD_FACTORY;
+  private BufferSizing bufferSizing = new BufferSizing(BufferSizing.DEFAULT_MIN, BufferSizing.DEFAULT_INITIAL,
+      BufferSizing.DEFAULT_MAX, BufferSizing.DEFAULT_MAX_GROWN_BYTES, false);
+  private RelayCounters relayCounters = new RelayCounters();
+  private boolean coalesceWrites = false;
+  private final TimingWheel timingWheel;
+  private HappyEyeballsConnector connector;
+  private final AdmissionControl admission;
+  private long acceptedAt;
+  private final AtomicBoolean handshaking = new AtomicBoolean(true);
   private volatile ProxyStatus proxyStatus = ProxyStatus.STOPED;
+  private volatile boolean stopping;
+  private final SessionRegistry sessions;
+  private AccessLog accessLog = new AccessLog(new HostNameCache(HostNameResolver.SYSTEM));
+  private AccessLog.Record accessRecord;
+  private final SessionRegistry.Session session = new SessionRegistry.Session() {
+    @Override
+    public long getLastActivity() {
+      final TimingWheel.Timeout current = deadline;
+      return null == current ? timingWheel.now() : current.getLastTouch();
+    }
+
+    @Override
+    public void close() {
+      log.info("Closing session");
+      abort();
+    }
+  };
+
+  private final Runnable timeoutTask = new Runnable() {
+    @Override
+    public void run() {
+      log.info("Session timed out");
+      abort();
+    }
+  };
+
+  private final Runnable handshakeTimeoutTask = new Runnable() {
+    @Override
+    public void run() {
+      log.info("Handshake timed out");
+      admission.handshakeTimedOut();
+      AdmissionControl.resetOnClose(sock);
+      abort();
+    }
+  };
 
   // Public Constructors
   // ///////////////////
@@ -79,17 +138,44 @@ public class DnsProxyServer implements Runnable {
       DnsResolver dnsResolver) {
     this.auth = auth;
     this.dnsResolver = dnsResolver;
+    this.timingWheel = new TimingWheel();
+    this.connector = new HappyEyeballsConnector(
+        HappyEyeballsConnector.DEFAULT_CONNECT_TIMEOUT,
+        HappyEyeballsConnector.DEFAULT_ATTEMPT_DELAY,
+        new RttTable(RttTable.DEFAULT_MAX_ADDRESSES));
+    this.admission = new AdmissionControl();
+    this.sessions = new SessionRegistry();
   }
 
   // Other constructors
   // //////////////////
 
-  DnsProxyServer(final ServerAuthenticator auth, final Socket s,
-      DnsResolver dnsResolver) {
-    this.auth = auth;
+  /**
+   * Creates the session of an accepted connection, with the settings of the
+   * given server.
+   */
+  DnsProxyServer(final DnsProxyServer server, final Socket s) {
+    this.auth = server.auth;
     this.sock = s;
     this.mode = START_MODE;
-    this.dnsResolver = dnsResolver;
+    this.dnsResolver = server.dnsResolver;
+    this.threadFactory = server.threadFactory;
+    this.bufferSizing = server.bufferSizing;
+    this.relayCounters = server.relayCounters;
+    this.coalesceWrites = server.coalesceWrites;
+    this.timingWheel = server.timingWheel;
+    this.connector = server.connector;
+    this.admission = server.admission;
+    this.sessions = server.sessions;
+    this.acceptedAt = System.nanoTime();
+    this.iddleTimeout = server.iddleTimeout;
+    this.acceptTimeout = server.acceptTimeout;
+    this.handshakeTimeout = server.handshakeTimeout;
+    this.proxy = server.proxy;
+    this.udpTimeout = server.udpTimeout;
+    this.datagramSize = server.datagramSize;
+    this.accessLog = server.accessLog;
+    this.accessRecord = accessLog.open(s);
   }
 
   // Public methods
@@ -99,6 +185,78 @@ public class DnsProxyServer implements Runnable {
     this.poolSize = poolSize;
   }
 
+  /**
+   * Sets the engine used to run sessions, BLOCKING runs them on a fixed pool
+   * of poolSize threads and VIRTUAL_THREAD runs every session and both of its
+   * directions on virtual threads. SELECTOR is not supported by this server.
+   * <br>
+   * Must be called before the server is started. Default engine is BLOCKING.
+   */
+  public void setEngine(final ProxyEngine engine) {
+    if (ProxyEngine.SELECTOR == engine) {
+      throw new IllegalArgumentException("DnsProxyServer does not support " + engine);
+    }
+    this.engine = engine;
+  }
+
+  /**
+   * Sets the sizes of the relay buffers and how much memory all of them may
+   * use beyond the initial size, see
+   * {@link ProxyServer#setBufferSizes(int, int, int)}.<br>
+   * Must be called before the server is started.
+   */
+  public void setBufferSizes(final int min, final int initial, final int max,
+      final long maxGrownBufferMemory) {
+    bufferSizing = new BufferSizing(min, initial, max, maxGrownBufferMemory,
+        false);
+  }
+
+  /**
+   * Sets wether relayed data already available is gathered into a single
+   * write, see {@link ProxyServer#setCoalesceWrites(boolean)}.<br>
+   * Must be called before the server is started.
+   */
+  public void setCoalesceWrites(final boolean coalesceWrites) {
+    this.coalesceWrites = coalesceWrites;
+  }
+
+  /**
+   * Sets the timeout for connecting to the remote host of a CONNECT request,
+   * zero timeout implies infinity, see
+   * {@link ProxyServer#setConnectTimeout(int)}.<br>
+   * Must be called before the server is started.
+   */
+  public void setConnectTimeout(final int timeout) {
+    connector = new HappyEyeballsConnector(timeout,
+        HappyEyeballsConnector.DEFAULT_ATTEMPT_DELAY,
+        new RttTable(RttTable.DEFAULT_MAX_ADDRESSES));
+  }
+
+  /**
+   * Sets the limits on concurrent sessions, zero means no limit, see
+   * {@link ProxyServer#setSessionLimits(int, int, int)}.
+   */
+  public void setSessionLimits(final int maxSessions,
+      final int sessionWatermark, final int maxHandshakes) {
+    admission.setLimits(maxSessions, sessionWatermark, maxHandshakes);
+  }
+
+  /**
+   * Sets how sessions are shed when their handshake waits too long for a
+   * thread of the pool, see {@link ProxyServer#setLoadShedding(int, int)}.
+   */
+  public void setLoadShedding(final int targetDelay, final int interval) {
+    admission.setShedding(targetDelay, interval);
+  }
+
+  /**
+   * Get the relay metrics of this server.
+   */
+  public RelayStatistics getStatistics() {
+    // Blocking relays, neither scheduled nor under a memory budget.
+    return new RelayStatistics(bufferSizing, relayCounters, admission, null, null, null);
+  }
+
   /**
    * Set proxy.
    * <p/>
@@ -112,8 +270,6 @@ public class DnsProxyServer implements Runnable {
    */
   public void setProxy(final SocksProxyBase p) {
     proxy = p;
-    // FIXME: Side effect.
-    UDPRelayServer.proxy = proxy;
   }
 
   /**
@@ -135,6 +291,17 @@ public class DnsProxyServer implements Runnable {
     iddleTimeout = timeout;
   }
 
+  /**
+   * Sets the time a client has for greeting, authentication and request,
+   * after which the connection is reset. The idle timeout only starts once
+   * the request is read.<br>
+   * Zero timeout implies infinity.<br>
+   * Default timeout is 30 seconds.
+   */
+  public void setHandshakeTimeout(final int timeout) {
+    handshakeTimeout = timeout;
+  }
+
   /**
    * Sets the timeout for BIND command, how long the server should wait for
    * the incoming connection.<br>
@@ -145,13 +312,21 @@ public class DnsProxyServer implements Runnable {
     acceptTimeout = timeout;
   }
 
+  /**
+   * Sets how the access log looks up the host names of clients, see
+   * {@link ProxyServer#setClientNameResolver(HostNameResolver)}.
+   */
+  public void setClientNameResolver(final HostNameResolver resolver) {
+    accessLog = new AccessLog(null == resolver ? null : new HostNameCache(resolver));
+  }
+
   /**
    * Sets the timeout for UDPRelay server.<br>
    * Zero timeout implies infinity.<br>
    * Default timeout is 3 minutes.
    */
   public void setUDPTimeout(final int timeout) {
-    UDPRelayServer.setTimeout(timeout);
+    udpTimeout = timeout;
   }
 
   /**
@@ -160,7 +335,7 @@ public class DnsProxyServer implements Runnable {
    * datagram.
    */
   public void setDatagramSize(final int size) {
-    UDPRelayServer.setDatagramSize(size);
+    datagramSize = size;
   }
 
   /**
@@ -196,7 +371,18 @@ public class DnsProxyServer implements Runnable {
   public void start(final int port, final int backlog,
       final InetAddress localIP) {
 
-    executor = Executors.newFixedThreadPool(poolSize);
+    if (ProxyEngine.VIRTUAL_THREAD == engine && VirtualThreads.isSupported()) {
+      threadFactory = VirtualThreads.newFactory("DnsProxyServer-virtual-");
+      executor = Executors.newCachedThreadPool(threadFactory);
+    }
+    else {
+      if (ProxyEngine.VIRTUAL_THREAD == engine) {
+        log.warn("Virtual threads are not supported by this JVM, using a pool of {} threads", poolSize);
+      }
+      executor = Executors.newFixedThreadPool(poolSize);
+    }
+    stopping = false;
+    timingWheel.start("DnsProxyServer-timer");
 
     try {
       ss = new ServerSocket(port, backlog, localIP);
@@ -207,39 +393,66 @@ public class DnsProxyServer implements Runnable {
 
       while (true) {
         final Socket s = ss.accept();
-        final String hostName = s.getInetAddress().getHostName();
-        final int port2 = s.getPort();
-        log.info("Accepted from:{}:{}", hostName, port2);
+        if (!admission.tryAdmit()) {
+          log.info("Rejected {}:{}, session limit reached",
+              s.getInetAddress().getHostAddress(), s.getPort());
+          try {
+            s.close();
+          }
+          catch (final IOException ioe) {
+            log.warn("Exception closing {}", s, ioe);
+          }
+          continue;
+        }
+        log.info("Accepted from:{}:{}", s.getInetAddress().getHostAddress(), s.getPort());
 
-        final DnsProxyServer ps = new DnsProxyServer(auth, s,
-            dnsResolver);
+        final DnsProxyServer ps = new DnsProxyServer(this, s);
         executor.submit(ps);
       }
     }
     catch (final IOException ioe) {
-      log.error("Can't start proxy", ioe);
-      setProxyStatus(ProxyStatus.ERROR);
+      if (stopping) {
+        log.debug("Proxy stopped accepting", ioe);
+      }
+      else {
+        log.error("Can't start proxy", ioe);
+        setProxyStatus(ProxyStatus.ERROR);
+      }
     }
     finally {
     }
   }
 
   /**
-   * Stop server operation.It would be wise to interrupt thread running the
-   * server afterwards.
+   * Stop accepting connections and give the open sessions up to the given
+   * time to finish, before stopping the server. Idle sessions are closed
+   * first, the progress is logged every second.
+   *
+   * @param timeout
+   *     Time in milliseconds to wait for the sessions to end.
+   * @return true if all sessions ended by themselves or were idle, false if
+   *         some had to be closed while still active.
+   */
+  public boolean drain(final long timeout) throws InterruptedException {
+    setProxyStatus(ProxyStatus.DRAINING);
+    stopAccepting();
+    final int forced = sessions.drain(timeout, timingWheel);
+    stop();
+    return 0 == forced;
+  }
+
+  /**
+   * Stop server operation, closing the sessions still open. It would be wise
+   * to interrupt thread running the server afterwards.
    */
   public void stop() {
-    try {
-      if (ss != null) {
-        ss.close();
-      }
-    }
-    catch (final IOException ioe) {
-    }
+    stopAccepting();
+    sessions.closeAll();
 
     if (executor != null) {
       executor.shutdown();
     }
+    timingWheel.stop();
     setProxyStatus(ProxyStatus.STOPED);
   }
 
@@ -257,40 +470,45 @@ public class DnsProxyServer implements Runnable {
           handleException(ioe);
         }
         finally {
-          abort();
-          if (auth != null) {
-            auth.endSession();
+          if (clientEof && !remoteEof) {
+            log.info("Main thread(client->remote)stopped, "
+                + "remote->client still open.");
+          }
+          else {
+            abort();
+            log.info("Main thread(client->remote)stopped.");
           }
-          log.info("Main thread(client->remote)stopped.");
         }
         break;
       case ACCEPT_MODE:
         try {
           doAccept();
+          // The client thread sees the new mode with the next byte it reads.
           mode = PIPE_MODE;
-          pipe_thread1.interrupt(); // Tell other thread that connection
-          // have
-          // been accepted.
-          pipe(remote_in, out);
+          pipeRemote();
         }
         catch (final IOException ioe) {
           log.error("ACCEPT_MODE exception.", ioe);
           handleException(ioe);
         }
         finally {
-          abort();
+          if (!remoteEof || clientEof) {
+            abort();
+          }
           log.info("Accept thread(remote->client) stopped");
         }
         break;
       case PIPE_MODE:
         try {
-          pipe(remote_in, out);
+          pipeRemote();
         }
         catch (final IOException ioe) {
           log.error("PIPE_MODE error", ioe);
         }
         finally {
-          abort();
+          if (!remoteEof || clientEof) {
+            abort();
+          }
           log.info("Support thread(remote->client) stopped");
         }
         break;
@@ -303,8 +521,27 @@ public class DnsProxyServer implements Runnable {
 
   // Private methods
   // ///////////////
+  private void stopAccepting() {
+    stopping = true;
+    try {
+      if (ss != null) {
+        ss.close();
+      }
+    }
+    catch (final IOException ioe) {
+    }
+  }
+
   private void startSession() throws IOException {
-    sock.setSoTimeout(iddleTimeout);
+    // Greeting, authentication and request must arrive before this deadline.
+    deadline = timingWheel.schedule(handshakeTimeout, handshakeTimeoutTask);
+    sessions.add(session);
+
+    if (!admission.handshakeStarted(acceptedAt)) {
+      log.info("Shedding session of {}", sock);
+      AdmissionControl.reject(sock);
+      return;
+    }
 
     try {
       auth = auth.startSession(sock);
@@ -324,6 +561,13 @@ public class DnsProxyServer implements Runnable {
     out = auth.getOutputStream();
 
     msg = readMsg(in);
+
+    accessRecord.setRequest(msg, auth.getAuthenticatedUser());
+
+    // The idle deadline covers resolving and connecting, the relay pushes it back.
+    deadline.cancel();
+    admission.requestRead(acceptedAt);
+    deadline = timingWheel.schedule(iddleTimeout, timeoutTask);
     handleRequest(msg);
   }
 
@@ -399,7 +643,7 @@ public class DnsProxyServer implements Runnable {
     Socket s;
 
     if (proxy == null) {
-      s = new Socket(msg.ip, msg.port);
+      s = connector.connect(new InetAddress[] { msg.ip }, msg.port).socket();
     }
     else {
       s = new SocksSocket(proxy, msg.ip, msg.port);
@@ -407,31 +651,12 @@ public class DnsProxyServer implements Runnable {
 
     log.info("Connected to " + s.getInetAddress() + ":" + s.getPort());
 
-    ProxyMessage response = null;
-    final InetAddress localAddress = s.getLocalAddress();
-    final int localPort = s.getLocalPort();
-
-    if (msg instanceof Socks5Message) {
-      final int cmd = SocksProxyBase.SOCKS_SUCCESS;
-      Socks5Message socks5Message = new Socks5Message(cmd, localAddress,
-          localPort);
-      socks5Message.setDnsResolver(dnsResolver);
-      response = socks5Message;
-    }
-    else {
-      final int cmd = Socks4Message.REPLY_OK;
-      Socks4Message socks4Message = new Socks4Message(cmd, localAddress,
-          localPort);
-      socks4Message.setDnsResolver(dnsResolver);
-      response = socks4Message;
-    }
-    response.write(out);
+    ProxyServerRunnable.forwardEarlyData(in, s.getOutputStream());
+    ProxyServerRunnable.successReply(msg, s.getLocalAddress(), s.getLocalPort()).write(out);
     startPipe(s);
   }
 
   private void onBind(final ProxyMessage msg) throws IOException {
-    ProxyMessage response = null;
-
     if (proxy == null) {
       ss = new ServerSocket(0);
     }
@@ -439,36 +664,30 @@ public class DnsProxyServer implements Runnable {
       ss = new SocksServerSocket(proxy, msg.ip, msg.port);
     }
 
-    ss.setSoTimeout(acceptTimeout);
+    deadline.cancel();
+    endHandshake();
+    acceptDeadline = timingWheel.schedule(acceptTimeout, new Runnable() {
+      @Override
+      public void run() {
+        log.info("Accept timed out");
+        try {
+          ss.close();
+        }
+        catch (final IOException ioe) {
+        }
+      }
+    });
 
     final InetAddress inetAddress = ss.getInetAddress();
     final int localPort = ss.getLocalPort();
     log.info("Trying accept on {}:{}", inetAddress, localPort);
-
-    if (msg.version == 5) {
-      final int cmd = SocksProxyBase.SOCKS_SUCCESS;
-      Socks5Message socks5Message = new Socks5Message(cmd, inetAddress,
-          localPort);
-      socks5Message.setDnsResolver(dnsResolver);
-      response = socks5Message;
-    }
-    else {
-      final int cmd = Socks4Message.REPLY_OK;
-      Socks4Message socks4Message = new Socks4Message(cmd, inetAddress,
-          localPort);
-      socks4Message.setDnsResolver(dnsResolver);
-      response = socks4Message;
-    }
-    response.write(out);
+    ProxyServerRunnable.successReply(msg, inetAddress, localPort).write(out);
 
     mode = ACCEPT_MODE;
 
-    pipe_thread1 = Thread.currentThread();
-    pipe_thread2 = new Thread(this);
+    pipe_thread2 = threadFactory.newThread(this);
     pipe_thread2.start();
 
-    // Make timeout infinit.
-    sock.setSoTimeout(0);
     int eof = 0;
 
     try {
@@ -487,11 +706,9 @@ public class DnsProxyServer implements Runnable {
       log.debug("Connection closed while we were trying to accept", e);
       return;
     }
-    catch (final InterruptedIOException e) {
-      log.debug("Interrupted by unsucessful accept thread", e);
-      if (mode != PIPE_MODE) {
-        return;
-      }
+    catch (final IOException e) {
+      log.debug("Client socket closed by unsucessful accept thread", e);
+      return;
     }
     finally {
       // System.out.println("Finnaly!");
@@ -501,10 +718,7 @@ public class DnsProxyServer implements Runnable {
       return;
     }
 
-    // Do not restore timeout, instead timeout is set on the
-    // remote socket. It does not make any difference.
-
-    pipe(in, remote_out);
+    pipeClient();
   }
 
   private void onUDP(final ProxyMessage msg) throws IOException {
@@ -513,8 +727,12 @@ public class DnsProxyServer implements Runnable {
     }
     log.info("Creating UDP relay server for {}:{}", msg.ip, msg.port);
 
+    // The relay server has its own idle timeout.
+    deadline.cancel();
+    endHandshake();
     relayServer = new UDPRelayServer(msg.ip, msg.port,
-        Thread.currentThread(), sock, auth);
+        Thread.currentThread(), sock, auth, timingWheel,
+        proxy, udpTimeout, datagramSize);
 
     ProxyMessage response;
 
@@ -528,8 +746,6 @@ public class DnsProxyServer implements Runnable {
 
     relayServer.start();
 
-    // Make timeout infinit.
-    sock.setSoTimeout(0);
     try {
       while (in.read() >= 0) {
         /* do nothing */
@@ -546,10 +762,17 @@ public class DnsProxyServer implements Runnable {
 
   private void doAccept() throws IOException {
     Socket s = null;
-    final long startTime = System.currentTimeMillis();
 
     while (true) {
-      s = ss.accept();
+      try {
+        s = ss.accept();
+      }
+      catch (final IOException e) {
+        if (acceptDeadline.isExpired()) {
+          throw new InterruptedIOException("Accept timed out");
+        }
+        throw e;
+      }
       if (s.getInetAddress().equals(msg.ip)) {
         // got the connection from the right host
         // Close listenning socket.
@@ -563,48 +786,23 @@ public class DnsProxyServer implements Runnable {
         throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
       }
       else {
-        if (acceptTimeout != 0) { // If timeout is not infinit
-          final long passed = System.currentTimeMillis() - startTime;
-          final int newTimeout = acceptTimeout - (int) passed;
-
-          if (newTimeout <= 0) {
-            throw new InterruptedIOException("newTimeout <= 0");
-          }
-          ss.setSoTimeout(newTimeout);
-        }
         s.close(); // Drop all connections from other hosts
       }
     }
+    acceptDeadline.cancel();
 
     // Accepted connection
     remote_sock = s;
     remote_in = s.getInputStream();
     remote_out = s.getOutputStream();
 
-    // Set timeout
-    remote_sock.setSoTimeout(iddleTimeout);
+    // Idle deadline of the tunnel
+    deadline = timingWheel.schedule(iddleTimeout, timeoutTask);
 
     final InetAddress inetAddress = s.getInetAddress();
     final int port = s.getPort();
     log.info("Accepted from {}:{}", s.getInetAddress(), port);
-
-    ProxyMessage response;
-
-    if (msg.version == 5) {
-      final int cmd = SocksProxyBase.SOCKS_SUCCESS;
-      Socks5Message socks5Message = new Socks5Message(cmd, inetAddress,
-          port);
-      socks5Message.setDnsResolver(dnsResolver);
-      response = socks5Message;
-    }
-    else {
-      final int cmd = Socks4Message.REPLY_OK;
-      Socks4Message socks4Message = new Socks4Message(cmd, inetAddress,
-          port);
-      socks4Message.setDnsResolver(dnsResolver);
-      response = socks4Message;
-    }
-    response.write(out);
+    ProxyServerRunnable.successReply(msg, inetAddress, port).write(out);
   }
 
   private ProxyMessage readMsg(final InputStream in) throws IOException {
@@ -635,14 +833,14 @@ public class DnsProxyServer implements Runnable {
 
   private void startPipe(final Socket s) {
     mode = PIPE_MODE;
+    endHandshake();
     remote_sock = s;
     try {
       remote_in = s.getInputStream();
       remote_out = s.getOutputStream();
-      pipe_thread1 = Thread.currentThread();
-      pipe_thread2 = new Thread(this);
+      pipe_thread2 = threadFactory.newThread(this);
       pipe_thread2.start();
-      pipe(in, remote_out);
+      pipeClient();
     }
     catch (final IOException ioe) {
     }
@@ -663,13 +861,54 @@ public class DnsProxyServer implements Runnable {
     }
   }
 
-  private synchronized void abort() {
-    if (mode == ABORT_MODE) {
+  /**
+   * Relays client data to the remote host. At the end of stream the output
+   * to the remote host is shut down, the other direction keeps running.
+   */
+  private void pipeClient() throws IOException {
+    pipe(in, remote_out, sock, remote_sock);
+    log.debug("Client closed its side, shutting down output to remote");
+    shutdownOutput(remote_sock);
+    clientEof = true;
+  }
+
+  /**
+   * Relays remote data to the client. At the end of stream the output to the
+   * client is shut down, the other direction keeps running.
+   */
+  private void pipeRemote() throws IOException {
+    pipe(remote_in, out, remote_sock, sock);
+    log.debug("Remote closed its side, shutting down output to client");
+    shutdownOutput(sock);
+    remoteEof = true;
+  }
+
+  private void shutdownOutput(final Socket socket) {
+    try {
+      socket.shutdownOutput();
+    }
+    catch (final IOException e) {
+      log.debug("Exception shutting down output of {}", socket, e);
+    }
+  }
+
+  /**
+   * Closes everything, which unblocks the other thread of the session. Not
+   * synchronized, so a virtual thread closing sockets does not pin its carrier.
+   */
+  private void abort() {
+    if (!aborted.compareAndSet(false, true)) {
       return;
     }
     mode = ABORT_MODE;
     try {
       log.info("Aborting operation");
+      if (deadline != null) {
+        deadline.cancel();
+      }
+      if (acceptDeadline != null) {
+        acceptDeadline.cancel();
+      }
       if (remote_sock != null) {
         remote_sock.close();
       }
@@ -682,15 +921,24 @@ public class DnsProxyServer implements Runnable {
       if (ss != null) {
         ss.close();
       }
-      if (pipe_thread1 != null) {
-        pipe_thread1.interrupt();
-      }
-      if (pipe_thread2 != null) {
-        pipe_thread2.interrupt();
-      }
     }
     catch (final IOException ioe) {
     }
+    finally {
+      if (auth != null) {
+        auth.endSession();
+      }
+      endHandshake();
+      admission.sessionEnded();
+      sessions.remove(session);
+      accessRecord.close();
+    }
+  }
+
+  private void endHandshake() {
+    if (handshaking.compareAndSet(true, false)) {
+      admission.handshakeEnded();
+    }
   }
 
   static final void log(final ProxyMessage msg) {
@@ -701,34 +949,51 @@ public class DnsProxyServer implements Runnable {
     log.debug("IP:" + msg.ip + ", Port:" + msg.port + user);
   }
 
-  private void pipe(final InputStream in, final OutputStream out)
-      throws IOException {
-    lastReadTime = System.currentTimeMillis();
-    final byte[] buf = new byte[BUF_SIZE];
+  /**
+   * Relays one direction until the end of stream. Aborting the session, for
+   * instance when the idle deadline expires, closes the sockets, so the
+   * relay ends with an exception.
+   */
+  private void pipe(final InputStream in, final OutputStream out,
+      final Socket from, final Socket to) throws IOException {
+    final AdaptiveBufferSizer sizer = bufferSizing.newSizer();
+    byte[] buf = new byte[sizer.getSize()];
     int len = 0;
-    while (len >= 0) {
-      try {
+    boolean eof = false;
+    try {
+      while (len >= 0) {
         if (len != 0) {
           out.write(buf, 0, len);
-          out.flush();
-        }
-        len = in.read(buf);
-        lastReadTime = System.currentTimeMillis();
-      }
-      catch (final InterruptedIOException iioe) {
-        if (iddleTimeout == 0) {
-          return;// Other thread interrupted us.
+          relayCounters.countWrites(1, len);
+          if (eof || !coalesceWrites || in.available() == 0) {
+            out.flush();
+          }
+          if (sizer.record(len, timingWheel.now())) {
+            buf = new byte[sizer.getSize()];
+            sizer.tuneSockets(from, to);
+          }
         }
-        final long timeSinceRead = System.currentTimeMillis()
-            - lastReadTime;
-
-        if (timeSinceRead >= iddleTimeout - 1000) {
+        if (eof) {
           return;
         }
-        len = 0;
-
+        len = in.read(buf);
+        relayCounters.countReads(1);
+        deadline.touch();
+        while (coalesceWrites && len > 0 && len < buf.length
+            && in.available() > 0) {
+          final int more = in.read(buf, len, buf.length - len);
+          relayCounters.countReads(1);
+          if (more < 0) {
+            eof = true;
+            break;
+          }
+          len += more;
+        }
       }
     }
+    finally {
+      sizer.close();
+    }
   }
 
   static final String command_names[] = { "CONNECT", "BIND", "UDP_ASSOCIATE" };
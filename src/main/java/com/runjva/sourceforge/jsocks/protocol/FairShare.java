@@ -0,0 +1,71 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable assignment of users to {@link SchedulingClass}es. Users without
+ * a class, and anonymous sessions, belong to the default class.
+ */
+class FairShare {
+  static final String DEFAULT_CLASS = "default";
+
+  private final Map<String, SchedulingClass> classes;
+  private final Map<String, SchedulingClass> users;
+
+  FairShare() {
+    classes = Collections.singletonMap(DEFAULT_CLASS, new SchedulingClass(DEFAULT_CLASS, 1));
+    users = Collections.emptyMap();
+  }
+
+  private FairShare(final Map<String, SchedulingClass> classes, final Map<String, SchedulingClass> users) {
+    this.classes = Collections.unmodifiableMap(classes);
+    this.users = Collections.unmodifiableMap(users);
+  }
+
+  /**
+   * Copy with the given class added, or with its weight changed.
+   */
+  FairShare withClass(final String name, final int weight) {
+    final SchedulingClass added = new SchedulingClass(name, weight);
+    final Map<String, SchedulingClass> newClasses = new LinkedHashMap<String, SchedulingClass>(classes);
+    newClasses.put(name, added);
+    final Map<String, SchedulingClass> newUsers = new HashMap<String, SchedulingClass>();
+    for (final Map.Entry<String, SchedulingClass> entry : users.entrySet()) {
+      newUsers.put(entry.getKey(), newClasses.get(entry.getValue().getName()));
+    }
+    return new FairShare(newClasses, newUsers);
+  }
+
+  /**
+   * Copy with the given user assigned to the class.
+   *
+   * @throws IllegalArgumentException
+   *     If there is no such class.
+   */
+  FairShare withUser(final String user, final String className) {
+    final SchedulingClass schedulingClass = classes.get(className);
+    if (null == schedulingClass) {
+      throw new IllegalArgumentException("Unknown scheduling class: " + className);
+    }
+    final Map<String, SchedulingClass> newUsers = new HashMap<String, SchedulingClass>(users);
+    newUsers.put(user, schedulingClass);
+    return new FairShare(new LinkedHashMap<String, SchedulingClass>(classes), newUsers);
+  }
+
+  /**
+   * @param user
+   *     Authenticated user, or null for anonymous sessions.
+   */
+  SchedulingClass classOf(final String user) {
+    final SchedulingClass schedulingClass = null == user ? null : users.get(user);
+    return null == schedulingClass ? classes.get(DEFAULT_CLASS) : schedulingClass;
+  }
+
+  Collection<SchedulingClass> getClasses() {
+    return classes.values();
+  }
+}
@@ -0,0 +1,256 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connects to one of the addresses of a host, racing non-blocking attempts
+ * with staggered starts as in Happy Eyeballs (RFC 8305).
+ * <p/>
+ * Addresses with a known connect time are tried fastest first, the others
+ * follow alternating between IPv6 and IPv4, addresses whose last attempt
+ * failed come last. The next attempt starts when the
+ * previous one failed or has not succeeded within the attempt delay. The first
+ * connection established wins, the other attempts are closed. Connect times,
+ * and failures as a penalty, are recorded in the given {@link RttTable}.
+ */
+class HappyEyeballsConnector {
+  private static final Logger log = LoggerFactory.getLogger(HappyEyeballsConnector.class);
+
+  static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+  static final int DEFAULT_ATTEMPT_DELAY = 250;
+  private static final long FAILURE_PENALTY = TimeUnit.SECONDS.toMicros(10);
+
+  private final int connectTimeout;
+  private final int attemptDelay;
+  private final RttTable rtts;
+
+  /**
+   * @param connectTimeout
+   *     How long to wait for any attempt to succeed in milliseconds, zero
+   *     implies infinity.
+   * @param attemptDelay
+   *     Delay between the start of two attempts in milliseconds.
+   * @param rtts
+   *     Connect times per address, shared by all connects of a server.
+   */
+  HappyEyeballsConnector(final int connectTimeout, final int attemptDelay, final RttTable rtts) {
+    this.connectTimeout = connectTimeout;
+    this.attemptDelay = attemptDelay;
+    this.rtts = rtts;
+  }
+
+  /**
+   * Connect to the first of the addresses which accepts the connection.
+   *
+   * @return A connected channel in blocking mode.
+   * @throws SocketTimeoutException
+   *     If no attempt succeeded within the connect timeout.
+   * @throws IOException
+   *     The failure of the last attempt, if all of them failed.
+   */
+  SocketChannel connect(final InetAddress[] addresses, final int port) throws IOException {
+    final InetAddress[] ordered = order(addresses);
+    final List<Attempt> pending = new LinkedList<Attempt>();
+    final long deadline = 0 == connectTimeout ? Long.MAX_VALUE
+        : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+    IOException failure = null;
+    SocketChannel connected = null;
+    int next = 0;
+    long nextAttempt = System.nanoTime();
+
+    final Selector selector = Selector.open();
+    try {
+      while (null == connected) {
+        final long now = System.nanoTime();
+        if (next < ordered.length && (now >= nextAttempt || pending.isEmpty())) {
+          final Attempt attempt = new Attempt(ordered[next++], now);
+          nextAttempt = now + TimeUnit.MILLISECONDS.toNanos(attemptDelay);
+          try {
+            if (attempt.start(port, selector)) {
+              connected = attempt.succeeded();
+            }
+            else {
+              pending.add(attempt);
+            }
+          }
+          catch (final IOException e) {
+            failure = attempt.failed(e);
+          }
+          continue;
+        }
+        if (pending.isEmpty()) {
+          throw null != failure ? failure : new ConnectException("No address to connect to");
+        }
+        if (now >= deadline) {
+          throw new SocketTimeoutException("Connect timed out after " + connectTimeout + " ms");
+        }
+
+        long wait = deadline - now;
+        if (next < ordered.length) {
+          wait = Math.min(wait, nextAttempt - now);
+        }
+        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext() && null == connected) {
+          final SelectionKey key = keys.next();
+          keys.remove();
+          final Attempt attempt = (Attempt) key.attachment();
+          pending.remove(attempt);
+          try {
+            if (attempt.channel.finishConnect()) {
+              connected = attempt.succeeded();
+            }
+            else {
+              pending.add(attempt);
+            }
+          }
+          catch (final IOException e) {
+            failure = attempt.failed(e);
+            // Do not wait for the attempt delay after a failure.
+            nextAttempt = System.nanoTime();
+          }
+        }
+      }
+    }
+    finally {
+      for (final Attempt attempt : pending) {
+        attempt.close();
+      }
+      selector.close();
+    }
+    connected.configureBlocking(true);
+    return connected;
+  }
+
+  /**
+   * Orders the addresses in which they are tried.
+   */
+  InetAddress[] order(final InetAddress[] addresses) {
+    final List<InetAddress> known = new ArrayList<InetAddress>();
+    final List<InetAddress> failed = new ArrayList<InetAddress>();
+    final LinkedList<InetAddress> unknown6 = new LinkedList<InetAddress>();
+    final LinkedList<InetAddress> unknown4 = new LinkedList<InetAddress>();
+    for (final InetAddress address : addresses) {
+      if (rtts.hasFailed(address)) {
+        failed.add(address);
+      }
+      else if (rtts.get(address) >= 0) {
+        known.add(address);
+      }
+      else if (address instanceof Inet6Address) {
+        unknown6.add(address);
+      }
+      else {
+        unknown4.add(address);
+      }
+    }
+    final Comparator<InetAddress> fastestFirst = new Comparator<InetAddress>() {
+      @Override
+      public int compare(final InetAddress a, final InetAddress b) {
+        final long rttA = rtts.get(a);
+        final long rttB = rtts.get(b);
+        return rttA < rttB ? -1 : (rttA == rttB ? 0 : 1);
+      }
+    };
+    Collections.sort(known, fastestFirst);
+    Collections.sort(failed, fastestFirst);
+
+    final List<InetAddress> ordered = new ArrayList<InetAddress>(known);
+    // Start with the family the resolver listed first.
+    boolean ipv6 = addresses.length > 0 && unknown6.contains(firstUnknown(addresses));
+    while (!unknown6.isEmpty() || !unknown4.isEmpty()) {
+      final LinkedList<InetAddress> family = ipv6 ? unknown6 : unknown4;
+      if (!family.isEmpty()) {
+        ordered.add(family.removeFirst());
+      }
+      ipv6 = !ipv6;
+    }
+    ordered.addAll(failed);
+    if (log.isDebugEnabled()) {
+      log.debug("Connect order {}", Arrays.toString(ordered.toArray()));
+    }
+    return ordered.toArray(new InetAddress[ordered.size()]);
+  }
+
+  private InetAddress firstUnknown(final InetAddress[] addresses) {
+    for (final InetAddress address : addresses) {
+      if (rtts.get(address) < 0) {
+        return address;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * One connection attempt of the race.
+   */
+  private final class Attempt {
+    private final InetAddress address;
+    private final long started;
+    private SocketChannel channel;
+
+    Attempt(final InetAddress address, final long started) {
+      this.address = address;
+      this.started = started;
+    }
+
+    /**
+     * @return true if the connection was established right away.
+     */
+    boolean start(final int port, final Selector selector) throws IOException {
+      log.debug("Connecting to {}:{}", address, port);
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      if (channel.connect(new InetSocketAddress(address, port))) {
+        return true;
+      }
+      channel.register(selector, SelectionKey.OP_CONNECT, this);
+      return false;
+    }
+
+    SocketChannel succeeded() {
+      final long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started);
+      log.debug("Connected to {} in {} us", address, micros);
+      rtts.record(address, micros);
+      return channel;
+    }
+
+    IOException failed(final IOException e) {
+      log.debug("Connect to {} failed", address, e);
+      rtts.failed(address, FAILURE_PENALTY);
+      close();
+      return e;
+    }
+
+    void close() {
+      if (null != channel) {
+        try {
+          channel.close();
+        }
+        catch (final IOException e) {
+          log.debug("Exception closing {}", channel, e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Host names of client addresses, looked up in the background.
+ * <p/>
+ * The accept path only asks for a lookup and never waits for it. A few
+ * threads work off a bounded queue, when it is full the lookup is dropped and
+ * the address stays numeric. Only the most recently resolved names are kept,
+ * for a limited time.
+ */
+class HostNameCache {
+  private static final Logger log = LoggerFactory.getLogger(HostNameCache.class);
+
+  static final int DEFAULT_MAX_NAMES = 4096;
+  static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(10);
+  static final int DEFAULT_THREADS = 2;
+  static final int DEFAULT_QUEUE_SIZE = 256;
+  private static final long KEEP_ALIVE = 60;
+
+  private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(final Runnable r) {
+      final Thread thread = new Thread(r, "HostNameCache-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  private final HostNameResolver resolver;
+  private final Cache<InetAddress, String> names;
+  private final ConcurrentHashMap<InetAddress, Boolean> pending = new ConcurrentHashMap<InetAddress, Boolean>();
+  private final ThreadPoolExecutor executor;
+
+  HostNameCache(final HostNameResolver resolver) {
+    this(resolver, DEFAULT_MAX_NAMES, DEFAULT_TTL, DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+  }
+
+  /**
+   * @param maxNames
+   *     Number of names to keep.
+   * @param ttl
+   *     Time a name is kept, in milliseconds.
+   * @param threads
+   *     Number of lookups running at the same time.
+   * @param queueSize
+   *     Number of lookups waiting for a thread, beyond which they are dropped.
+   */
+  HostNameCache(final HostNameResolver resolver, final int maxNames, final long ttl, final int threads,
+      final int queueSize) {
+    this.resolver = resolver;
+    this.names = CacheBuilder.newBuilder().maximumSize(maxNames).expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+        .build();
+    this.executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), THREAD_FACTORY);
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Start looking up the name of the address, unless it is known or being
+   * looked up already. Never blocks.
+   */
+  void resolve(final InetAddress address) {
+    if (null != names.getIfPresent(address) || null != pending.putIfAbsent(address, Boolean.TRUE)) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            names.put(address, resolver.getHostName(address));
+          }
+          catch (final IOException e) {
+            log.debug("Can't look up name of {}", address, e);
+          }
+          catch (final RuntimeException e) {
+            log.warn("Host name resolver threw exception", e);
+          }
+          finally {
+            pending.remove(address);
+          }
+        }
+      });
+    }
+    catch (final RejectedExecutionException e) {
+      pending.remove(address);
+      log.debug("Lookup queue full, {} stays numeric", address);
+    }
+  }
+
+  /**
+   * Name of the address if its lookup finished, null otherwise.
+   */
+  String getIfResolved(final InetAddress address) {
+    return names.getIfPresent(address);
+  }
+}
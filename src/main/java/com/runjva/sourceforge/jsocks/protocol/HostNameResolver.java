@@ -0,0 +1,29 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Looks up the host name of a client address for the access log, see
+ * {@link ProxyServer#setClientNameResolver(HostNameResolver)}.
+ * <p/>
+ * Lookups run on a thread of their own and may block.
+ */
+public interface HostNameResolver {
+
+  /**
+   * Reverse lookup with the name service of the JVM.
+   */
+  HostNameResolver SYSTEM = new HostNameResolver() {
+    @Override
+    public String getHostName(final InetAddress address) throws IOException {
+      // A fresh copy, the accepted address is never resolved.
+      return InetAddress.getByAddress(address.getAddress()).getCanonicalHostName();
+    }
+  };
+
+  /**
+   * Host name of the address, or its numeric form if it has none.
+   */
+  String getHostName(InetAddress address) throws IOException;
+}
@@ -0,0 +1,12 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+/**
+ * Enum selecting how accepted connections are spread over the event loops of
+ * the SELECTOR engine.
+ * <p/>
+ * ROUND_ROBIN hands connections to the loops in turn, LEAST_LOADED picks the
+ * loop which currently owns the fewest sessions.
+ */
+public enum LoadBalancing {
+  ROUND_ROBIN, LEAST_LOADED
+}
@@ -0,0 +1,159 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.runjva.sourceforge.jsocks.server.NonBlockingAuthenticator;
+
+/**
+ * Handshake of a connection accepted by the SELECTOR engine, run with a
+ * {@link SocksHandshake} by the event loop owning the connection.
+ * <p/>
+ * Clients sending their handshake slowly hold no thread this way. Once the
+ * request arrived the channel is made blocking again and the session goes on
+ * with its threads, which resolve and connect.
+ */
+final class LoopHandshake implements RelayEventLoop.Handler {
+  private static final Logger log = LoggerFactory.getLogger(LoopHandshake.class);
+  /**
+   * Room for the largest incomplete message, the SOCKS4a request, and the
+   * client data sent along with the request.
+   */
+  private static final int INPUT_SIZE = 1024;
+  private static final int OUTPUT_SIZE = 64;
+
+  private final ProxyServerRunnable session;
+  private final SocketChannel channel;
+  private final Socket client;
+  private final NonBlockingAuthenticator.Handshake auth;
+  private final SocksHandshake handshake;
+  private final ByteBuffer in = ByteBuffer.allocate(INPUT_SIZE);
+  private final ByteBuffer out = ByteBuffer.allocate(OUTPUT_SIZE);
+  private RelayEventLoop loop;
+
+  /**
+   * @param client
+   *     Monitored socket of the channel, the session uses its streams.
+   */
+  LoopHandshake(final ProxyServerRunnable session, final SocketChannel channel, final Socket client,
+      final NonBlockingAuthenticator.Handshake auth) {
+    this.session = session;
+    this.channel = channel;
+    this.client = client;
+    this.auth = auth;
+    this.handshake = new SocksHandshake(auth);
+  }
+
+  void register(final RelayEventLoop loop, final Selector selector) throws IOException {
+    if (!session.startLoopHandshake()) {
+      return;
+    }
+    this.loop = loop;
+    channel.configureBlocking(false);
+    channel.register(selector, SelectionKey.OP_READ, this);
+  }
+
+  @Override
+  public void handle(final SelectionKey key) {
+    try {
+      if (key.isReadable() && channel.read(in) < 0) {
+        throw new EOFException("Client closed connection during handshake");
+      }
+      in.flip();
+      final boolean done;
+      try {
+        done = handshake.advance(in, out);
+      }
+      finally {
+        in.compact();
+      }
+      if (done) {
+        finish(key);
+      }
+      else if (!in.hasRemaining()) {
+        throw new SocksException(SocksProxyBase.SOCKS_JUST_ERROR, "Handshake message too long");
+      }
+      else {
+        key.interestOps(flush() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+    catch (final IOException | CancelledKeyException e) {
+      log.info("Handshake failed: {}", e.toString());
+      try {
+        // The answer telling the client why, if any.
+        flush();
+      }
+      catch (final IOException ioe) {
+        log.debug("Can't send handshake answer", ioe);
+      }
+      close();
+    }
+  }
+
+  /**
+   * Ends the session, closing the connection.
+   */
+  void close() {
+    session.handshakeFailed();
+  }
+
+  // Private methods
+  // ///////////////
+
+  /**
+   * @return true if all answers were sent.
+   */
+  private boolean flush() throws IOException {
+    out.flip();
+    try {
+      channel.write(out);
+    }
+    finally {
+      out.compact();
+    }
+    return 0 == out.position();
+  }
+
+  /**
+   * Hands the session with the request to its threads. The rest of the
+   * input is client data, which the session reads ahead of the socket.
+   */
+  private void finish(final SelectionKey key) {
+    final byte[] early = Arrays.copyOf(in.array(), in.position());
+    key.cancel();
+    // A channel can't be made blocking before the selector dropped its key,
+    // which happens with the next select, before the tasks run.
+    loop.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          channel.configureBlocking(true);
+          out.flip();
+          channel.write(out);
+          InputStream input = client.getInputStream();
+          if (early.length > 0) {
+            input = new SequenceInputStream(new ByteArrayInputStream(early), input);
+          }
+          session.requestReceived(auth.getSession(input, client.getOutputStream()), handshake.getRequest());
+        }
+        catch (final IOException e) {
+          log.info("Handshake failed: {}", e.toString());
+          close();
+        }
+      }
+    });
+  }
+}
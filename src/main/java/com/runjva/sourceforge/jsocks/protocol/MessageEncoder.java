@@ -0,0 +1,109 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes SOCKS messages into a buffer of the caller, see {@link MessageView}
+ * for the other direction.
+ * <p/>
+ * The buffer must have room for the whole message, otherwise a
+ * {@link java.nio.BufferOverflowException} is thrown. Nothing is allocated.
+ */
+final class MessageEncoder {
+  private static final byte[] NO_ADDRESS = new byte[4];
+
+  private MessageEncoder() {
+  }
+
+  /**
+   * SOCKS5 greeting offering the first count of the given methods.
+   */
+  static void putGreeting(final ByteBuffer out, final byte[] methods, final int count) {
+    out.put((byte) Socks5Message.SOCKS_VERSION).put((byte) count).put(methods, 0, count);
+  }
+
+  /**
+   * Two byte answer, like the method selection of a SOCKS5 server or the
+   * status of a username/password authentication.
+   */
+  static void putSelection(final ByteBuffer out, final int version, final int value) {
+    out.put((byte) version).put((byte) value);
+  }
+
+  /**
+   * Username/password authentication request of RFC 1929.
+   */
+  static void putAuthentication(final ByteBuffer out, final byte[] user, final int userLength,
+      final byte[] password, final int passwordLength) {
+    out.put((byte) MessageView.AUTHENTICATION_VERSION);
+    out.put((byte) userLength).put(user, 0, userLength);
+    out.put((byte) passwordLength).put(password, 0, passwordLength);
+  }
+
+  /**
+   * SOCKS5 request or reply.
+   *
+   * @param addressType
+   *     One of the SOCKS5 address types, a domain name gets its length byte.
+   * @param address
+   *     Raw address, null for 0.0.0.0.
+   */
+  static void putSocks5(final ByteBuffer out, final int command, final int addressType, final byte[] address,
+      final int addressLength, final int port) {
+    out.put((byte) Socks5Message.SOCKS_VERSION).put((byte) command).put((byte) 0);
+    if (null == address) {
+      out.put((byte) Socks5Message.SOCKS_ATYP_IPV4).put(NO_ADDRESS);
+    }
+    else {
+      out.put((byte) addressType);
+      if (Socks5Message.SOCKS_ATYP_DOMAINNAME == addressType) {
+        out.put((byte) addressLength);
+      }
+      out.put(address, 0, addressLength);
+    }
+    out.putShort((short) port);
+  }
+
+  /**
+   * SOCKS5 reply with the address the view holds, like the bound address of
+   * a previous reply.
+   */
+  static void putSocks5(final ByteBuffer out, final int command, final MessageView view) {
+    putSocks5(out, command, view.getAddressType(), view.getAddress(), view.getAddressLength(), view.getPort());
+  }
+
+  /**
+   * SOCKS4 reply, version zero.
+   *
+   * @param address
+   *     Raw IPv4 address, null for 0.0.0.0.
+   */
+  static void putSocks4Reply(final ByteBuffer out, final int command, final byte[] address, final int port) {
+    out.put((byte) 0).put((byte) command).putShort((short) port);
+    out.put(null == address ? NO_ADDRESS : address, 0, 4);
+  }
+
+  /**
+   * SOCKS4 request, or a SOCKS4a request if a host is given.
+   *
+   * @param address
+   *     Raw IPv4 address, ignored for SOCKS4a.
+   * @param host
+   *     Host name for SOCKS4a, or null.
+   */
+  static void putSocks4Request(final ByteBuffer out, final int command, final byte[] address, final int port,
+      final byte[] user, final int userLength, final byte[] host, final int hostLength) {
+    out.put((byte) Socks4Message.SOCKS_VERSION).put((byte) command).putShort((short) port);
+    if (null == host) {
+      out.put(address, 0, 4);
+    }
+    else {
+      // 0.0.0.1 marks SOCKS4a
+      out.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+    }
+    out.put(user, 0, userLength).put((byte) 0);
+    if (null != host) {
+      out.put(host, 0, hostLength).put((byte) 0);
+    }
+  }
+}
@@ -0,0 +1,361 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reusable view of a SOCKS message decoded from a {@link ByteBuffer}, see
+ * {@link MessageEncoder} for the other direction.
+ * <p/>
+ * Every parse method decodes a complete message at the position of the
+ * buffer and moves past it. If the buffer does not hold the complete message
+ * yet, it returns false and leaves the buffer as it was, so it can be called
+ * again once more data arrived. Addresses, user names and passwords are
+ * copied into arrays of the view, nothing is allocated per message unless a
+ * String or InetAddress is asked for.
+ * <p/>
+ * Not thread safe, every connection uses a view of its own.
+ */
+final class MessageView {
+  static final int MAX_FIELD = 255;
+  /**
+   * Version of the username/password authentication of RFC 1929.
+   */
+  static final int AUTHENTICATION_VERSION = 1;
+
+  private static final int SOCKS4_HEADER = 8;
+  private static final int SOCKS5_HEADER = 4;
+
+  private int version;
+  private int command;
+  private int addressType;
+  private int port;
+  private final byte[] address = new byte[MAX_FIELD];
+  private int addressLength;
+  private final byte[] methods = new byte[MAX_FIELD];
+  private int methodCount;
+  private final byte[] user = new byte[MAX_FIELD];
+  private int userLength;
+  private final byte[] password = new byte[MAX_FIELD];
+  private int passwordLength;
+
+  /**
+   * Version byte of the next message without consuming it, -1 if the
+   * buffer is empty. Tells a SOCKS4 request from a SOCKS5 greeting.
+   */
+  static int peekVersion(final ByteBuffer in) {
+    return in.hasRemaining() ? in.get(in.position()) & 0xFF : -1;
+  }
+
+  /**
+   * SOCKS5 greeting of a client, the version and the offered methods.
+   */
+  boolean parseGreeting(final ByteBuffer in) throws SocksException {
+    final int start = in.position();
+    if (in.remaining() < 2) {
+      return false;
+    }
+    final int count = in.get(start + 1) & 0xFF;
+    if (in.remaining() < 2 + count) {
+      return false;
+    }
+    clear();
+    version = in.get() & 0xFF;
+    checkVersion(Socks5Message.SOCKS_VERSION);
+    in.get();
+    in.get(methods, 0, count);
+    methodCount = count;
+    return true;
+  }
+
+  /**
+   * Two byte answer, like the method selection of a SOCKS5 server, kept as
+   * version and command, or the status of a username/password
+   * authentication.
+   */
+  boolean parseSelection(final ByteBuffer in) {
+    if (in.remaining() < 2) {
+      return false;
+    }
+    clear();
+    version = in.get() & 0xFF;
+    command = in.get() & 0xFF;
+    return true;
+  }
+
+  /**
+   * Username/password authentication request of RFC 1929.
+   */
+  boolean parseAuthentication(final ByteBuffer in) throws SocksException {
+    final int start = in.position();
+    if (in.remaining() < 2) {
+      return false;
+    }
+    final int ulen = in.get(start + 1) & 0xFF;
+    if (in.remaining() < 3 + ulen) {
+      return false;
+    }
+    final int plen = in.get(start + 2 + ulen) & 0xFF;
+    if (in.remaining() < 3 + ulen + plen) {
+      return false;
+    }
+    clear();
+    version = in.get() & 0xFF;
+    checkVersion(AUTHENTICATION_VERSION);
+    in.get();
+    in.get(user, 0, ulen);
+    userLength = ulen;
+    in.get();
+    in.get(password, 0, plen);
+    passwordLength = plen;
+    return true;
+  }
+
+  /**
+   * SOCKS5 request of a client or reply of a server, which share their
+   * layout. The reply code is kept as command.
+   */
+  boolean parseSocks5(final ByteBuffer in) throws SocksException {
+    final int start = in.position();
+    if (in.remaining() < SOCKS5_HEADER + 1) {
+      return false;
+    }
+    final int type = in.get(start + 3) & 0xFF;
+    final int length;
+    final int skip;
+    switch (type) {
+      case Socks5Message.SOCKS_ATYP_IPV4:
+        length = 4;
+        skip = 0;
+        break;
+      case Socks5Message.SOCKS_ATYP_IPV6:
+        length = Socks5Message.SOCKS_IPV6_LENGTH;
+        skip = 0;
+        break;
+      case Socks5Message.SOCKS_ATYP_DOMAINNAME:
+        length = in.get(start + SOCKS5_HEADER) & 0xFF;
+        skip = 1;
+        break;
+      default:
+        throw new SocksException(SocksProxyBase.SOCKS_ADDR_NOT_SUPPORTED);
+    }
+    if (in.remaining() < SOCKS5_HEADER + skip + length + 2) {
+      return false;
+    }
+    clear();
+    version = in.get() & 0xFF;
+    checkVersion(Socks5Message.SOCKS_VERSION);
+    command = in.get() & 0xFF;
+    in.get();
+    addressType = in.get() & 0xFF;
+    in.position(in.position() + skip);
+    in.get(address, 0, length);
+    addressLength = length;
+    port = in.getShort() & 0xFFFF;
+    return true;
+  }
+
+  /**
+   * SOCKS4 or SOCKS4a request of a client, with the user id and for SOCKS4a
+   * the host name, both terminated by a zero byte.
+   */
+  boolean parseSocks4Request(final ByteBuffer in) throws SocksException {
+    final int start = in.position();
+    if (in.remaining() < SOCKS4_HEADER + 1) {
+      return false;
+    }
+    final int userEnd = indexOfZero(in, start + SOCKS4_HEADER);
+    if (userEnd < 0) {
+      return false;
+    }
+    final boolean socks4a = isSocks4a(in, start + 4);
+    final int hostEnd = socks4a ? indexOfZero(in, userEnd + 1) : userEnd;
+    if (hostEnd < 0) {
+      return false;
+    }
+    clear();
+    version = in.get() & 0xFF;
+    checkVersion(Socks4Message.SOCKS_VERSION);
+    command = in.get() & 0xFF;
+    port = in.getShort() & 0xFFFF;
+    userLength = userEnd - start - SOCKS4_HEADER;
+    if (socks4a) {
+      addressType = Socks5Message.SOCKS_ATYP_DOMAINNAME;
+      addressLength = hostEnd - userEnd - 1;
+      in.position(start + SOCKS4_HEADER);
+      in.get(user, 0, userLength);
+      in.get();
+      in.get(address, 0, addressLength);
+    }
+    else {
+      addressType = Socks5Message.SOCKS_ATYP_IPV4;
+      addressLength = 4;
+      in.get(address, 0, 4);
+      in.get(user, 0, userLength);
+    }
+    in.get();
+    return true;
+  }
+
+  /**
+   * SOCKS4 reply of a server, the reply code is kept as command.
+   */
+  boolean parseSocks4Reply(final ByteBuffer in) {
+    if (in.remaining() < SOCKS4_HEADER) {
+      return false;
+    }
+    clear();
+    version = in.get() & 0xFF;
+    command = in.get() & 0xFF;
+    port = in.getShort() & 0xFFFF;
+    addressType = Socks5Message.SOCKS_ATYP_IPV4;
+    in.get(address, 0, 4);
+    addressLength = 4;
+    return true;
+  }
+
+  int getVersion() {
+    return version;
+  }
+
+  int getCommand() {
+    return command;
+  }
+
+  /**
+   * One of the SOCKS5 address types, SOCKS4 requests use IPV4 or DOMAINNAME
+   * for SOCKS4a.
+   */
+  int getAddressType() {
+    return addressType;
+  }
+
+  int getPort() {
+    return port;
+  }
+
+  /**
+   * The raw address, valid up to {@link #getAddressLength()}, without the
+   * length byte of a domain name.
+   */
+  byte[] getAddress() {
+    return address;
+  }
+
+  int getAddressLength() {
+    return addressLength;
+  }
+
+  boolean hasMethod(final int method) {
+    for (int i = 0; i < methodCount; i++) {
+      if (method == (methods[i] & 0xFF)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The offered methods, valid up to {@link #getMethodCount()}.
+   */
+  byte[] getMethods() {
+    return methods;
+  }
+
+  int getMethodCount() {
+    return methodCount;
+  }
+
+  /**
+   * Address as InetAddress, null for a domain name. Allocates.
+   */
+  InetAddress toInetAddress() {
+    if (Socks5Message.SOCKS_ATYP_DOMAINNAME == addressType) {
+      return null;
+    }
+    try {
+      return InetAddress.getByAddress(Arrays.copyOf(address, addressLength));
+    }
+    catch (final UnknownHostException e) {
+      // Only thrown for illegal lengths.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Domain name, or the numeric form of an address, never resolved.
+   * Allocates.
+   */
+  String getHost() {
+    if (Socks5Message.SOCKS_ATYP_DOMAINNAME == addressType) {
+      return new String(address, 0, addressLength, StandardCharsets.ISO_8859_1);
+    }
+    return toInetAddress().getHostAddress();
+  }
+
+  /**
+   * User name of a username/password authentication, or the user id of a
+   * SOCKS4 request. Allocates.
+   */
+  String getUser() {
+    return new String(user, 0, userLength, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Password of a username/password authentication. Allocates.
+   */
+  String getPassword() {
+    return new String(password, 0, passwordLength, StandardCharsets.ISO_8859_1);
+  }
+
+  // Private methods
+  // ///////////////
+
+  private void clear() {
+    version = 0;
+    command = 0;
+    addressType = 0;
+    port = 0;
+    addressLength = 0;
+    methodCount = 0;
+    userLength = 0;
+    passwordLength = 0;
+  }
+
+  private void checkVersion(final int expected) throws SocksException {
+    if (expected != version) {
+      throw new SocksException(SocksProxyBase.SOCKS_JUST_ERROR, "Unexpected version " + version);
+    }
+  }
+
+  /**
+   * Tells wether the address at the given index is 0.0.0.x with x not
+   * zero, which marks a SOCKS4a request.
+   */
+  private static boolean isSocks4a(final ByteBuffer in, final int index) {
+    return 0 == in.get(index) && 0 == in.get(index + 1) && 0 == in.get(index + 2) && 0 != in.get(index + 3);
+  }
+
+  /**
+   * Index of the zero byte ending the field starting at the given index, -1
+   * if it did not arrive yet.
+   *
+   * @throws SocksException
+   *     If the field is longer than {@link #MAX_FIELD}.
+   */
+  private static int indexOfZero(final ByteBuffer in, final int from) throws SocksException {
+    final int end = Math.min(in.limit(), from + MAX_FIELD + 1);
+    for (int i = from; i < end; i++) {
+      if (0 == in.get(i)) {
+        return i;
+      }
+    }
+    if (end - from > MAX_FIELD) {
+      throw new SocksException(SocksProxyBase.SOCKS_JUST_ERROR, "Field too long");
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,13 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+/**
+ * Enum selecting how a proxy server relays the data of established sessions.
+ * <p/>
+ * BLOCKING uses two threads of the executor per tunnel, one for each direction. SELECTOR hands CONNECT tunnels over
+ * to a small group of event loops, each multiplexing many tunnels over a single {@link java.nio.channels.Selector}.
+ * VIRTUAL_THREAD keeps the blocking design but runs every session and both of its directions on virtual threads,
+ * it requires Java 21 or later and falls back to BLOCKING otherwise.
+ */
+public enum ProxyEngine {
+  BLOCKING, SELECTOR, VIRTUAL_THREAD
+}
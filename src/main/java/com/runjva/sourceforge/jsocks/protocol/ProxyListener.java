@@ -0,0 +1,157 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticator;
+
+/**
+ * An address and port a {@link ProxyServer} accepts connections on, see
+ * {@link ProxyServer#addListener(ProxyListener)}.
+ * <p/>
+ * Sessions of all listeners share the threads, event loops, buffers, timers
+ * and caches of the server, and count towards its limits. A listener may
+ * authenticate its sessions with its own scheme and limit them further.
+ * <p/>
+ * A listener without local address accepts on all local addresses, on a
+ * dual stack host that includes IPv4 clients on an IPv6 socket. To serve
+ * IPv4 and IPv6 on distinct addresses, add a listener for each of them.
+ */
+public class ProxyListener {
+  private final InetAddress localIP;
+  private final int port;
+  private final int backlog;
+  private final ServerSocketChannel adopted;
+  private ServerAuthenticator auth;
+  private int maxSessions;
+  private int sessionWatermark;
+  private int maxHandshakes;
+
+  // Set while the server runs.
+  private ServerSocket socket;
+  private ServerSocketChannel channel;
+  private AdmissionControl admission;
+  private volatile ProxyServerParams params;
+
+  /**
+   * @param port
+   *     Port to listen on, zero picks a free one.
+   * @param backlog
+   *     Listen backlog.
+   * @param localIP
+   *     Address to listen on, null for all local addresses.
+   */
+  public ProxyListener(final int port, final int backlog, final InetAddress localIP) {
+    this.localIP = localIP;
+    this.port = port;
+    this.backlog = backlog;
+    this.adopted = null;
+  }
+
+  /**
+   * Listener accepting on an already bound channel, which is never closed by
+   * the server.
+   */
+  ProxyListener(final ServerSocketChannel adopted) {
+    this.localIP = null;
+    this.port = 0;
+    this.backlog = 0;
+    this.adopted = adopted;
+  }
+
+  /**
+   * Set the authentication scheme of the sessions of this listener, null
+   * uses the one of the server, which is the default.
+   */
+  public void setAuthenticator(final ServerAuthenticator auth) {
+    this.auth = auth;
+    params = null;
+  }
+
+  /**
+   * Limits the sessions of this listener, on top of the limits of the
+   * server, see {@link ProxyServer#setSessionLimits(int, int, int)}. Applies
+   * from the next start.
+   */
+  public void setSessionLimits(final int maxSessions, final int sessionWatermark, final int maxHandshakes) {
+    this.maxSessions = maxSessions;
+    this.sessionWatermark = sessionWatermark;
+    this.maxHandshakes = maxHandshakes;
+  }
+
+  /**
+   * Port the listener accepts on, once the server started.
+   */
+  public int getPort() {
+    final ServerSocket current = socket;
+    if (null == current) {
+      throw new IllegalStateException("Listener is not bound");
+    }
+    return current.getLocalPort();
+  }
+
+  InetAddress getLocalIP() {
+    return localIP;
+  }
+
+  int getRequestedPort() {
+    return port;
+  }
+
+  int getBacklog() {
+    return backlog;
+  }
+
+  /**
+   * The channel given to {@link #ProxyListener(ServerSocketChannel)}, or
+   * null if the server binds the listener itself.
+   */
+  ServerSocketChannel getAdopted() {
+    return adopted;
+  }
+
+  ServerSocket getSocket() {
+    return socket;
+  }
+
+  /**
+   * Channel of the listener, null if the blocking engine bound it.
+   */
+  ServerSocketChannel getChannel() {
+    return channel;
+  }
+
+  AdmissionControl getAdmission() {
+    return admission;
+  }
+
+  /**
+   * Attach the bound socket and the admission control of the server.
+   */
+  void opened(final ServerSocket socket, final ServerSocketChannel channel, final AdmissionControl server) {
+    this.socket = socket;
+    this.channel = channel;
+    if (0 == maxSessions && 0 == sessionWatermark && 0 == maxHandshakes) {
+      admission = server;
+    }
+    else {
+      admission = new AdmissionControl(server);
+      admission.setLimits(maxSessions, sessionWatermark, maxHandshakes);
+    }
+    params = null;
+  }
+
+  /**
+   * The settings of the server, with the authenticator and admission control
+   * of this listener.
+   */
+  ProxyServerParams getParams(final ProxyServerParams server) {
+    ProxyServerParams p = params;
+    if (null == p || !p.isDerivedFrom(server)) {
+      p = server.forListener(null == auth ? server.getAuth() : auth, admission);
+      params = p;
+    }
+    return p;
+  }
+}
@@ -1,10 +1,12 @@
 package com.runjva.sourceforge.jsocks.protocol;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 
 /**
  * Abstract class which describes SOCKS4/5 response/request.
@@ -32,7 +34,8 @@ public abstract class ProxyMessage {
   public int command;
 
   /**
-   * Host as string.
+   * Host as string. Null for a message built from an IP, see
+   * {@link #getHost()}.
    */
   public String host = null;
 
@@ -102,6 +105,17 @@ public abstract class ProxyMessage {
     return ip;
   }
 
+  /**
+   * Get the host of this message, for a message built from an IP its
+   * numeric form, made when first asked for. Never looks up a host name.
+   */
+  public String getHost() {
+    if (null == host && null != ip) {
+      host = ip.getHostAddress();
+    }
+    return host;
+  }
+
   /**
    * Get string representaion of this message.
    *
@@ -125,8 +139,35 @@ public abstract class ProxyMessage {
   }
 
   static final String bytes2IPV6(byte[] addr, int offset) {
-    // Have no idea how they look like!
-    return null;
+    try {
+      return InetAddress.getByAddress(Arrays.copyOfRange(addr, offset, offset + 16)).getHostAddress();
+    }
+    catch (final UnknownHostException e) {
+      // Only thrown for illegal lengths.
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Reads a byte, without wrapping the stream in a DataInputStream.
+   */
+  static final int readUnsignedByte(InputStream in) throws IOException {
+    final int b = in.read();
+    if (b < 0) {
+      throw new EOFException();
+    }
+    return b;
+  }
+
+  static final void readFully(InputStream in, byte[] buf) throws IOException {
+    int read = 0;
+    while (read < buf.length) {
+      final int len = in.read(buf, read, buf.length - read);
+      if (len < 0) {
+        throw new EOFException();
+      }
+      read += len;
+    }
   }
 
 }
@@ -1,12 +1,23 @@
 package com.runjva.sourceforge.jsocks.protocol;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
@@ -14,6 +25,7 @@ import org.slf4j.LoggerFactory;
 
 import com.runjva.sourceforge.jsocks.monitor.LogProxyMonitor;
 import com.runjva.sourceforge.jsocks.monitor.ProxyMonitor;
+import com.runjva.sourceforge.jsocks.server.NonBlockingAuthenticator;
 import com.runjva.sourceforge.jsocks.server.ServerAuthenticator;
 
 /**
@@ -42,29 +54,81 @@ public class ProxyServer {
         }
       };
 
-  private static final ThreadFactory DEFAULT_THREAD_FACTORY = new ThreadFactory() {
-    private final AtomicLong COUNTER = new AtomicLong();
+  /**
+   * How often the blocking engine checks for a stop while accepting on an
+   * adopted listener, which it must not close.
+   */
+  private static final int ADOPTED_ACCEPT_TIMEOUT = 500;
+  private static final long ACCEPT_STOP_TIMEOUT = 2 * ADOPTED_ACCEPT_TIMEOUT;
 
-    @Override
-    public Thread newThread(final Runnable runnable) {
-      final Thread thread = new Thread(runnable);
-      thread.setName("ProxyServer-thread-" + COUNTER.incrementAndGet());
-      thread.setUncaughtExceptionHandler(UNCAUGHT_EXCEPTION_HANDLER);
-      return thread;
-    }
-  };
+  private static final int DEFAULT_TIMEOUT = 180000; // 3 minutes
+
+  private static final ThreadFactory DEFAULT_THREAD_FACTORY = newThreadFactory("ProxyServer-thread-");
+  private static final ThreadFactory SELECTOR_THREAD_FACTORY = newThreadFactory("ProxyServer-selector-");
+  private static final ThreadFactory ACCEPTOR_THREAD_FACTORY = newThreadFactory("ProxyServer-acceptor-");
 
   private ServerSocket ss;
-  private final ServerAuthenticator auth;
+  private ServerAuthenticator auth;
   private final ProxyMonitor monitor;
-
+  private RelayEventLoopGroup relay;
+  private AcceptorLoop[] acceptorLoops;
+  private volatile ProxyServerParams params;
 
   private final ExecutorService executorService;
+  private ExecutorService virtualExecutorService;
   private SocksProxyBase proxy;
   private final Object statusMutex = new Object();
   private ProxyStatus proxyStatus = ProxyStatus.STOPED;
-  private int idleTimeout = 180000; // 3 minutes
-  private int acceptTimeout = 180000; // 3 minutes
+  private volatile boolean stopping;
+  private final List<ProxyListener> listeners = new CopyOnWriteArrayList<ProxyListener>();
+  private volatile List<ProxyListener> bound;
+  private volatile CountDownLatch blockingAccept;
+  private int idleTimeout = DEFAULT_TIMEOUT;
+  private int acceptTimeout = DEFAULT_TIMEOUT;
+  private int handshakeTimeout = AdmissionControl.DEFAULT_HANDSHAKE_TIMEOUT;
+  private ProxyEngine engine = ProxyEngine.BLOCKING;
+  private int eventLoops = Runtime.getRuntime().availableProcessors();
+  private int acceptors = 1;
+  private long maxPooledBufferBytes = BufferPool.DEFAULT_MAX_BYTES;
+  private LoadBalancing loadBalancing = LoadBalancing.ROUND_ROBIN;
+  private int minBufferSize = BufferSizing.DEFAULT_MIN;
+  private int initialBufferSize = BufferSizing.DEFAULT_INITIAL;
+  private int maxBufferSize = BufferSizing.DEFAULT_MAX;
+  private long maxGrownBufferMemory = BufferSizing.DEFAULT_MAX_GROWN_BYTES;
+  private boolean tuneSocketBuffers = false;
+  private BufferSizing bufferSizing = newBufferSizing();
+  private final RelayCounters relayCounters = new RelayCounters();
+  private final TimingWheel timingWheel = new TimingWheel();
+  private boolean coalesceWrites = false;
+  private int connectTimeout = HappyEyeballsConnector.DEFAULT_CONNECT_TIMEOUT;
+  private int connectAttemptDelay = HappyEyeballsConnector.DEFAULT_ATTEMPT_DELAY;
+  private final RttTable connectRtts = new RttTable(RttTable.DEFAULT_MAX_ADDRESSES);
+  private final AdmissionControl admission = new AdmissionControl();
+  private int maxSessions;
+  private int sessionWatermark;
+  private int maxHandshakes;
+  private int shedTargetDelay = AdmissionControl.DEFAULT_TARGET_DELAY;
+  private int shedInterval = AdmissionControl.DEFAULT_INTERVAL;
+  private long globalRate;
+  private long globalBurst;
+  private long userRate;
+  private long userBurst;
+  private long connectionRate;
+  private long connectionBurst;
+  private BandwidthShaper shaper = newShaper();
+  private FairShare fairShare = new FairShare();
+  private RelayMemoryBudget memoryBudget = new RelayMemoryBudget(RelayMemoryBudget.DEFAULT_MAX_BYTES,
+      RelayMemoryBudget.DEFAULT_LOW_WATERMARK, RelayMemoryBudget.DEFAULT_HIGH_WATERMARK);
+  private final SessionRegistry sessions = new SessionRegistry();
+  private int udpTimeout = UDPRelayServer.DEFAULT_TIMEOUT;
+  private int datagramSize = UDPRelayServer.DEFAULT_DATAGRAM_SIZE;
+  private final Object configMutex = new Object();
+  private int handshakeThreads;
+  private int resolveThreads;
+  private int connectThreads;
+  private int stageQueueSize;
+  private SessionStages stages;
+  private AccessLog accessLog = new AccessLog(new HostNameCache(HostNameResolver.SYSTEM));
 
   /**
    * Creates a proxy server with the given Authentication scheme, using the default thread factory and no monitoring.
@@ -110,6 +174,58 @@ public class ProxyServer {
   // Public methods
   // ///////////////
 
+  /**
+   * Apply several settings at once.
+   * <p/>
+   * The settings of a server are published as an immutable snapshot, which
+   * every session takes when it starts and keeps until it ends. The setters
+   * called by the given update, on this thread, publish a single new
+   * snapshot when the update is done, so no session sees only some of them.
+   * Sessions already running keep their snapshot, starting sessions never
+   * wait for the update.
+   */
+  public void reconfigure(final Runnable update) {
+    synchronized (configMutex) {
+      try {
+        update.run();
+      }
+      finally {
+        publish();
+      }
+    }
+  }
+
+  /**
+   * Restore the defaults of the settings of new sessions: the timeouts, the
+   * datagram size, the chained proxy, the session limits and the load
+   * shedding.<br>
+   * Called by a {@link #reconfigure(Runnable)} update before it applies a
+   * whole configuration, settings no longer configured are back to their
+   * defaults that way.
+   */
+  public void resetSettings() {
+    idleTimeout = DEFAULT_TIMEOUT;
+    acceptTimeout = DEFAULT_TIMEOUT;
+    handshakeTimeout = AdmissionControl.DEFAULT_HANDSHAKE_TIMEOUT;
+    udpTimeout = UDPRelayServer.DEFAULT_TIMEOUT;
+    datagramSize = UDPRelayServer.DEFAULT_DATAGRAM_SIZE;
+    proxy = null;
+    maxSessions = 0;
+    sessionWatermark = 0;
+    maxHandshakes = 0;
+    shedTargetDelay = AdmissionControl.DEFAULT_TARGET_DELAY;
+    shedInterval = AdmissionControl.DEFAULT_INTERVAL;
+    changed();
+  }
+
+  /**
+   * Set the authentication scheme of new sessions.
+   */
+  public void setAuthenticator(final ServerAuthenticator auth) {
+    this.auth = auth;
+    changed();
+  }
+
   /**
    * Set proxy.
    * <p/>
@@ -123,8 +239,7 @@ public class ProxyServer {
    */
   public void setProxy(final SocksProxyBase p) {
     proxy = p;
-    // FIXME: Side effect.
-    UDPRelayServer.proxy = proxy;
+    changed();
   }
 
   /**
@@ -144,6 +259,19 @@ public class ProxyServer {
    */
   public void setIdleTimeout(final int timeout) {
     idleTimeout = timeout;
+    changed();
+  }
+
+  /**
+   * Sets the time a client has for greeting, authentication and request,
+   * after which the connection is reset. The idle timeout only starts once
+   * the request is read.<br>
+   * Zero timeout implies infinity.<br>
+   * Default timeout is 30 seconds.
+   */
+  public void setHandshakeTimeout(final int timeout) {
+    handshakeTimeout = timeout;
+    changed();
   }
 
   /**
@@ -154,6 +282,301 @@ public class ProxyServer {
    */
   public void setAcceptTimeout(final int timeout) {
     acceptTimeout = timeout;
+    changed();
+  }
+
+  /**
+   * Sets the engine used to relay established tunnels.<br>
+   * With the SELECTOR engine CONNECT tunnels are relayed by a few event loop
+   * threads, BIND and UDP ASSOCIATE requests, as well as tunnels through a
+   * chained proxy, are still relayed by blocking threads.<br>
+   * With the VIRTUAL_THREAD engine sessions run on virtual threads instead
+   * of the threads of the executor given to the constructor.<br>
+   * Must be called before the server is started. Default engine is BLOCKING.
+   */
+  public void setEngine(final ProxyEngine engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * Sets the number of event loop threads used by the SELECTOR engine.<br>
+   * Default is the number of available processors.
+   */
+  public void setEventLoops(final int eventLoops) {
+    this.eventLoops = eventLoops;
+  }
+
+  /**
+   * Sets the number of acceptor loops used by the SELECTOR engine.<br>
+   * The acceptors share the listening socket and only accept connections,
+   * the handshake and the relay happen on the event loops.<br>
+   * Default is a single acceptor, running on the thread calling start.
+   */
+  public void setAcceptors(final int acceptors) {
+    this.acceptors = acceptors;
+  }
+
+  /**
+   * Sets how many bytes of relay buffers each event loop of the SELECTOR
+   * engine keeps for reuse.<br>
+   * Tunnels only hold a buffer while data is in flight, so this bounds the
+   * direct memory kept by an idle server. The buffers kept count against the
+   * relay memory limit. Default is 4 MB per event loop.
+   */
+  public void setMaxPooledBufferBytes(final long bytes) {
+    this.maxPooledBufferBytes = bytes;
+  }
+
+  /**
+   * Sets how the SELECTOR engine spreads accepted connections over the event
+   * loops.<br>
+   * Default is ROUND_ROBIN.
+   */
+  public void setLoadBalancing(final LoadBalancing loadBalancing) {
+    this.loadBalancing = loadBalancing;
+  }
+
+  /**
+   * Sets the sizes of the relay buffers.<br>
+   * Every tunnel direction starts with the initial size, grows while reads
+   * fill the whole buffer and shrinks again when reads get small or rare.
+   * Sizes must be powers of two from 1K to 128K.<br>
+   * Must be called before the server is started. Default sizes are 1K, 8K
+   * and 128K.
+   *
+   * @throws IllegalArgumentException
+   *     If a size is not supported or min <= initial <= max does not hold.
+   */
+  public void setBufferSizes(final int min, final int initial, final int max) {
+    bufferSizing = new BufferSizing(min, initial, max, maxGrownBufferMemory, tuneSocketBuffers);
+    minBufferSize = min;
+    initialBufferSize = initial;
+    maxBufferSize = max;
+    changed();
+  }
+
+  /**
+   * Sets how much memory all relay buffers together may use beyond their
+   * initial size. Once the limit is reached buffers stop growing.<br>
+   * Default is 64M.
+   */
+  public void setMaxGrownBufferMemory(final long bytes) {
+    maxGrownBufferMemory = bytes;
+    bufferSizing = newBufferSizing();
+    changed();
+  }
+
+  /**
+   * Sets wether the SO_RCVBUF and SO_SNDBUF options of the relayed sockets
+   * follow the size of the relay buffers.<br>
+   * Setting these options turns off the automatic tuning of the operating
+   * system on some platforms. Default is false.
+   */
+  public void setTuneSocketBuffers(final boolean tuneSocketBuffers) {
+    this.tuneSocketBuffers = tuneSocketBuffers;
+    bufferSizing = newBufferSizing();
+    changed();
+  }
+
+  /**
+   * Sets wether relayed data already available is gathered into a single
+   * write.<br>
+   * Instead of writing and flushing every chunk as soon as it was read, the
+   * relay keeps reading while the source has more data ready and flushes
+   * only when it would block. This means fewer system calls and segments for
+   * streams of small chunks. Default is false.
+   */
+  public void setCoalesceWrites(final boolean coalesceWrites) {
+    this.coalesceWrites = coalesceWrites;
+    changed();
+  }
+
+  /**
+   * Sets the timeout for connecting to the remote host of a CONNECT
+   * request.<br>
+   * If no address of the host accepted the connection in time, the request
+   * fails with a TTL expired reply. Zero timeout implies infinity. Default is
+   * 30 seconds.
+   *
+   * @param timeout
+   *     Timeout in milliseconds.
+   */
+  public void setConnectTimeout(final int timeout) {
+    this.connectTimeout = timeout;
+    changed();
+  }
+
+  /**
+   * Sets the delay between connection attempts to the addresses of a
+   * host.<br>
+   * Hosts with several addresses are connected to by racing attempts to
+   * them, the next one starts if the previous one did not succeed within this
+   * delay. Default is 250 milliseconds.
+   *
+   * @param delay
+   *     Delay in milliseconds.
+   */
+  public void setConnectAttemptDelay(final int delay) {
+    this.connectAttemptDelay = delay;
+    changed();
+  }
+
+  /**
+   * Sets the limits on concurrent sessions.<br>
+   * Connections beyond maxSessions, or accepted while maxHandshakes
+   * handshakes are in progress, are closed right away. Sessions accepted
+   * above the sessionWatermark get a failure reply instead of being served,
+   * so the server degrades before it reaches its hard limit. Zero means no
+   * limit, which is the default for all of them.
+   */
+  public void setSessionLimits(final int maxSessions, final int sessionWatermark, final int maxHandshakes) {
+    this.maxSessions = maxSessions;
+    this.sessionWatermark = sessionWatermark;
+    this.maxHandshakes = maxHandshakes;
+    changed();
+  }
+
+  /**
+   * Sets how sessions are shed when their handshake waits too long for a
+   * thread.<br>
+   * Once the time from accept to the start of the handshake stayed above
+   * targetDelay for a whole interval, new sessions get a failure reply at an
+   * increasing rate until the delay is back below the target, like CoDel
+   * does for packets. Zero targetDelay turns shedding off. Default is 100
+   * milliseconds and an interval of 1 second.
+   */
+  public void setLoadShedding(final int targetDelay, final int interval) {
+    shedTargetDelay = targetDelay;
+    shedInterval = interval;
+    changed();
+  }
+
+  /**
+   * Limits the bandwidth relayed by the whole server.<br>
+   * Bytes relayed in either direction of every session count against the
+   * limit. Zero rate means no limit, which is the default.
+   *
+   * @param rate
+   *     Bytes per second.
+   * @param burst
+   *     Bytes that may be relayed at once after a pause.
+   * @throws IllegalArgumentException
+   *     If the rate is negative or the burst is not positive.
+   */
+  public void setBandwidthLimit(final long rate, final long burst) {
+    shaper = new BandwidthShaper(rate, burst, userRate, userBurst, connectionRate, connectionBurst);
+    globalRate = rate;
+    globalBurst = burst;
+    changed();
+  }
+
+  /**
+   * Limits the bandwidth shared by all sessions of the same authenticated
+   * user, or of the same client address for anonymous sessions.<br>
+   * Applies within the limit of the whole server, see
+   * {@link #setBandwidthLimit(long, long)}.
+   */
+  public void setUserBandwidthLimit(final long rate, final long burst) {
+    shaper = new BandwidthShaper(globalRate, globalBurst, rate, burst, connectionRate, connectionBurst);
+    userRate = rate;
+    userBurst = burst;
+    changed();
+  }
+
+  /**
+   * Limits the bandwidth of every single session.<br>
+   * Applies within the limits of its user and of the whole server, see
+   * {@link #setBandwidthLimit(long, long)}.
+   */
+  public void setConnectionBandwidthLimit(final long rate, final long burst) {
+    shaper = new BandwidthShaper(globalRate, globalBurst, userRate, userBurst, rate, burst);
+    connectionRate = rate;
+    connectionBurst = burst;
+    changed();
+  }
+
+  /**
+   * Sets how much data may be in flight through the SELECTOR engine.<br>
+   * Every tunnel direction keeps reading ahead of a slower writer until the
+   * pending data reaches the high watermark, and resumes once it drained
+   * below the low watermark. Independently, no tunnel reads anymore while
+   * the buffers of all tunnels, together with the buffers the event loops
+   * keep for reuse, hold maxBytes. Must be called before
+   * the server is started. Defaults are 256M, 32K and 128K.
+   *
+   * @throws IllegalArgumentException
+   *     If maxBytes is not positive or 0 <= low < high does not hold.
+   */
+  public void setRelayMemoryLimits(final long maxBytes, final int lowWatermark, final int highWatermark) {
+    memoryBudget = new RelayMemoryBudget(maxBytes, lowWatermark, highWatermark);
+    changed();
+  }
+
+  /**
+   * Adds a class of users sharing the relay capacity of the SELECTOR engine
+   * by weight, or changes the weight of an existing one.<br>
+   * When an event loop cannot keep up with its ready tunnels, every class
+   * gets bytes relayed in proportion to its weight, for instance premium
+   * users with weight 4 get four times what bulk users with weight 1 get.
+   * Users without a class belong to the "default" class of weight 1.
+   *
+   * @throws IllegalArgumentException
+   *     If the weight is not positive.
+   */
+  public void setSchedulingClass(final String name, final int weight) {
+    fairShare = fairShare.withClass(name, weight);
+    changed();
+  }
+
+  /**
+   * Assigns an authenticated user to a scheduling class, see
+   * {@link #setSchedulingClass(String, int)}.
+   *
+   * @throws IllegalArgumentException
+   *     If there is no such class.
+   */
+  public void setUserSchedulingClass(final String user, final String className) {
+    fairShare = fairShare.withUser(user, className);
+    changed();
+  }
+
+  /**
+   * Get the relay metrics of this server, like the buffer sizes chosen by
+   * the tunnels and the number of read and write calls per relayed byte.
+   */
+  public RelayStatistics getStatistics() {
+    return new RelayStatistics(bufferSizing, relayCounters, admission, fairShare, memoryBudget, stages);
+  }
+
+  /**
+   * Split the handshake into stages with their own threads and queues, see
+   * {@link RelayStatistics#getStageQueueDepths()} for their metrics. The
+   * handshake stage authenticates and reads the request, the resolve stage
+   * looks up host names and the connect stage opens the outbound connection.
+   * A session is dropped when the queue of its next stage is full. Applies
+   * from the next start, zero handshake threads disable the stages, which is
+   * the default.
+   *
+   * @param queueSize
+   *     Number of sessions each stage queues at most.
+   */
+  public void setStages(final int handshakeThreads, final int resolveThreads, final int connectThreads,
+      final int queueSize) {
+    this.handshakeThreads = handshakeThreads;
+    this.resolveThreads = resolveThreads;
+    this.connectThreads = connectThreads;
+    this.stageQueueSize = queueSize;
+  }
+
+  /**
+   * Sets how the access log looks up the host names of clients. Lookups run
+   * in the background and never delay accepting, a session whose lookup did
+   * not finish in time is logged with the numeric address only.<br>
+   * Null disables the lookups. Default is {@link HostNameResolver#SYSTEM}.
+   */
+  public void setClientNameResolver(final HostNameResolver resolver) {
+    accessLog = new AccessLog(null == resolver ? null : new HostNameCache(resolver));
+    changed();
   }
 
   /**
@@ -162,7 +585,8 @@ public class ProxyServer {
    * Default timeout is 3 minutes.
    */
   public void setUDPTimeout(final int timeout) {
-    UDPRelayServer.setTimeout(timeout);
+    udpTimeout = timeout;
+    changed();
   }
 
   /**
@@ -171,7 +595,8 @@ public class ProxyServer {
    * datagram.
    */
   public void setDatagramSize(final int size) {
-    UDPRelayServer.setDatagramSize(size);
+    datagramSize = size;
+    changed();
   }
 
   /**
@@ -234,54 +659,475 @@ public class ProxyServer {
    * its addresses. If localIP is null, it will default accepting connections
    * on any/all local addresses. The port must be between 0 and 65535,
    * inclusive. <br>
+   * Listeners added with {@link #addListener(ProxyListener)} are started as
+   * well.<br>
    * This methods blocks.
    */
   public void start(final int port, final int backlog,
       final InetAddress localIP) {
+    start(new ProxyListener(port, backlog, localIP));
+  }
+
+  /**
+   * Serve connections accepted on an already bound listener, like the one
+   * returned by {@link System#inheritedChannel()} when started by a
+   * supervisor which keeps the port open across restarts.<br>
+   * The listener stays open when the server stops or drains, so another
+   * server can keep accepting on it. Several servers may accept on the same
+   * listener at once, as long as they use the same engine.<br>
+   * This methods blocks.
+   */
+  public void start(final ServerSocketChannel channel) {
+    start(new ProxyListener(channel));
+  }
+
+  /**
+   * Start the Proxy server on the listeners added with
+   * {@link #addListener(ProxyListener)}, {@link #getPort()} is the port of
+   * the first one.<br>
+   * This methods blocks.
+   */
+  public void start() {
+    start((ProxyListener) null);
+  }
+
+  /**
+   * Accept connections on another address and port as well. All listeners
+   * share the threads, event loops, buffers and caches of this server.
+   * Applies from the next start.
+   */
+  public void addListener(final ProxyListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Stop accepting connections and give the open sessions up to the given
+   * time to finish, before stopping the server. Idle sessions are closed
+   * first, the progress is logged every second.
+   *
+   * @param timeout
+   *     Time in milliseconds to wait for the sessions to end.
+   * @return true if all sessions ended by themselves or were idle, false if
+   *         some had to be closed while still active.
+   */
+  public boolean drain(final long timeout) throws InterruptedException {
+    setProxyStatus(ProxyStatus.DRAINING);
+    stopAccepting();
+
+    final int forced = sessions.drain(timeout, timingWheel);
+    // Tunnels close on their loops, which run the queued closes before
+    // stopping, so the monitor still sees every session end.
+    stop();
+    return 0 == forced;
+  }
+
+  /**
+   * Stop server operation.It would be wise to interrupt thread running the
+   * server afterwards.
+   */
+  public void stop() {
+    try {
+      stopAccepting();
+    }
+    finally {
+      setProxyStatus(ProxyStatus.STOPED);
+      executorService.shutdown();
+      if (null != virtualExecutorService) {
+        virtualExecutorService.shutdown();
+      }
+      if (null != stages) {
+        stages.shutdown();
+      }
+      if (null != relay) {
+        relay.shutdown();
+      }
+      timingWheel.stop();
+    }
+
+  }
+
+  // Private methods
+  // ///////////////
+
+  private void start(final ProxyListener primary) {
+    final List<ProxyListener> all = new ArrayList<ProxyListener>();
+    if (null != primary) {
+      all.add(primary);
+    }
+    all.addAll(listeners);
+    if (all.isEmpty()) {
+      throw new IllegalStateException("No listener to start");
+    }
+    stopping = false;
+    bound = all;
+    timingWheel.start("ProxyServer-timer");
+    if (0 < handshakeThreads) {
+      stages = new SessionStages(newStage(SessionStages.HANDSHAKE, handshakeThreads),
+          newStage(SessionStages.RESOLVE, resolveThreads), newStage(SessionStages.CONNECT, connectThreads));
+      changed();
+    }
     try {
-      ss = new ServerSocket(port, backlog, localIP);
-      final String address = ss.getInetAddress().getHostAddress();
-      final int localPort = ss.getLocalPort();
-      log.info("Starting SOCKS Proxy on: {}:{}", address, localPort);
-      setProxyStatus(ProxyStatus.STARTED);
-
-      while (true) {
-        final Socket s = ss.accept();
-        final String hostName = s.getInetAddress().getHostName();
-        final int port2 = s.getPort();
-        log.info("Accepted from:{}:{}", hostName, port2);
-
-        final ProxyServerParams params =
-            new ProxyServerParams(idleTimeout, acceptTimeout, proxy, auth, executorService, monitor);
-        executorService
-            .submit(new ProxyServerRunnable(params, monitor.monitor(ProxyMonitor.StreamEndpoint.CLIENT, s, null)));
+      for (final ProxyListener listener : all) {
+        open(listener);
+      }
+      ss = all.get(0).getSocket();
+      if (ProxyEngine.SELECTOR == engine) {
+        startSelector(all);
+      }
+      else {
+        if (ProxyEngine.VIRTUAL_THREAD == engine) {
+          startVirtualThreads();
+        }
+        blockingAccept = new CountDownLatch(all.size());
+        startBlocking(all);
       }
     }
     catch (final IOException ioe) {
-      log.error("Can't start proxy", ioe);
-      setProxyStatus(ProxyStatus.ERROR);
+      if (stopping) {
+        log.debug("Proxy stopped accepting", ioe);
+      }
+      else {
+        log.error("Can't start proxy", ioe);
+        closeListeners();
+        setProxyStatus(ProxyStatus.ERROR);
+      }
+    }
+  }
+
+  private void stopAccepting() {
+    stopping = true;
+    try {
+      closeListeners();
     }
     finally {
+      if (null != acceptorLoops) {
+        for (final AcceptorLoop acceptorLoop : acceptorLoops) {
+          acceptorLoop.shutdown();
+        }
+      }
+    }
+    // Connections accepted meanwhile must reach a session, before the
+    // executor and the loops shut down.
+    try {
+      awaitAcceptors();
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 
   /**
-   * Stop server operation.It would be wise to interrupt thread running the
-   * server afterwards.
+   * Close the listeners bound by this server, adopted ones stay open.
    */
-  public void stop() {
+  private void closeListeners() {
+    final List<ProxyListener> current = bound;
+    if (null == current) {
+      return;
+    }
+    for (final ProxyListener listener : current) {
+      final ServerSocket socket = listener.getSocket();
+      if (null != socket && null == listener.getAdopted()) {
+        try {
+          socket.close();
+        }
+        catch (final IOException ioe) {
+          log.warn("Exception thrown closing the server socket", ioe);
+        }
+      }
+    }
+  }
+
+  private void awaitAcceptors() throws InterruptedException {
+    final CountDownLatch accept = blockingAccept;
+    if (null != accept && !accept.await(ACCEPT_STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+      log.warn("Accepting thread did not stop");
+    }
+    if (null != acceptorLoops) {
+      for (final AcceptorLoop acceptorLoop : acceptorLoops) {
+        if (!acceptorLoop.awaitStopped(ACCEPT_STOP_TIMEOUT)) {
+          log.warn("Acceptor loop did not stop");
+        }
+      }
+    }
+  }
+
+  /**
+   * Bind or adopt the listener, blocking unless the selector engine accepts
+   * on it.
+   */
+  private void open(final ProxyListener listener) throws IOException {
+    final ServerSocketChannel adopted = listener.getAdopted();
+    if (null != adopted) {
+      if (null == adopted.getLocalAddress()) {
+        throw new IOException("Adopted listener is not bound");
+      }
+      log.info("Adopting listener {}", adopted.getLocalAddress());
+      if (ProxyEngine.SELECTOR != engine) {
+        adopted.configureBlocking(true);
+        adopted.socket().setSoTimeout(ADOPTED_ACCEPT_TIMEOUT);
+      }
+      listener.opened(adopted.socket(), adopted, admission);
+    }
+    else if (ProxyEngine.SELECTOR == engine) {
+      final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+      try {
+        serverChannel.socket().bind(new InetSocketAddress(listener.getLocalIP(), listener.getRequestedPort()),
+            listener.getBacklog());
+      }
+      catch (final IOException e) {
+        close(serverChannel);
+        throw e;
+      }
+      listener.opened(serverChannel.socket(), serverChannel, admission);
+    }
+    else {
+      listener.opened(new ServerSocket(listener.getRequestedPort(), listener.getBacklog(), listener.getLocalIP()),
+          null, admission);
+    }
+  }
+
+  /**
+   * Accepts on the first listener on the calling thread, any further
+   * listeners get threads of their own.
+   */
+  private void startBlocking(final List<ProxyListener> all) throws IOException {
+    setProxyStatus(ProxyStatus.STARTED);
+    for (final ProxyListener listener : all.subList(1, all.size())) {
+      ACCEPTOR_THREAD_FACTORY.newThread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            acceptBlocking(listener);
+          }
+          catch (final IOException ioe) {
+            if (stopping) {
+              log.debug("Proxy stopped accepting", ioe);
+            }
+            else {
+              log.error("Listener on port {} failed", listener.getPort(), ioe);
+            }
+          }
+        }
+      }).start();
+    }
+    acceptBlocking(all.get(0));
+  }
+
+  private void acceptBlocking(final ProxyListener listener) throws IOException {
+    final ServerSocket server = listener.getSocket();
+    final AdmissionControl listenerAdmission = listener.getAdmission();
+    log.info("Starting SOCKS Proxy on: {}:{}", server.getInetAddress().getHostAddress(), server.getLocalPort());
+    try {
+      while (!stopping) {
+        final Socket s;
+        try {
+          s = server.accept();
+        }
+        catch (final SocketTimeoutException e) {
+          // Only adopted listeners time out, to notice a stop.
+          continue;
+        }
+        if (!listenerAdmission.tryAdmit()) {
+          log.info("Rejected {}:{}, session limit reached", s.getInetAddress().getHostAddress(), s.getPort());
+          close(s);
+          continue;
+        }
+        log.info("Accepted from:{}:{}", s.getInetAddress().getHostAddress(), s.getPort());
+
+        final ProxyServerParams p = listener.getParams(getParams());
+        try {
+          startSession(p, p.getExecutorService(),
+              new ProxyServerRunnable(p, monitor.monitor(ProxyMonitor.StreamEndpoint.CLIENT, s, null)));
+        }
+        catch (final RejectedExecutionException e) {
+          log.warn("Can't start session for {}", s, e);
+          listenerAdmission.handshakeEnded();
+          listenerAdmission.sessionEnded();
+          close(s);
+        }
+      }
+    }
+    finally {
+      blockingAccept.countDown();
+    }
+  }
+
+  private void startVirtualThreads() {
+    if (VirtualThreads.isSupported()) {
+      virtualExecutorService = Executors.newCachedThreadPool(VirtualThreads.newFactory("ProxyServer-virtual-"));
+      changed();
+    }
+    else {
+      log.warn("Virtual threads are not supported by this JVM, running sessions on the executor");
+    }
+  }
+
+  /**
+   * Runs the first acceptor loop on the calling thread, any further acceptors
+   * get threads of their own. Every acceptor loop accepts on all listeners
+   * and hands the accepted connections over to the event loops.
+   */
+  private void startSelector(final List<ProxyListener> all) throws IOException {
+    relay = new RelayEventLoopGroup(eventLoops, loadBalancing, maxPooledBufferBytes, SELECTOR_THREAD_FACTORY);
+    acceptorLoops = new AcceptorLoop[Math.max(1, acceptors)];
+    for (int i = 0; i < acceptorLoops.length; i++) {
+      acceptorLoops[i] = new AcceptorLoop();
+    }
+    for (final ProxyListener listener : all) {
+      final ServerSocket server = listener.getSocket();
+      log.info("Starting SOCKS Proxy on: {}:{} with {} acceptors and {} event loops",
+          server.getInetAddress().getHostAddress(), server.getLocalPort(), acceptors, eventLoops);
+      final AcceptorLoop.AcceptHandler handler = new AcceptorLoop.AcceptHandler() {
+        @Override
+        public void accepted(final SocketChannel channel) {
+          dispatch(listener, channel);
+        }
+      };
+      for (final AcceptorLoop acceptorLoop : acceptorLoops) {
+        acceptorLoop.add(listener.getChannel(), handler);
+      }
+    }
+    setProxyStatus(ProxyStatus.STARTED);
+
+    for (int i = 1; i < acceptorLoops.length; i++) {
+      ACCEPTOR_THREAD_FACTORY.newThread(acceptorLoops[i]).start();
+    }
+    acceptorLoops[0].run();
+  }
+
+  /**
+   * Assigns an accepted connection to an event loop and starts its handshake.
+   * Only the numeric address is logged, the acceptor must not wait for DNS.
+   */
+  private void dispatch(final ProxyListener listener, final SocketChannel channel) {
+    final Socket s = channel.socket();
+    final AdmissionControl listenerAdmission = listener.getAdmission();
+    if (!listenerAdmission.tryAdmit()) {
+      log.info("Rejected {}:{}, session limit reached", s.getInetAddress().getHostAddress(), s.getPort());
+      close(channel);
+      return;
+    }
+    log.info("Accepted from:{}:{}", s.getInetAddress().getHostAddress(), s.getPort());
+
+    final RelayEventLoop loop = relay.next();
+    loop.sessionStarted();
     try {
-      if (ss != null) {
-        ss.close();
+      final ProxyServerParams p = listener.getParams(getParams());
+      final Socket client = monitor.monitor(ProxyMonitor.StreamEndpoint.CLIENT, s, null);
+      final ProxyServerRunnable session = new ProxyServerRunnable(p, client, loop);
+      final NonBlockingAuthenticator.Handshake handshake = p.getAuth() instanceof NonBlockingAuthenticator
+          ? ((NonBlockingAuthenticator) p.getAuth()).startHandshake(client) : null;
+      if (null == handshake) {
+        startSession(p, executorService, session);
       }
+      else {
+        loop.register(new LoopHandshake(session, channel, client, handshake));
+      }
+    }
+    catch (final IOException | RejectedExecutionException e) {
+      log.warn("Can't start session for {}", s, e);
+      loop.sessionEnded();
+      listenerAdmission.handshakeEnded();
+      listenerAdmission.sessionEnded();
+      close(channel);
+    }
+  }
+
+  /**
+   * Run the handshake on the first stage, or on the given executor if the
+   * handshake is not staged.
+   */
+  private static void startSession(final ProxyServerParams p, final ExecutorService sessionExecutor,
+      final ProxyServerRunnable session) {
+    final SessionStages current = p.getStages();
+    if (null == current) {
+      sessionExecutor.submit(session);
+    }
+    else {
+      current.getHandshake().execute(session);
+    }
+  }
+
+  private Stage newStage(final String name, final int threads) {
+    return new Stage(name, threads, stageQueueSize, newThreadFactory("ProxyServer-" + name + "-"));
+  }
+
+  private static void close(final Closeable closeable) {
+    try {
+      closeable.close();
     }
     catch (final IOException ioe) {
-      log.warn("Exception thrown closing the server socket", ioe);
+      log.warn("Exception closing {}", closeable, ioe);
     }
-    finally {
-      setProxyStatus(ProxyStatus.STOPED);
-      executorService.shutdown();
+  }
+
+  private ProxyServerParams getParams() {
+    final ProxyServerParams p = params;
+    if (null != p) {
+      return p;
+    }
+    synchronized (configMutex) {
+      if (null == params) {
+        params = newParams();
+      }
+      return params;
+    }
+  }
+
+  private ProxyServerParams newParams() {
+    final ExecutorService sessionExecutorService =
+        null == virtualExecutorService ? executorService : virtualExecutorService;
+    return new ProxyServerParams(idleTimeout, acceptTimeout, proxy, auth, sessionExecutorService, monitor,
+        bufferSizing, relayCounters, coalesceWrites, timingWheel,
+        new HappyEyeballsConnector(connectTimeout, connectAttemptDelay, connectRtts), admission, shaper,
+        fairShare, memoryBudget, sessions, udpTimeout, datagramSize, stages,
+        handshakeTimeout, accessLog);
+  }
+
+  /**
+   * Publish a new snapshot of the settings, unless a
+   * {@link #reconfigure(Runnable)} publishes it once done. Snapshots are
+   * only taken holding the mutex, so none of them misses a setting changed
+   * before, or sees a reconfiguration half done.
+   */
+  private void changed() {
+    if (!Thread.holdsLock(configMutex)) {
+      synchronized (configMutex) {
+        publish();
+      }
     }
+  }
+
+  /**
+   * Apply the limits of the admission control, which sessions share instead
+   * of taking them with the snapshot, along with the new snapshot.
+   */
+  private void publish() {
+    admission.setLimits(maxSessions, sessionWatermark, maxHandshakes);
+    admission.setShedding(shedTargetDelay, shedInterval);
+    params = newParams();
+  }
+
+  private BandwidthShaper newShaper() {
+    return new BandwidthShaper(globalRate, globalBurst, userRate, userBurst, connectionRate, connectionBurst);
+  }
 
+  private BufferSizing newBufferSizing() {
+    return new BufferSizing(minBufferSize, initialBufferSize, maxBufferSize, maxGrownBufferMemory,
+        tuneSocketBuffers);
+  }
+
+  private static ThreadFactory newThreadFactory(final String prefix) {
+    return new ThreadFactory() {
+      private final AtomicLong COUNTER = new AtomicLong();
+
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable);
+        thread.setName(prefix + COUNTER.incrementAndGet());
+        thread.setUncaughtExceptionHandler(UNCAUGHT_EXCEPTION_HANDLER);
+        return thread;
+      }
+    };
   }
 }
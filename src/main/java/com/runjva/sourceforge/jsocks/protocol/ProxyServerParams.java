@@ -12,15 +12,97 @@ class ProxyServerParams {
   private final ServerAuthenticator auth;
   private final ExecutorService executorService;
   private final ProxyMonitor monitor;
+  private final BufferSizing bufferSizing;
+  private final RelayCounters relayCounters;
+  private final boolean coalesceWrites;
+  private final TimingWheel timingWheel;
+  private final HappyEyeballsConnector connector;
+  private final AdmissionControl admission;
+  private final BandwidthShaper shaper;
+  private final FairShare fairShare;
+  private final RelayMemoryBudget memoryBudget;
+  private final SessionRegistry sessions;
+  private final int udpTimeout;
+  private final int datagramSize;
+  private final SessionStages stages;
+  private final int handshakeTimeout;
+  private final AccessLog accessLog;
+  private final ProxyServerParams server;
 
   ProxyServerParams(final int idleTimeout, final int acceptTimeout, final SocksProxyBase proxy,
-      final ServerAuthenticator auth, final ExecutorService executorService, final ProxyMonitor monitor) {
+      final ServerAuthenticator auth, final ExecutorService executorService, final ProxyMonitor monitor,
+      final BufferSizing bufferSizing, final RelayCounters relayCounters, final boolean coalesceWrites,
+      final TimingWheel timingWheel, final HappyEyeballsConnector connector, final AdmissionControl admission,
+      final BandwidthShaper shaper, final FairShare fairShare, final RelayMemoryBudget memoryBudget,
+      final SessionRegistry sessions, final int udpTimeout, final int datagramSize, final SessionStages stages,
+      final int handshakeTimeout, final AccessLog accessLog) {
     this.idleTimeout = idleTimeout;
     this.acceptTimeout = acceptTimeout;
     this.proxy = proxy;
     this.auth = auth;
     this.executorService = executorService;
     this.monitor = monitor;
+    this.bufferSizing = bufferSizing;
+    this.relayCounters = relayCounters;
+    this.coalesceWrites = coalesceWrites;
+    this.timingWheel = timingWheel;
+    this.connector = connector;
+    this.admission = admission;
+    this.shaper = shaper;
+    this.fairShare = fairShare;
+    this.memoryBudget = memoryBudget;
+    this.sessions = sessions;
+    this.udpTimeout = udpTimeout;
+    this.datagramSize = datagramSize;
+    this.stages = stages;
+    this.handshakeTimeout = handshakeTimeout;
+    this.accessLog = accessLog;
+    this.server = this;
+  }
+
+  /**
+   * Copy of the given server settings for the sessions of a listener.
+   */
+  private ProxyServerParams(final ProxyServerParams server, final ServerAuthenticator auth,
+      final AdmissionControl admission) {
+    this.idleTimeout = server.idleTimeout;
+    this.acceptTimeout = server.acceptTimeout;
+    this.proxy = server.proxy;
+    this.auth = auth;
+    this.executorService = server.executorService;
+    this.monitor = server.monitor;
+    this.bufferSizing = server.bufferSizing;
+    this.relayCounters = server.relayCounters;
+    this.coalesceWrites = server.coalesceWrites;
+    this.timingWheel = server.timingWheel;
+    this.connector = server.connector;
+    this.admission = admission;
+    this.shaper = server.shaper;
+    this.fairShare = server.fairShare;
+    this.memoryBudget = server.memoryBudget;
+    this.sessions = server.sessions;
+    this.udpTimeout = server.udpTimeout;
+    this.datagramSize = server.datagramSize;
+    this.stages = server.stages;
+    this.handshakeTimeout = server.handshakeTimeout;
+    this.accessLog = server.accessLog;
+    this.server = server;
+  }
+
+  /**
+   * These settings with the authenticator and admission control of a
+   * listener.
+   */
+  ProxyServerParams forListener(final ServerAuthenticator auth, final AdmissionControl admission) {
+    return auth == this.auth && admission == this.admission ? this : new ProxyServerParams(this, auth, admission);
+  }
+
+  /**
+   * Tells wether these settings are the given server settings, or a copy of
+   * them for a listener.
+   */
+  boolean isDerivedFrom(final ProxyServerParams params) {
+    return server == params;
   }
 
   int getIdleTimeout() {
@@ -46,4 +128,67 @@ class ProxyServerParams {
   ProxyMonitor getMonitor() {
     return monitor;
   }
+
+  BufferSizing getBufferSizing() {
+    return bufferSizing;
+  }
+
+  RelayCounters getRelayCounters() {
+    return relayCounters;
+  }
+
+  boolean isCoalesceWrites() {
+    return coalesceWrites;
+  }
+
+  TimingWheel getTimingWheel() {
+    return timingWheel;
+  }
+
+  HappyEyeballsConnector getConnector() {
+    return connector;
+  }
+
+  AdmissionControl getAdmission() {
+    return admission;
+  }
+
+  BandwidthShaper getShaper() {
+    return shaper;
+  }
+
+  FairShare getFairShare() {
+    return fairShare;
+  }
+
+  RelayMemoryBudget getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  SessionRegistry getSessions() {
+    return sessions;
+  }
+
+  int getUdpTimeout() {
+    return udpTimeout;
+  }
+
+  int getDatagramSize() {
+    return datagramSize;
+  }
+
+  /**
+   * The stages of the handshake, or null to run it on a single thread.
+   */
+  SessionStages getStages() {
+    return stages;
+  }
+
+  int getHandshakeTimeout() {
+    return handshakeTimeout;
+  }
+
+  AccessLog getAccessLog() {
+    return accessLog;
+  }
 }
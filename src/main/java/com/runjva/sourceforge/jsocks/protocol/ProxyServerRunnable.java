@@ -11,8 +11,11 @@ import java.net.InetAddress;
 import java.net.NoRouteToHostException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,37 +29,162 @@ class ProxyServerRunnable implements Runnable {
   private static final int ACCEPT_MODE = 1;
   private static final int PIPE_MODE = 2;
   private static final int ABORT_MODE = 3;
-  private static final int BUF_SIZE = 8192;
+  private static final int RELAY_MODE = 4;
+  private static final int RESOLVE_MODE = 5;
+  private static final int CONNECT_MODE = 6;
+  private static final int COMMAND_MODE = 7;
+  private static final int REQUEST_MODE = 8;
+  /**
+   * Most client data forwarded ahead of the CONNECT reply, see
+   * {@link #forwardEarlyData(InputStream, OutputStream)}.
+   */
+  static final int MAX_EARLY_DATA = 16384;
 
   private ProxyMessage msg;
+  private InetAddress[] addresses;
 
   private Socket sock, remote_sock;
+  private Socket connected;
   private UDPRelayServer relayServer;
   private InputStream in, remote_in;
   private OutputStream out, remote_out;
-  private int mode;
+  private volatile int mode;
+  /**
+   * Set once the session was aborted, or its tunnel handed over to the event
+   * loop, whichever comes first ends the session.
+   */
+  private final AtomicBoolean aborted = new AtomicBoolean();
+  private volatile boolean clientEof;
+  private volatile boolean remoteEof;
 
-  private Thread pipe_thread1;
   private Future<?> pipeThreadTwoFuture;
   private ServerSocket ss;
-  private long lastReadTime;
+  private volatile TimingWheel.Timeout deadline;
+  private TimingWheel.Timeout acceptDeadline;
 
+  private final ProxyServerParams params;
   private final int idleTimeout;
   private final int acceptTimeout;
+  private final int handshakeTimeout;
   private final SocksProxyBase proxy;
   private ServerAuthenticator auth;
   private final ExecutorService executorService;
   private final ProxyMonitor monitor;
+  private final BufferSizing bufferSizing;
+  private final RelayCounters relayCounters;
+  private final boolean coalesceWrites;
+  private final TimingWheel timingWheel;
+  private final HappyEyeballsConnector connector;
+  private final RelayEventLoop loop;
+  private final AdmissionControl admission;
+  private final long acceptedAt;
+  private final AtomicBoolean handshaking = new AtomicBoolean(true);
+  private Throttle throttle;
+  private final SessionRegistry sessions;
+  private final SessionStages stages;
+  private final AccessLog.Record accessRecord;
+  private final SessionRegistry.Session session = new SessionRegistry.Session() {
+    @Override
+    public long getLastActivity() {
+      final TimingWheel.Timeout current = deadline;
+      return null == current ? timingWheel.now() : current.getLastTouch();
+    }
+
+    @Override
+    public void close() {
+      log.info("Closing session");
+      abort();
+    }
+  };
+
+  private final Runnable timeoutTask = new Runnable() {
+    @Override
+    public void run() {
+      log.info("Session timed out");
+      abort();
+    }
+  };
+
+  private final Runnable handshakeTimeoutTask = new Runnable() {
+    @Override
+    public void run() {
+      log.info("Handshake timed out");
+      admission.handshakeTimedOut();
+      AdmissionControl.resetOnClose(sock);
+      abort();
+    }
+  };
 
   ProxyServerRunnable(final ProxyServerParams params, final Socket s) {
+    this(params, s, null);
+  }
+
+  /**
+   * @param loop
+   *     Event loop owning the connection, which relays the tunnel once the
+   *     handshake is done, or null to relay with blocking threads.
+   */
+  ProxyServerRunnable(final ProxyServerParams params, final Socket s, final RelayEventLoop loop) {
+    this.params = params;
     this.idleTimeout = params.getIdleTimeout();
     this.acceptTimeout = params.getAcceptTimeout();
+    this.handshakeTimeout = params.getHandshakeTimeout();
     this.proxy = params.getProxy();
     this.auth = params.getAuth();
     this.executorService = params.getExecutorService();
     this.monitor = params.getMonitor();
+    this.bufferSizing = params.getBufferSizing();
+    this.relayCounters = params.getRelayCounters();
+    this.coalesceWrites = params.isCoalesceWrites();
+    this.timingWheel = params.getTimingWheel();
+    this.connector = params.getConnector();
+    this.loop = loop;
+    this.admission = params.getAdmission();
+    this.sessions = params.getSessions();
+    this.stages = params.getStages();
+    this.acceptedAt = System.nanoTime();
     this.sock = s;
     this.mode = START_MODE;
+    this.accessRecord = params.getAccessLog().open(s);
+  }
+
+  /**
+   * Starts a session whose handshake runs on its event loop, see
+   * {@link LoopHandshake}, instead of on the threads of the session.
+   *
+   * @return false if the session was shed and aborted.
+   */
+  boolean startLoopHandshake() {
+    // The loop authenticates, the authenticator of the session comes with the request.
+    auth = null;
+    if (!beginHandshake()) {
+      abort();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Continues the session on its threads once the event loop read the
+   * request, with the client socket blocking again.
+   */
+  void requestReceived(final ServerAuthenticator auth, final ProxyMessage msg) {
+    if (aborted.get()) {
+      return;
+    }
+    this.auth = auth;
+    this.in = auth.getInputStream();
+    this.out = auth.getOutputStream();
+    this.msg = msg;
+    mode = REQUEST_MODE;
+    handOff(null == stages ? executorService : stages.getHandshake());
+  }
+
+  /**
+   * Ends a session whose handshake failed on the event loop.
+   */
+  void handshakeFailed() {
+    abort();
   }
 
   // Runnable interface
@@ -65,48 +193,41 @@ class ProxyServerRunnable implements Runnable {
   public void run() {
     switch (mode) {
       case START_MODE:
-        try {
-          startSession();
-        }
-        catch (final IOException ioe) {
-          log.error("START_MODE exception.", ioe);
-          handleException(ioe);
-        }
-        finally {
-          abort();
-          if (auth != null) {
-            auth.endSession();
-          }
-          log.info("Main thread(client->remote)stopped.");
-        }
+      case REQUEST_MODE:
+      case RESOLVE_MODE:
+      case CONNECT_MODE:
+      case COMMAND_MODE:
+        runStage(mode);
         break;
       case ACCEPT_MODE:
         try {
           doAccept();
+          // The client thread sees the new mode with the next byte it reads.
           mode = PIPE_MODE;
-          pipe_thread1.interrupt(); // Tell other thread that connection
-          // have
-          // been accepted.
-          pipe(remote_in, out);
+          pipeRemote();
         }
         catch (final IOException ioe) {
           log.error("ACCEPT_MODE exception.", ioe);
           handleException(ioe);
         }
         finally {
-          abort();
+          if (!remoteEof || clientEof) {
+            abort();
+          }
           log.info("Accept thread(remote->client) stopped");
         }
         break;
       case PIPE_MODE:
         try {
-          pipe(remote_in, out);
+          pipeRemote();
         }
         catch (final IOException ioe) {
           log.error("PIPE_MODE exception.", ioe);
         }
         finally {
-          abort();
+          if (!remoteEof || clientEof) {
+            abort();
+          }
           log.info("Support thread(remote->client) stopped");
         }
         break;
@@ -119,8 +240,61 @@ class ProxyServerRunnable implements Runnable {
 
   // Private methods
 // ///////////////
-  private void startSession() throws IOException {
-    sock.setSoTimeout(idleTimeout);
+
+  /**
+   * Runs the handshake, or the part of it belonging to the current stage.
+   * Once the session moves on to another stage the thread returns, otherwise
+   * it ends up relaying client data.
+   */
+  private void runStage(final int stageMode) {
+    Executor next = null;
+    try {
+      next = START_MODE == stageMode ? startSession() : continueSession(stageMode);
+    }
+    catch (final IOException ioe) {
+      log.error("Exception in mode {}.", stageMode, ioe);
+      handleException(ioe);
+    }
+    finally {
+      if (null != next) {
+        log.debug("Main thread handing session over to the next stage.");
+      }
+      else if (mode == RELAY_MODE) {
+        log.info("Main thread handed tunnel over to event loop.");
+      }
+      else if (clientEof && !remoteEof) {
+        log.info("Main thread(client->remote)stopped, remote->client still open.");
+      }
+      else {
+        abort();
+        log.info("Main thread(client->remote)stopped.");
+      }
+    }
+    if (null != next) {
+      handOff(next);
+    }
+  }
+
+  private void handOff(final Executor next) {
+    try {
+      next.execute(this);
+    }
+    catch (final RejectedExecutionException e) {
+      log.warn("Next stage is full, dropping session of {}", sock);
+      sendErrorMessage(SocksProxyBase.SOCKS_FAILURE);
+      abort();
+    }
+  }
+
+  /**
+   * @return The executor of the next stage, or null if the session is done
+   *         with its stages.
+   */
+  private Executor startSession() throws IOException {
+    if (!beginHandshake()) {
+      AdmissionControl.reject(sock);
+      return null;
+    }
 
     try {
       auth = auth.startSession(sock);
@@ -128,36 +302,138 @@ class ProxyServerRunnable implements Runnable {
     catch (final IOException ioe) {
       log.warn("Auth throwed exception:", ioe);
       auth = null;
-      return;
+      return null;
     }
 
     if (auth == null) { // Authentication failed
       log.info("Authentication failed");
-      return;
+      return null;
     }
 
     in = auth.getInputStream();
     out = auth.getOutputStream();
 
     msg = readMsg(in);
-    handleRequest(msg);
+    return startRequest();
+  }
+
+  /**
+   * Starts the handshake deadline and registers the session.
+   *
+   * @return false if the session is to be shed.
+   */
+  private boolean beginHandshake() {
+    // Greeting, authentication and request must arrive before this deadline.
+    deadline = timingWheel.schedule(handshakeTimeout, handshakeTimeoutTask);
+    sessions.add(session);
+
+    if (!admission.handshakeStarted(acceptedAt)) {
+      log.info("Shedding session of {}", sock);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Handles the request once it was read.
+   *
+   * @return The executor of the next stage, or null if the session is done
+   *         with its stages.
+   */
+  private Executor startRequest() throws IOException {
+    requestRead();
+    if (null == stages) {
+      handleRequest(msg);
+      return null;
+    }
+
+    checkRequest(msg);
+    if (null == msg.ip) {
+      mode = RESOLVE_MODE;
+      return stages.getResolve();
+    }
+    log(msg);
+    return nextCommandStage();
+  }
+
+  /**
+   * Replace the handshake deadline by the idle deadline, which covers
+   * resolving and connecting and is pushed back by the relay.
+   */
+  private void requestRead() {
+    accessRecord.setRequest(msg, auth.getAuthenticatedUser());
+    deadline.cancel();
+    admission.requestRead(acceptedAt);
+    deadline = timingWheel.schedule(idleTimeout, timeoutTask);
+  }
+
+  /**
+   * Runs a stage after the handshake, see {@link SessionStages}.
+   */
+  private Executor continueSession(final int stageMode) throws IOException {
+    switch (stageMode) {
+      case REQUEST_MODE:
+        return startRequest();
+      case RESOLVE_MODE:
+        resolve(msg);
+        log(msg);
+        return nextCommandStage();
+      case CONNECT_MODE:
+        final Socket s = connect(msg);
+        if (isRelayed(s)) {
+          onConnected(msg, s);
+          return null;
+        }
+        // Blocking pipes keep their thread, they must not hold the stage.
+        connected = s;
+        mode = COMMAND_MODE;
+        return executorService;
+      default:
+        if (null != connected) {
+          onConnected(msg, connected);
+        }
+        else {
+          handleCommand(msg);
+        }
+        return null;
+    }
+  }
+
+  private Executor nextCommandStage() {
+    if (SocksProxyBase.SOCKS_CMD_CONNECT == msg.command) {
+      mode = CONNECT_MODE;
+      return stages.getConnect();
+    }
+    mode = COMMAND_MODE;
+    return executorService;
   }
 
   private void handleRequest(final ProxyMessage msg) throws IOException {
+    checkRequest(msg);
+    resolve(msg);
+    log(msg);
+    handleCommand(msg);
+  }
+
+  private void checkRequest(final ProxyMessage msg) throws IOException {
     if (!auth.checkRequest(msg)) {
       throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
     }
+  }
 
+  private void resolve(final ProxyMessage msg) throws IOException {
     if (msg.ip == null) {
-      if (msg instanceof Socks5Message) {
-        msg.ip = InetAddress.getByName(msg.host);
-      }
-      else {
+      // SOCKS5, or SOCKS4a read by an event loop, which never resolves.
+      if (null == msg.host) {
         throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
       }
+      // All addresses, so CONNECT can race them.
+      addresses = InetAddress.getAllByName(msg.host);
+      msg.ip = addresses[0];
     }
-    log(msg);
+  }
 
+  private void handleCommand(final ProxyMessage msg) throws IOException {
     switch (msg.command) {
       case SocksProxyBase.SOCKS_CMD_CONNECT:
         onConnect(msg);
@@ -212,37 +488,72 @@ class ProxyServerRunnable implements Runnable {
   }
 
   private void onConnect(final ProxyMessage msg) throws IOException {
-    Socket s;
+    onConnected(msg, connect(msg));
+  }
 
+  private Socket connect(final ProxyMessage msg) throws IOException {
     if (proxy == null) {
-      s = new Socket(msg.ip, msg.port);
-    }
-    else {
-      s = new SocksSocket(proxy, msg.ip, msg.port);
+      // Connects through a channel, so the tunnel can be relayed by an event loop.
+      final InetAddress[] targets = null != addresses ? addresses : new InetAddress[] { msg.ip };
+      return connector.connect(targets, msg.port).socket();
     }
+    return new SocksSocket(proxy, msg.ip, msg.port);
+  }
+
+  private boolean isRelayed(final Socket s) {
+    return loop != null && auth.getUdpEncapsulation() == null && RelayTunnel.canRelay(sock, s);
+  }
 
+  /**
+   * Replies to the client and starts relaying.
+   */
+  private void onConnected(final ProxyMessage msg, final Socket s) throws IOException {
     log.info("Connected to " + s.getInetAddress() + ":" + s.getPort());
 
-    ProxyMessage response = null;
-    final InetAddress localAddress = s.getLocalAddress();
-    final int localPort = s.getLocalPort();
+    remote_sock = monitor.monitor(ProxyMonitor.StreamEndpoint.REMOTE, s, auth.getAuthenticatedUser());
+    final int early = forwardEarlyData(in, remote_sock.getOutputStream());
+    if (early > 0) {
+      log.debug("Forwarded {} bytes of early data", early);
+      relayCounters.countReads(1);
+      relayCounters.countWrites(1, early);
+      accessRecord.setEarlyBytes(early);
+    }
+    successReply(msg, s.getLocalAddress(), s.getLocalPort()).write(out);
 
-    if (msg instanceof Socks5Message) {
-      final int cmd = SocksProxyBase.SOCKS_SUCCESS;
-      response = new Socks5Message(cmd, localAddress, localPort);
+    if (isRelayed(s)) {
+      startRelay();
     }
     else {
-      final int cmd = Socks4Message.REPLY_OK;
-      response = new Socks4Message(cmd, localAddress, localPort);
-
+      startPipe();
     }
-    response.write(out);
-    startPipe(s);
   }
 
-  private void onBind(final ProxyMessage msg) throws IOException {
-    ProxyMessage response = null;
+  /**
+   * Writes client data which arrived along with the request, like a TLS
+   * ClientHello, to the remote host right after connecting. The remote host
+   * gets to work on it while the reply is on its way, instead of waiting for
+   * the relay to start. Takes only data that has arrived, at most
+   * {@link #MAX_EARLY_DATA} bytes, everything else is relayed as usual.
+   *
+   * @return Number of bytes forwarded.
+   */
+  static int forwardEarlyData(final InputStream in, final OutputStream remote) throws IOException {
+    final int available = Math.min(in.available(), MAX_EARLY_DATA);
+    if (available <= 0) {
+      return 0;
+    }
+    final byte[] early = new byte[available];
+    // Never blocks, the bytes are there.
+    final int len = in.read(early);
+    if (len <= 0) {
+      return 0;
+    }
+    remote.write(early, 0, len);
+    remote.flush();
+    return len;
+  }
 
+  private void onBind(final ProxyMessage msg) throws IOException {
     if (proxy == null) {
       ss = new ServerSocket(0);
     }
@@ -250,29 +561,26 @@ class ProxyServerRunnable implements Runnable {
       ss = new SocksServerSocket(proxy, msg.ip, msg.port);
     }
 
-    ss.setSoTimeout(acceptTimeout);
+    deadline.cancel();
+    endHandshake();
+    acceptDeadline = timingWheel.schedule(acceptTimeout, new Runnable() {
+      @Override
+      public void run() {
+        log.info("Accept timed out");
+        close(ss);
+      }
+    });
 
     final InetAddress inetAddress = ss.getInetAddress();
     final int localPort = ss.getLocalPort();
     log.info("Trying accept on {}:{}", inetAddress, localPort);
+    successReply(msg, inetAddress, localPort).write(out);
 
-    if (msg.version == 5) {
-      final int cmd = SocksProxyBase.SOCKS_SUCCESS;
-      response = new Socks5Message(cmd, inetAddress, localPort);
-    }
-    else {
-      final int cmd = Socks4Message.REPLY_OK;
-      response = new Socks4Message(cmd, inetAddress, localPort);
-    }
-    response.write(out);
-
+    throttle = newThrottle();
     mode = ACCEPT_MODE;
 
-    pipe_thread1 = Thread.currentThread();
     pipeThreadTwoFuture = executorService.submit(this);
 
-    // Make timeout infinit.
-    sock.setSoTimeout(0);
     int eof = 0;
 
     try {
@@ -291,11 +599,9 @@ class ProxyServerRunnable implements Runnable {
       log.debug("Connection closed while we were trying to accept", e);
       return;
     }
-    catch (final InterruptedIOException e) {
-      log.debug("Interrupted by unsucessful accept thread", e);
-      if (mode != PIPE_MODE) {
-        return;
-      }
+    catch (final IOException e) {
+      log.debug("Client socket closed by unsucessful accept thread", e);
+      return;
     }
     finally {
       // System.out.println("Finnaly!");
@@ -305,10 +611,7 @@ class ProxyServerRunnable implements Runnable {
       return;
     }
 
-    // Do not restore timeout, instead timeout is set on the
-    // remote socket. It does not make any difference.
-
-    pipe(in, remote_out);
+    pipeClient();
   }
 
   private void onUDP(final ProxyMessage msg) throws IOException {
@@ -317,8 +620,12 @@ class ProxyServerRunnable implements Runnable {
     }
     log.info("Creating UDP relay server for {}:{}", msg.ip, msg.port);
 
+    // The relay server has its own idle timeout.
+    deadline.cancel();
+    endHandshake();
     relayServer = new UDPRelayServer(msg.ip, msg.port,
-        Thread.currentThread(), sock, auth);
+        Thread.currentThread(), sock, auth, timingWheel,
+        proxy, params.getUdpTimeout(), params.getDatagramSize());
 
     ProxyMessage response;
 
@@ -329,8 +636,6 @@ class ProxyServerRunnable implements Runnable {
 
     relayServer.start();
 
-    // Make timeout infinit.
-    sock.setSoTimeout(0);
     try {
       while (in.read() >= 0) {
       /* do nothing */
@@ -347,10 +652,17 @@ class ProxyServerRunnable implements Runnable {
 
   private void doAccept() throws IOException {
     Socket s = null;
-    final long startTime = System.currentTimeMillis();
 
     while (true) {
-      s = ss.accept();
+      try {
+        s = ss.accept();
+      }
+      catch (final IOException e) {
+        if (acceptDeadline.isExpired()) {
+          throw new InterruptedIOException("Accept timed out");
+        }
+        throw e;
+      }
       if (s.getInetAddress().equals(msg.ip)) {
         // got the connection from the right host
         // Close listenning socket.
@@ -364,42 +676,34 @@ class ProxyServerRunnable implements Runnable {
         throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
       }
       else {
-        if (acceptTimeout != 0) { // If timeout is not infinit
-          final long passed = System.currentTimeMillis() - startTime;
-          final int newTimeout = acceptTimeout - (int) passed;
-
-          if (newTimeout <= 0) {
-            throw new InterruptedIOException("newTimeout <= 0");
-          }
-          ss.setSoTimeout(newTimeout);
-        }
         s.close(); // Drop all connections from other hosts
       }
     }
+    acceptDeadline.cancel();
 
     // Accepted connection
     remote_sock = monitor.monitor(ProxyMonitor.StreamEndpoint.REMOTE, s, auth.getAuthenticatedUser());
     remote_in = remote_sock.getInputStream();
     remote_out = remote_sock.getOutputStream();
 
-    // Set timeout
-    remote_sock.setSoTimeout(idleTimeout);
+    // Idle deadline of the tunnel
+    deadline = timingWheel.schedule(idleTimeout, timeoutTask);
 
     final InetAddress inetAddress = remote_sock.getInetAddress();
     final int port = remote_sock.getPort();
     log.info("Accepted from {}:{}", remote_sock.getInetAddress(), port);
+    successReply(msg, inetAddress, port).write(out);
+  }
 
-    ProxyMessage response;
-
-    if (msg.version == 5) {
-      final int cmd = SocksProxyBase.SOCKS_SUCCESS;
-      response = new Socks5Message(cmd, inetAddress, port);
+  /**
+   * Success reply to the request, with the address in numeric form. No host
+   * name is looked up, so the client never waits for DNS to get its reply.
+   */
+  static ProxyMessage successReply(final ProxyMessage request, final InetAddress address, final int port) {
+    if (request.version == 5) {
+      return new Socks5Message(SocksProxyBase.SOCKS_SUCCESS, address, port);
     }
-    else {
-      final int cmd = Socks4Message.REPLY_OK;
-      response = new Socks4Message(cmd, inetAddress, port);
-    }
-    response.write(out);
+    return new Socks4Message(Socks4Message.REPLY_OK, address, port);
   }
 
   private ProxyMessage readMsg(final InputStream in) throws IOException {
@@ -428,21 +732,38 @@ class ProxyServerRunnable implements Runnable {
     return msg;
   }
 
-  private void startPipe(final Socket s) {
+  private void startPipe() {
     mode = PIPE_MODE;
+    endHandshake();
+    throttle = newThrottle();
     try {
-      remote_sock = monitor.monitor(ProxyMonitor.StreamEndpoint.REMOTE, s, auth.getAuthenticatedUser());
-      ;
       remote_in = remote_sock.getInputStream();
       remote_out = remote_sock.getOutputStream();
-      pipe_thread1 = Thread.currentThread();
       pipeThreadTwoFuture = executorService.submit(this);
-      pipe(in, remote_out);
+      pipeClient();
     }
     catch (final IOException ioe) {
     }
   }
 
+  /**
+   * Hand the tunnel over to the event loop owning the connection, which takes
+   * care of closing the sockets and ending the authentication session.
+   */
+  private void startRelay() throws IOException {
+    // Once handed over the tunnel ends the session, aborting does nothing,
+    // and a session aborted meanwhile is not handed over.
+    if (!aborted.compareAndSet(false, true)) {
+      return;
+    }
+    deadline.cancel();
+    endHandshake();
+    mode = RELAY_MODE;
+    final RelayTunnel tunnel = new RelayTunnel(sock, remote_sock, auth, params, accessRecord);
+    sessions.remove(session);
+    loop.register(tunnel);
+  }
+
   private void sendErrorMessage(final int error_code) {
     ProxyMessage err_msg;
     if (msg instanceof Socks4Message) {
@@ -458,35 +779,98 @@ class ProxyServerRunnable implements Runnable {
     }
   }
 
-  private synchronized void abort() {
-    if (mode == ABORT_MODE) {
+  /**
+   * Relays client data to the remote host. At the end of stream the output
+   * to the remote host is shut down, the other direction keeps running.
+   */
+  private void pipeClient() throws IOException {
+    pipe(in, remote_out, sock, remote_sock);
+    log.debug("Client closed its side, shutting down output to remote");
+    shutdownOutput(remote_sock);
+    clientEof = true;
+  }
+
+  /**
+   * Relays remote data to the client. At the end of stream the output to the
+   * client is shut down, the other direction keeps running.
+   */
+  private void pipeRemote() throws IOException {
+    pipe(remote_in, out, remote_sock, sock);
+    log.debug("Remote closed its side, shutting down output to client");
+    shutdownOutput(sock);
+    remoteEof = true;
+  }
+
+  private void shutdownOutput(final Socket socket) {
+    try {
+      socket.shutdownOutput();
+    }
+    catch (final IOException e) {
+      log.debug("Exception shutting down output of {}", socket, e);
+    }
+  }
+
+  /**
+   * Closes everything, which unblocks the other thread of the session, and
+   * ends the session. Not synchronized, so a virtual thread closing sockets
+   * does not pin its carrier.
+   */
+  private void abort() {
+    if (!aborted.compareAndSet(false, true)) {
       return;
     }
     mode = ABORT_MODE;
     try {
       log.info("Aborting operation");
+      if (null != deadline) {
+        deadline.cancel();
+      }
+      if (null != acceptDeadline) {
+        acceptDeadline.cancel();
+      }
       close(in);
       close(out);
       close(remote_in);
       close(remote_out);
       close(remote_sock);
+      if (null == remote_sock) {
+        close(connected);
+      }
       close(sock);
       if (null != relayServer) {
         relayServer.stop();
       }
       close(ss);
-      if (null != pipe_thread1) {
-        pipe_thread1.interrupt();
-      }
       if (null != pipeThreadTwoFuture) {
-        pipeThreadTwoFuture.cancel(true);
+        // Closing the sockets unblocks a running task, just drop it if it has not started yet.
+        pipeThreadTwoFuture.cancel(false);
+      }
+      if (auth != null) {
+        auth.endSession();
+      }
+      if (loop != null) {
+        loop.sessionEnded();
       }
+      endHandshake();
+      admission.sessionEnded();
+      sessions.remove(session);
+      accessRecord.close();
     }
     catch (RuntimeException e) {
       log.warn("Exception thrown aborting", e);
     }
   }
 
+  private Throttle newThrottle() {
+    return params.getShaper().newThrottle(auth.getAuthenticatedUser(), sock.getInetAddress());
+  }
+
+  private void endHandshake() {
+    if (handshaking.compareAndSet(true, false)) {
+      admission.handshakeEnded();
+    }
+  }
+
   private void close(AutoCloseable closeable) {
     if (null != closeable) {
       try {
@@ -506,34 +890,55 @@ class ProxyServerRunnable implements Runnable {
     log.debug("IP:" + msg.ip + ", Port:" + msg.port + user);
   }
 
-  private void pipe(final InputStream in, final OutputStream out)
+  /**
+   * Relays one direction until the end of stream. Aborting the session, for
+   * instance when the idle deadline expires, closes the sockets, so the
+   * relay ends with an exception.
+   */
+  private void pipe(final InputStream in, final OutputStream out, final Socket from, final Socket to)
       throws IOException {
-    lastReadTime = System.currentTimeMillis();
-    final byte[] buf = new byte[BUF_SIZE];
+    final AdaptiveBufferSizer sizer = bufferSizing.newSizer();
+    byte[] buf = new byte[sizer.getSize()];
     int len = 0;
-    while (len >= 0) {
-      try {
+    boolean eof = false;
+    try {
+      while (len >= 0) {
         if (len != 0) {
           out.write(buf, 0, len);
-          out.flush();
-        }
-        len = in.read(buf);
-        lastReadTime = System.currentTimeMillis();
-      }
-      catch (final InterruptedIOException iioe) {
-        if (idleTimeout == 0) {
-          return;// Other thread interrupted us.
+          relayCounters.countWrites(1, len);
+          // When coalescing, more data ready means the next write follows right away.
+          if (eof || !coalesceWrites || in.available() == 0) {
+            out.flush();
+          }
+          if (sizer.record(len, timingWheel.now())) {
+            buf = new byte[sizer.getSize()];
+            sizer.tuneSockets(from, to);
+          }
         }
-        final long timeSinceRead = System.currentTimeMillis()
-            - lastReadTime;
-
-        if (timeSinceRead >= idleTimeout - 1000) {
+        if (eof) {
           return;
         }
-        len = 0;
-
+        final int limit = null == throttle ? buf.length : throttle.await(buf.length);
+        len = in.read(buf, 0, limit);
+        relayCounters.countReads(1);
+        deadline.touch();
+        while (coalesceWrites && len > 0 && len < limit && in.available() > 0) {
+          final int more = in.read(buf, len, limit - len);
+          relayCounters.countReads(1);
+          if (more < 0) {
+            eof = true;
+            break;
+          }
+          len += more;
+        }
+        if (null != throttle && len > 0) {
+          throttle.take(len, System.nanoTime());
+        }
       }
     }
+    finally {
+      sizer.close();
+    }
   }
 
   static final String command_names[] = { "CONNECT", "BIND", "UDP_ASSOCIATE" };
@@ -4,5 +4,5 @@ package com.runjva.sourceforge.jsocks.protocol;
  * Enum representing current proxy status
  */
 public enum ProxyStatus {
-  STOPED, STARTED, ERROR
+  STOPED, STARTED, DRAINING, ERROR
 }
@@ -0,0 +1,33 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the relay work of a server, shared by all of its tunnels.
+ */
+class RelayCounters {
+  private final AtomicLong readCalls = new AtomicLong();
+  private final AtomicLong writeCalls = new AtomicLong();
+  private final AtomicLong relayedBytes = new AtomicLong();
+
+  void countReads(final long calls) {
+    readCalls.addAndGet(calls);
+  }
+
+  void countWrites(final long calls, final long bytes) {
+    writeCalls.addAndGet(calls);
+    relayedBytes.addAndGet(bytes);
+  }
+
+  long getReadCalls() {
+    return readCalls.get();
+  }
+
+  long getWriteCalls() {
+    return writeCalls.get();
+  }
+
+  long getRelayedBytes() {
+    return relayedBytes.get();
+  }
+}
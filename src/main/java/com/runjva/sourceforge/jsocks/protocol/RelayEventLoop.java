@@ -0,0 +1,278 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single threaded loop relaying the data of many tunnels over one selector.
+ * <p/>
+ * Every connection accepted by the SELECTOR engine is owned by one loop for
+ * its whole life, from the handshake to the end of the relay. The table of
+ * established tunnels is confined to the thread of the loop, other threads
+ * pass work to it with {@link #execute(Runnable)}.
+ */
+class RelayEventLoop implements Runnable {
+  private static final Logger log = LoggerFactory.getLogger(RelayEventLoop.class);
+
+  /**
+   * Attachment of the keys of the selector, handling their ready operations.
+   */
+  interface Handler {
+    void handle(SelectionKey key);
+  }
+
+  private final Selector selector;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  private final Set<RelayTunnel> tunnels = new HashSet<RelayTunnel>();
+  private final PriorityQueue<Scheduled> scheduled = new PriorityQueue<Scheduled>();
+  private final DeficitRoundRobin scheduler = new DeficitRoundRobin();
+  private final AtomicInteger sessions = new AtomicInteger();
+  private final BufferPool bufferPool;
+  private volatile boolean running = true;
+  private volatile boolean stopped;
+
+  /**
+   * @param maxPooledBufferBytes
+   *     Maximum bytes of relay buffers kept for reuse by this loop.
+   */
+  RelayEventLoop(final long maxPooledBufferBytes) throws IOException {
+    selector = Selector.open();
+    bufferPool = new BufferPool(maxPooledBufferBytes);
+  }
+
+  /**
+   * Run the task on the thread of this loop. Once the loop stopped the task
+   * runs on the calling thread instead, so tunnels and handshakes handed
+   * over late still get closed.
+   */
+  void execute(final Runnable task) {
+    tasks.add(task);
+    if (stopped) {
+      // Either this or the last drain of the loop sees the task.
+      runTasks();
+    }
+    else {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Run the task on the thread of this loop once the delay passed, only to be
+   * called on the thread of this loop.<br>
+   * Unlike the deadlines of the {@link TimingWheel} these are precise, they
+   * are meant for short delays like the ones of throttled tunnels.
+   *
+   * @param delay
+   *     Delay in nanoseconds.
+   */
+  void schedule(final long delay, final Runnable task) {
+    scheduled.add(new Scheduled(System.nanoTime() + delay, task));
+  }
+
+  /**
+   * Start relaying the given tunnel.
+   */
+  void register(final RelayTunnel tunnel) {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!running) {
+          // The tunnel does not know its loop yet, it can't end its session on it.
+          sessionEnded();
+          tunnel.close();
+          return;
+        }
+        try {
+          tunnel.register(RelayEventLoop.this, selector);
+          tunnels.add(tunnel);
+        }
+        catch (final IOException e) {
+          log.warn("Can't register tunnel", e);
+          tunnel.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Run the handshake of a connection on this loop.
+   */
+  void register(final LoopHandshake handshake) {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!running) {
+          handshake.close();
+          return;
+        }
+        try {
+          handshake.register(RelayEventLoop.this, selector);
+        }
+        catch (final IOException e) {
+          log.warn("Can't register handshake", e);
+          handshake.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Pool of relay buffers, only to be used on the thread of this loop.
+   */
+  BufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  /**
+   * Scheduler of the ready tunnel directions, only to be used on the thread
+   * of this loop.
+   */
+  DeficitRoundRobin getScheduler() {
+    return scheduler;
+  }
+
+  void remove(final RelayTunnel tunnel) {
+    tunnels.remove(tunnel);
+    sessionEnded();
+  }
+
+  /**
+   * Called when a connection is assigned to this loop.
+   */
+  void sessionStarted() {
+    sessions.incrementAndGet();
+  }
+
+  /**
+   * Called when a connection owned by this loop is closed.
+   */
+  void sessionEnded() {
+    sessions.decrementAndGet();
+  }
+
+  /**
+   * Number of sessions, handshaking or relaying, owned by this loop.
+   */
+  int getLoad() {
+    return sessions.get();
+  }
+
+  /**
+   * Stop the loop, closing all of its tunnels.
+   */
+  void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        final Scheduled next = scheduled.peek();
+        if (!scheduler.isEmpty()) {
+          selector.selectNow();
+        }
+        else if (null == next) {
+          selector.select();
+        }
+        else {
+          final long wait = next.time - System.nanoTime();
+          if (wait > 0) {
+            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+          }
+          else {
+            selector.selectNow();
+          }
+        }
+        runTasks();
+        runScheduled();
+
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          final SelectionKey key = keys.next();
+          keys.remove();
+          ((Handler) key.attachment()).handle(key);
+        }
+        scheduler.run();
+      }
+    }
+    catch (final IOException e) {
+      log.error("Selector failed", e);
+    }
+    finally {
+      runTasks();
+      for (final RelayTunnel tunnel : new ArrayList<RelayTunnel>(tunnels)) {
+        tunnel.close();
+      }
+      for (final SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+        if (key.attachment() instanceof LoopHandshake) {
+          ((LoopHandshake) key.attachment()).close();
+        }
+      }
+      try {
+        selector.close();
+      }
+      catch (final IOException e) {
+        log.warn("Exception closing selector", e);
+      }
+      stopped = true;
+      runTasks();
+      log.info("Relay event loop stopped");
+    }
+  }
+
+  private void runScheduled() {
+    final long now = System.nanoTime();
+    while (!scheduled.isEmpty() && scheduled.peek().time - now <= 0) {
+      final Runnable task = scheduled.poll().task;
+      try {
+        task.run();
+      }
+      catch (final RuntimeException e) {
+        log.warn("Task threw exception", e);
+      }
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while (null != (task = tasks.poll())) {
+      try {
+        task.run();
+      }
+      catch (final RuntimeException e) {
+        log.warn("Task threw exception", e);
+      }
+    }
+  }
+
+  private static final class Scheduled implements Comparable<Scheduled> {
+    private final long time;
+    private final Runnable task;
+
+    Scheduled(final long time, final Runnable task) {
+      this.time = time;
+      this.task = task;
+    }
+
+    @Override
+    public int compareTo(final Scheduled other) {
+      final long diff = time - other.time;
+      return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+    }
+  }
+}
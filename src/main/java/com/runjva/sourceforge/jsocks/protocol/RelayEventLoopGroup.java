@@ -0,0 +1,67 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed group of {@link RelayEventLoop}s, connections are spread over the
+ * loops according to the {@link LoadBalancing} policy.
+ */
+class RelayEventLoopGroup {
+  private final RelayEventLoop[] loops;
+  private final LoadBalancing loadBalancing;
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * Creates and starts the given number of event loops.
+   *
+   * @param size
+   *     Number of event loops.
+   * @param loadBalancing
+   *     How connections are assigned to the loops.
+   * @param maxPooledBufferBytes
+   *     Maximum bytes of relay buffers kept for reuse by each loop.
+   * @param threadFactory
+   *     Factory for the threads running the loops.
+   */
+  RelayEventLoopGroup(final int size, final LoadBalancing loadBalancing, final long maxPooledBufferBytes,
+      final ThreadFactory threadFactory) throws IOException {
+    if (size <= 0) {
+      throw new IllegalArgumentException("Need at least one event loop, got " + size);
+    }
+    this.loadBalancing = loadBalancing;
+    loops = new RelayEventLoop[size];
+    for (int i = 0; i < size; i++) {
+      loops[i] = new RelayEventLoop(maxPooledBufferBytes);
+    }
+    for (final RelayEventLoop loop : loops) {
+      threadFactory.newThread(loop).start();
+    }
+  }
+
+  /**
+   * Choose the event loop which should own a new connection.
+   */
+  RelayEventLoop next() {
+    if (LoadBalancing.LEAST_LOADED == loadBalancing) {
+      RelayEventLoop least = loops[0];
+      for (int i = 1; i < loops.length; i++) {
+        if (loops[i].getLoad() < least.getLoad()) {
+          least = loops[i];
+        }
+      }
+      return least;
+    }
+    return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+  }
+
+  /**
+   * Stop all event loops, closing their tunnels.
+   */
+  void shutdown() {
+    for (final RelayEventLoop loop : loops) {
+      loop.shutdown();
+    }
+  }
+}
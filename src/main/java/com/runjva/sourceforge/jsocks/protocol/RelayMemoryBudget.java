@@ -0,0 +1,110 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide budget of the memory held by data in flight through the event
+ * loops, together with the watermarks of every tunnel direction.
+ * <p/>
+ * A tunnel direction keeps reading while the data it has read but not yet
+ * written stays below the high watermark. Once there is more, or once the
+ * buffers of all tunnels together use up the budget, it stops reading from
+ * the fast side until the slow side drained it below the low watermark.
+ * <p/>
+ * Empty buffers the event loops keep for reuse count against the budget as
+ * well, apart from the data in flight.
+ */
+class RelayMemoryBudget {
+  static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+  static final int DEFAULT_LOW_WATERMARK = 32 * 1024;
+  static final int DEFAULT_HIGH_WATERMARK = 128 * 1024;
+
+  private final long maxBytes;
+  private final int lowWatermark;
+  private final int highWatermark;
+  private final AtomicLong used = new AtomicLong();
+  private final AtomicLong pooled = new AtomicLong();
+  private final AtomicLong peak = new AtomicLong();
+  private final AtomicLong pauses = new AtomicLong();
+
+  /**
+   * @throws IllegalArgumentException
+   *     If 0 <= lowWatermark < highWatermark does not hold, or the budget
+   *     is not positive.
+   */
+  RelayMemoryBudget(final long maxBytes, final int lowWatermark, final int highWatermark) {
+    if (maxBytes <= 0 || lowWatermark < 0 || lowWatermark >= highWatermark) {
+      throw new IllegalArgumentException("Invalid budget " + maxBytes + " or watermarks " + lowWatermark + ", "
+          + highWatermark);
+    }
+    this.maxBytes = maxBytes;
+    this.lowWatermark = lowWatermark;
+    this.highWatermark = highWatermark;
+  }
+
+  /**
+   * Count a buffer holding data in flight.
+   */
+  void reserve(final int bytes) {
+    final long total = used.addAndGet(bytes);
+    long max;
+    while (total > (max = peak.get()) && !peak.compareAndSet(max, total)) {
+      // Retry until the peak is at least the total.
+    }
+  }
+
+  void release(final int bytes) {
+    used.addAndGet(-bytes);
+  }
+
+  /**
+   * Count empty buffers kept for reuse.
+   */
+  void pool(final long bytes) {
+    pooled.addAndGet(bytes);
+  }
+
+  void unpool(final long bytes) {
+    pooled.addAndGet(-bytes);
+  }
+
+  boolean isExhausted() {
+    return used.get() + pooled.get() >= maxBytes;
+  }
+
+  /**
+   * Count a tunnel direction stopping to read because of a watermark or the
+   * budget.
+   */
+  void paused() {
+    pauses.incrementAndGet();
+  }
+
+  int getLowWatermark() {
+    return lowWatermark;
+  }
+
+  int getHighWatermark() {
+    return highWatermark;
+  }
+
+  long getMaxBytes() {
+    return maxBytes;
+  }
+
+  long getUsed() {
+    return used.get();
+  }
+
+  long getPooled() {
+    return pooled.get();
+  }
+
+  long getPeak() {
+    return peak.get();
+  }
+
+  long getPauses() {
+    return pauses.get();
+  }
+}
@@ -0,0 +1,252 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read only view of the relay and admission metrics of a proxy server.
+ */
+public class RelayStatistics {
+  private final BufferSizing sizing;
+  private final RelayCounters counters;
+  private final AdmissionControl admission;
+  private final FairShare fairShare;
+  private final RelayMemoryBudget memoryBudget;
+  private final SessionStages stages;
+
+  RelayStatistics(final BufferSizing sizing, final RelayCounters counters, final AdmissionControl admission,
+      final FairShare fairShare, final RelayMemoryBudget memoryBudget, final SessionStages stages) {
+    this.sizing = sizing;
+    this.counters = counters;
+    this.admission = admission;
+    this.fairShare = fairShare;
+    this.memoryBudget = memoryBudget;
+    this.stages = stages;
+  }
+
+  /**
+   * Relay buffer sizes the adaptive sizing chooses from.
+   */
+  public int[] getBufferSizes() {
+    return BufferSizing.SIZES.clone();
+  }
+
+  /**
+   * Number of relay directions currently using each of the sizes returned by
+   * {@link #getBufferSizes()}.
+   */
+  public long[] getBufferSizeCounts() {
+    final long[] counts = new long[BufferSizing.SIZES.length];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = sizing.getSizeCount(i);
+    }
+    return counts;
+  }
+
+  /**
+   * Memory reserved by relay buffers grown beyond the initial size, in bytes.
+   */
+  public long getGrownBufferBytes() {
+    return sizing.getGrownBytes();
+  }
+
+  /**
+   * Number of read calls made on relayed sockets.
+   */
+  public long getReadCalls() {
+    return counters.getReadCalls();
+  }
+
+  /**
+   * Number of write calls made on relayed sockets, a gathering write of
+   * several buffers counts once.
+   */
+  public long getWriteCalls() {
+    return counters.getWriteCalls();
+  }
+
+  /**
+   * Number of bytes written to relayed sockets.
+   */
+  public long getRelayedBytes() {
+    return counters.getRelayedBytes();
+  }
+
+  /**
+   * Tells wether the server relays with a memory budget, otherwise the
+   * buffered bytes and backpressure pauses are not reported and zero.
+   */
+  public boolean hasMemoryBudget() {
+    return null != memoryBudget;
+  }
+
+  /**
+   * Memory currently held by relay buffers with data in flight, in bytes.
+   */
+  public long getBufferedBytes() {
+    return null == memoryBudget ? 0 : memoryBudget.getUsed();
+  }
+
+  /**
+   * Highest value {@link #getBufferedBytes()} has reached so far.
+   */
+  public long getPeakBufferedBytes() {
+    return null == memoryBudget ? 0 : memoryBudget.getPeak();
+  }
+
+  /**
+   * Memory currently held by empty relay buffers kept for reuse, in bytes.
+   */
+  public long getPooledBufferBytes() {
+    return null == memoryBudget ? 0 : memoryBudget.getPooled();
+  }
+
+  /**
+   * Limit of {@link #getBufferedBytes()} and {@link #getPooledBufferBytes()}
+   * together.
+   */
+  public long getMaxBufferedBytes() {
+    return null == memoryBudget ? 0 : memoryBudget.getMaxBytes();
+  }
+
+  /**
+   * Number of times a tunnel direction stopped reading because of its high
+   * watermark or the memory budget.
+   */
+  public long getBackpressurePauses() {
+    return null == memoryBudget ? 0 : memoryBudget.getPauses();
+  }
+
+  /**
+   * Number of sessions currently admitted, handshaking or relaying.
+   */
+  public int getSessions() {
+    return admission.getSessions();
+  }
+
+  /**
+   * Number of admitted sessions still in their handshake.
+   */
+  public int getHandshakes() {
+    return admission.getHandshakes();
+  }
+
+  /**
+   * Number of connections closed right after accept because a session or
+   * handshake limit was reached.
+   */
+  public long getRejectedSessions() {
+    return admission.getRejected();
+  }
+
+  /**
+   * Number of sessions answered with a failure reply, because of the session
+   * watermark or the queue delay of their handshake.
+   */
+  public long getShedSessions() {
+    return admission.getShed();
+  }
+
+  /**
+   * Number of sessions closed because they did not finish greeting,
+   * authentication and request within the handshake timeout.
+   */
+  public long getHandshakeTimeouts() {
+    return admission.getHandshakeTimeouts();
+  }
+
+  /**
+   * Time from accept until the request was read, below which the given
+   * percentage of the handshakes finished, in microseconds. Precise to an
+   * eighth of the value.
+   *
+   * @param percentile
+   *     Between 0 and 100, like 50 or 99.
+   */
+  public long getHandshakeTime(final double percentile) {
+    return admission.getHandshakeTime(percentile);
+  }
+
+  /**
+   * Average time ready tunnels of each scheduling class waited for their
+   * turn on the event loops, in microseconds, empty if the server does not
+   * schedule tunnels.
+   */
+  public Map<String, Long> getQueueingDelays() {
+    final Map<String, Long> delays = new LinkedHashMap<String, Long>();
+    for (final SchedulingClass schedulingClass : getClasses()) {
+      delays.put(schedulingClass.getName(), schedulingClass.getAverageDelay());
+    }
+    return delays;
+  }
+
+  /**
+   * Number of sessions waiting in the queue of each handshake stage, empty if
+   * the handshake is not staged.
+   */
+  public Map<String, Long> getStageQueueDepths() {
+    final Map<String, Long> depths = new LinkedHashMap<String, Long>();
+    for (final Stage stage : getStages()) {
+      depths.put(stage.getName(), (long) stage.getQueueDepth());
+    }
+    return depths;
+  }
+
+  /**
+   * Average time sessions waited in the queue of each handshake stage, in
+   * microseconds.
+   */
+  public Map<String, Long> getStageQueueingDelays() {
+    final Map<String, Long> delays = new LinkedHashMap<String, Long>();
+    for (final Stage stage : getStages()) {
+      delays.put(stage.getName(), stage.getAverageQueueingDelay());
+    }
+    return delays;
+  }
+
+  /**
+   * Average time sessions spent in each handshake stage, in microseconds.
+   */
+  public Map<String, Long> getStageServiceTimes() {
+    final Map<String, Long> times = new LinkedHashMap<String, Long>();
+    for (final Stage stage : getStages()) {
+      times.put(stage.getName(), stage.getAverageServiceTime());
+    }
+    return times;
+  }
+
+  /**
+   * Number of sessions dropped because the queue of a handshake stage was
+   * full.
+   */
+  public Map<String, Long> getStageRejections() {
+    final Map<String, Long> rejections = new LinkedHashMap<String, Long>();
+    for (final Stage stage : getStages()) {
+      rejections.put(stage.getName(), stage.getRejected());
+    }
+    return rejections;
+  }
+
+  /**
+   * Bytes relayed by the event loops for each scheduling class, empty if the
+   * server does not schedule tunnels.
+   */
+  public Map<String, Long> getScheduledBytes() {
+    final Map<String, Long> bytes = new LinkedHashMap<String, Long>();
+    for (final SchedulingClass schedulingClass : getClasses()) {
+      bytes.put(schedulingClass.getName(), schedulingClass.getBytes());
+    }
+    return bytes;
+  }
+
+  private Collection<SchedulingClass> getClasses() {
+    return null == fairShare ? Collections.<SchedulingClass>emptyList() : fairShare.getClasses();
+  }
+
+  private List<Stage> getStages() {
+    return null == stages ? Collections.<Stage>emptyList() : stages.getStages();
+  }
+}
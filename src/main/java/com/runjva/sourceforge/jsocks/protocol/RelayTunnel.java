@@ -0,0 +1,543 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.runjva.sourceforge.jsocks.monitor.MonitorSocket;
+import com.runjva.sourceforge.jsocks.monitor.ProxyMonitor;
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticator;
+
+/**
+ * An established CONNECT tunnel relayed by a {@link RelayEventLoop}.
+ * <p/>
+ * All methods except the constructor are called on the thread of the owning event loop.
+ */
+class RelayTunnel implements RelayEventLoop.Handler {
+  private static final Logger log = LoggerFactory.getLogger(RelayTunnel.class);
+  /**
+   * How often a direction stopped by the exhausted budget, with no data of
+   * its own to drain, checks the budget again.
+   */
+  private static final long BUDGET_RETRY = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private final Socket clientSocket;
+  private final Socket remoteSocket;
+  private final SocketChannel client;
+  private final SocketChannel remote;
+  private final ServerAuthenticator auth;
+  private final int idleTimeout;
+  private final TimingWheel timingWheel;
+  private final RelayCounters counters;
+  private final boolean coalesceWrites;
+  private final AdmissionControl admission;
+  private final Throttle throttle;
+  private final SchedulingClass schedulingClass;
+  private final RelayMemoryBudget budget;
+  private final SessionRegistry sessions;
+  private final long started;
+  private final AccessLog.Record accessRecord;
+  private final SessionRegistry.Session session = new SessionRegistry.Session() {
+    @Override
+    public long getLastActivity() {
+      final TimingWheel.Timeout current = idleDeadline;
+      return null == current ? started : current.getLastTouch();
+    }
+
+    @Override
+    public void close() {
+      final RelayEventLoop current = loop;
+      if (null != current) {
+        current.execute(new Runnable() {
+          @Override
+          public void run() {
+            RelayTunnel.this.close();
+          }
+        });
+      }
+    }
+  };
+
+  private final Pipe upstream;
+  private final Pipe downstream;
+  private SelectionKey clientKey;
+  private SelectionKey remoteKey;
+  private volatile RelayEventLoop loop;
+  private volatile TimingWheel.Timeout idleDeadline;
+  private boolean closed;
+
+  /**
+   * @param clientSocket
+   *     Socket accepted from the client, possibly wrapped by a {@link ProxyMonitor}.
+   * @param remoteSocket
+   *     Socket connected to the remote host, possibly wrapped by a {@link ProxyMonitor}.
+   * @param auth
+   *     Authenticator of the session, its session is ended when the tunnel closes.
+   * @param params
+   *     Parameters of the server, like the idle timeout and the buffer sizes.
+   * @param accessRecord
+   *     Access log record of the session, written when the tunnel closes.
+   */
+  RelayTunnel(final Socket clientSocket, final Socket remoteSocket, final ServerAuthenticator auth,
+      final ProxyServerParams params, final AccessLog.Record accessRecord) {
+    this.clientSocket = clientSocket;
+    this.remoteSocket = remoteSocket;
+    this.client = clientSocket.getChannel();
+    this.remote = remoteSocket.getChannel();
+    this.idleTimeout = params.getIdleTimeout();
+    this.timingWheel = params.getTimingWheel();
+    this.auth = auth;
+    this.counters = params.getRelayCounters();
+    this.coalesceWrites = params.isCoalesceWrites();
+    this.admission = params.getAdmission();
+    this.throttle = params.getShaper().newThrottle(null == auth ? null : auth.getAuthenticatedUser(),
+        clientSocket.getInetAddress());
+    this.budget = params.getMemoryBudget();
+    this.sessions = params.getSessions();
+    this.started = timingWheel.now();
+    this.accessRecord = accessRecord;
+    this.schedulingClass = params.getFairShare().classOf(null == auth ? null : auth.getAuthenticatedUser());
+    this.upstream = new Pipe(client, remote, params.getBufferSizing().newSizer());
+    this.downstream = new Pipe(remote, client, params.getBufferSizing().newSizer());
+    sessions.add(session);
+  }
+
+  /**
+   * Tells wether the given client and remote sockets can be relayed by an event loop.
+   */
+  static boolean canRelay(final Socket clientSocket, final Socket remoteSocket) {
+    return null != clientSocket.getChannel() && null != remoteSocket.getChannel();
+  }
+
+  void register(final RelayEventLoop loop, final Selector selector) throws IOException {
+    this.loop = loop;
+    idleDeadline = timingWheel.schedule(idleTimeout, new Runnable() {
+      @Override
+      public void run() {
+        loop.execute(new Runnable() {
+          @Override
+          public void run() {
+            log.info("Closing idle tunnel");
+            close();
+          }
+        });
+      }
+    });
+    client.configureBlocking(false);
+    remote.configureBlocking(false);
+    clientKey = client.register(selector, SelectionKey.OP_READ, this);
+    remoteKey = remote.register(selector, SelectionKey.OP_READ, this);
+  }
+
+  @Override
+  public void handle(final SelectionKey key) {
+    if (!key.isValid()) {
+      close();
+      return;
+    }
+    // Both directions wait for their turn, see Pipe.
+    if (key.isWritable()) {
+      (key == clientKey ? downstream : upstream).writable();
+    }
+    if (key.isReadable()) {
+      (key == clientKey ? upstream : downstream).readable();
+    }
+    updateInterest();
+  }
+
+  void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    log.info("Closing tunnel");
+    if (null != idleDeadline) {
+      idleDeadline.cancel();
+    }
+    if (null != loop) {
+      loop.remove(this);
+    }
+    upstream.close();
+    downstream.close();
+    countChannelBytes(clientSocket, upstream.bytesRead, downstream.bytesWritten);
+    countChannelBytes(remoteSocket, downstream.bytesRead, upstream.bytesWritten);
+    close(clientSocket);
+    close(remoteSocket);
+    if (null != auth) {
+      auth.endSession();
+    }
+    admission.sessionEnded();
+    sessions.remove(session);
+    accessRecord.setBytes(upstream.bytesWritten, downstream.bytesWritten);
+    accessRecord.close();
+  }
+
+  private void closeIfDone() {
+    if (upstream.isDone() && downstream.isDone()) {
+      log.debug("End of stream on both sides");
+      close();
+      return;
+    }
+    updateInterest();
+  }
+
+  private void updateInterest() {
+    clientKey.interestOps((upstream.reading ? SelectionKey.OP_READ : 0)
+        | (downstream.waitsForWritable() ? SelectionKey.OP_WRITE : 0));
+    remoteKey.interestOps((downstream.reading ? SelectionKey.OP_READ : 0)
+        | (upstream.waitsForWritable() ? SelectionKey.OP_WRITE : 0));
+  }
+
+  private static void countChannelBytes(final Socket socket, final long input, final long output) {
+    if (socket instanceof MonitorSocket) {
+      final MonitorSocket monitorSocket = (MonitorSocket) socket;
+      monitorSocket.countChannelBytes(ProxyMonitor.StreamDirection.INPUT, input);
+      monitorSocket.countChannelBytes(ProxyMonitor.StreamDirection.OUTPUT, output);
+    }
+  }
+
+  private static void close(final Socket socket) {
+    try {
+      socket.close();
+    }
+    catch (final IOException e) {
+      log.warn("Exception closing {}", socket, e);
+    }
+  }
+
+  /**
+   * One direction of the tunnel.
+   * <p/>
+   * Data moves from one channel to the other through direct buffers of the
+   * loop's pool. Buffers are only held while data is pending, so idle
+   * tunnels hold no buffers at all. Their size follows the reads seen so far.
+   * Reads continue while data is pending, until it reaches the high
+   * watermark or the memory budget is used up, and resume once the pending
+   * data drained below the low watermark. When coalescing, reads continue
+   * into further buffers while they come back full, and pending buffers are
+   * written with gathering writes. The end of stream is passed on by shutting
+   * down the output of the other channel once all data before it was
+   * written.
+   * <p/>
+   * Reads and the writes of data left pending wait for the turn of the
+   * direction in the {@link DeficitRoundRobin} of the loop. A direction whose
+   * last read filled its buffer likely has more data, it queues up again
+   * right away, so it is served while its class has deficit left.
+   */
+  private final class Pipe extends DeficitRoundRobin.Task {
+    private static final int MAX_GATHER = 4;
+
+    private final SocketChannel from;
+    private final SocketChannel to;
+    private final AdaptiveBufferSizer sizer;
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private long pendingBytes;
+    private boolean reading = true;
+    private boolean writing = false;
+    private boolean eof = false;
+    private boolean done = false;
+    private boolean throttled = false;
+    private boolean queued = false;
+    private boolean readable = false;
+    private boolean writable = false;
+    private boolean backlogged = false;
+    private boolean backpressured = false;
+    private boolean retrying = false;
+    private long bytesRead;
+    private long bytesWritten;
+
+    Pipe(final SocketChannel from, final SocketChannel to, final AdaptiveBufferSizer sizer) {
+      this.from = from;
+      this.to = to;
+      this.sizer = sizer;
+    }
+
+    /**
+     * The channel read from has data, it is read once the scheduler gives
+     * this direction its turn.
+     */
+    void readable() {
+      readable = true;
+      enqueue();
+    }
+
+    /**
+     * The channel written to takes data again, the pending data is written
+     * once the scheduler gives this direction its turn.
+     */
+    void writable() {
+      writable = true;
+      enqueue();
+    }
+
+    /**
+     * Stops reading and writing until the scheduler gives this direction
+     * its turn.
+     */
+    private void enqueue() {
+      reading = false;
+      if (!queued) {
+        queued = true;
+        loop.getScheduler().enqueue(this);
+      }
+    }
+
+    /**
+     * Tells wether pending data waits for the channel written to.
+     */
+    boolean waitsForWritable() {
+      return writing && !queued;
+    }
+
+    @Override
+    SchedulingClass getSchedulingClass() {
+      return schedulingClass;
+    }
+
+    /**
+     * @return The bytes written, data read but left pending is paid for
+     *         once it is written.
+     */
+    @Override
+    long run() {
+      queued = false;
+      if (closed) {
+        return 0;
+      }
+      final long written = bytesWritten;
+      try {
+        if (writable) {
+          writable = false;
+          flush();
+        }
+        if (readable) {
+          readable = false;
+          transfer();
+        }
+        if (backlogged && !eof && !throttled && !backpressured) {
+          readable();
+        }
+        closeIfDone();
+        return bytesWritten - written;
+      }
+      catch (final ClosedChannelException e) {
+        RelayTunnel.this.close();
+      }
+      catch (final IOException e) {
+        log.debug("Relay exception", e);
+        RelayTunnel.this.close();
+      }
+      return 0;
+    }
+
+    /**
+     * Reads available data and forwards as much of it as possible, stops
+     * reading on the end of stream.
+     */
+    private void transfer() throws IOException {
+      backlogged = false;
+      long allowed = Long.MAX_VALUE;
+      long now = 0;
+      if (null != throttle) {
+        now = System.nanoTime();
+        allowed = throttle.available(now);
+        if (allowed <= 0) {
+          pause(throttle.delay(now));
+          return;
+        }
+      }
+      final int maxReads = coalesceWrites ? MAX_GATHER : 1;
+      long total = 0;
+      int reads = 0;
+      boolean full = false;
+      do {
+        final ByteBuffer buffer = loop.getBufferPool().acquire(sizer.getSize());
+        if (allowed - total < buffer.remaining()) {
+          buffer.limit((int) (allowed - total));
+        }
+        final int len;
+        try {
+          len = from.read(buffer);
+        }
+        catch (final IOException e) {
+          // Like a reset connection, the buffer is not pending yet.
+          loop.getBufferPool().release(buffer, budget);
+          throw e;
+        }
+        reads++;
+        if (len <= 0) {
+          loop.getBufferPool().release(buffer, budget);
+          eof = len < 0;
+          full = false;
+          break;
+        }
+        if (sizer.record(len, timingWheel.now())) {
+          sizer.tuneSockets(from.socket(), to.socket());
+        }
+        total += len;
+        full = !buffer.hasRemaining();
+        buffer.flip();
+        pending.addLast(buffer);
+        budget.reserve(buffer.capacity());
+      }
+      while (full && reads < maxReads && total < allowed && pendingBytes + total < budget.getHighWatermark());
+      backlogged = full;
+      counters.countReads(reads);
+      if (null != throttle && total > 0) {
+        throttle.take(total, now);
+      }
+
+      if (total > 0) {
+        bytesRead += total;
+        pendingBytes += total;
+        idleDeadline.touch();
+      }
+      if (writing) {
+        // The rest follows once the other channel is writable again.
+        updateReading();
+      }
+      else {
+        flush();
+      }
+    }
+
+    /**
+     * Writes pending data until all of it is written or the other channel
+     * would block.
+     */
+    void flush() throws IOException {
+      long written = 0;
+      int writes = 0;
+      while (!pending.isEmpty()) {
+        final long len;
+        if (1 == pending.size() || !coalesceWrites) {
+          len = to.write(pending.peekFirst());
+        }
+        else {
+          int count = 0;
+          for (final ByteBuffer buffer : pending) {
+            gather[count++] = buffer;
+            if (count == gather.length) {
+              break;
+            }
+          }
+          len = to.write(gather, 0, count);
+          Arrays.fill(gather, 0, count, null);
+        }
+        writes++;
+        written += len;
+        while (!pending.isEmpty() && !pending.peekFirst().hasRemaining()) {
+          releaseBuffer(pending.pollFirst());
+        }
+        if (0 == len || (!pending.isEmpty() && pending.peekFirst().position() > 0)) {
+          // The other channel would block.
+          break;
+        }
+      }
+      if (writes > 0) {
+        bytesWritten += written;
+        pendingBytes -= written;
+        counters.countWrites(writes, written);
+      }
+      writing = !pending.isEmpty();
+      updateReading();
+      shutdownIfDone();
+    }
+
+    /**
+     * Tells wether the end of stream was reached and passed on.
+     */
+    boolean isDone() {
+      return done;
+    }
+
+    /**
+     * Stop or resume reading according to the watermarks and the budget.
+     */
+    private void updateReading() {
+      if (backpressured) {
+        if (pendingBytes <= budget.getLowWatermark() && !budget.isExhausted()) {
+          backpressured = false;
+        }
+      }
+      else if (pendingBytes >= budget.getHighWatermark() || budget.isExhausted()) {
+        backpressured = true;
+        budget.paused();
+      }
+      if (backpressured && pending.isEmpty() && !eof) {
+        retryLater();
+      }
+      reading = !eof && !throttled && !queued && !backpressured;
+    }
+
+    /**
+     * Check the budget again later, no write of this direction frees memory.
+     */
+    private void retryLater() {
+      if (retrying) {
+        return;
+      }
+      retrying = true;
+      loop.schedule(BUDGET_RETRY, new Runnable() {
+        @Override
+        public void run() {
+          retrying = false;
+          if (!closed) {
+            updateReading();
+            updateInterest();
+          }
+        }
+      });
+    }
+
+    /**
+     * Stop reading until the throttle allows to relay again.
+     */
+    private void pause(final long delay) {
+      throttled = true;
+      reading = false;
+      loop.schedule(delay, new Runnable() {
+        @Override
+        public void run() {
+          throttled = false;
+          if (!closed) {
+            updateReading();
+            updateInterest();
+          }
+        }
+      });
+    }
+
+    private void shutdownIfDone() throws IOException {
+      if (eof && !writing && !done) {
+        done = true;
+        log.debug("End of stream, shutting down output of {}", to);
+        to.shutdownOutput();
+      }
+    }
+
+    private void releaseBuffer(final ByteBuffer buffer) {
+      budget.release(buffer.capacity());
+      loop.getBufferPool().release(buffer, budget);
+    }
+
+    void close() {
+      while (!pending.isEmpty()) {
+        releaseBuffer(pending.pollFirst());
+      }
+      pendingBytes = 0;
+      sizer.close();
+    }
+  }
+}
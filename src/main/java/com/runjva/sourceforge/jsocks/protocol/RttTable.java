@@ -0,0 +1,98 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Smoothed connect round trip time per destination address.
+ * <p/>
+ * Every sample moves the estimate by an eighth of the difference, like the
+ * smoothed RTT of TCP. A failure is a sample of a penalty, and marks the
+ * address as failed until the next connect succeeds. Only the most recently
+ * used addresses are kept.
+ */
+class RttTable {
+  static final int DEFAULT_MAX_ADDRESSES = 4096;
+  private static final int WEIGHT_SHIFT = 3;
+
+  private final Cache<InetAddress, Entry> rtts;
+
+  /**
+   * @param maxAddresses
+   *     Number of addresses to keep an estimate for.
+   */
+  RttTable(final int maxAddresses) {
+    rtts = CacheBuilder.newBuilder().maximumSize(maxAddresses).build();
+  }
+
+  /**
+   * Adds a connect time sample.
+   *
+   * @param micros
+   *     Connect time in microseconds.
+   */
+  void record(final InetAddress address, final long micros) {
+    sample(address, micros).failed = false;
+  }
+
+  /**
+   * Adds the penalty of a failed connect as a sample.
+   *
+   * @param penalty
+   *     Connect time to record in microseconds.
+   */
+  void failed(final InetAddress address, final long penalty) {
+    sample(address, penalty).failed = true;
+  }
+
+  /**
+   * Smoothed connect time of the address in microseconds, or -1 if there is
+   * no estimate for it.
+   */
+  long get(final InetAddress address) {
+    final Entry entry = rtts.getIfPresent(address);
+    return null == entry ? -1 : entry.rtt.get();
+  }
+
+  /**
+   * Tells wether the last connect to the address failed.
+   */
+  boolean hasFailed(final InetAddress address) {
+    final Entry entry = rtts.getIfPresent(address);
+    return null != entry && entry.failed;
+  }
+
+  // Private methods
+  // ///////////////
+
+  private Entry sample(final InetAddress address, final long micros) {
+    Entry entry = rtts.getIfPresent(address);
+    if (null == entry) {
+      entry = new Entry(micros);
+      final Entry previous = rtts.asMap().putIfAbsent(address, entry);
+      if (null == previous) {
+        return entry;
+      }
+      entry = previous;
+    }
+    final AtomicLong rtt = entry.rtt;
+    long old;
+    do {
+      old = rtt.get();
+    }
+    while (!rtt.compareAndSet(old, old + ((micros - old) >> WEIGHT_SHIFT)));
+    return entry;
+  }
+
+  private static final class Entry {
+    private final AtomicLong rtt;
+    private volatile boolean failed;
+
+    Entry(final long micros) {
+      rtt = new AtomicLong(micros);
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A class of users sharing the relay capacity of the event loops by weight,
+ * see {@link DeficitRoundRobin}.
+ */
+class SchedulingClass {
+  private final String name;
+  private final int weight;
+  private final AtomicLong transfers = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong delayNanos = new AtomicLong();
+
+  SchedulingClass(final String name, final int weight) {
+    if (weight <= 0) {
+      throw new IllegalArgumentException("Weight must be positive: " + weight);
+    }
+    this.name = name;
+    this.weight = weight;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  int getWeight() {
+    return weight;
+  }
+
+  /**
+   * Count a transfer of the given bytes, which waited the given nanoseconds
+   * for its turn.
+   */
+  void served(final long bytes, final long delay) {
+    transfers.incrementAndGet();
+    this.bytes.addAndGet(bytes);
+    delayNanos.addAndGet(delay);
+  }
+
+  long getBytes() {
+    return bytes.get();
+  }
+
+  /**
+   * Average time a ready tunnel of this class waited for its turn, in
+   * microseconds.
+   */
+  long getAverageDelay() {
+    final long count = transfers.get();
+    return 0 == count ? 0 : TimeUnit.NANOSECONDS.toMicros(delayNanos.get() / count);
+  }
+}
@@ -0,0 +1,117 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The live sessions of a server, handshaking or relaying, so they can be
+ * closed when the server drains.
+ */
+class SessionRegistry {
+  private static final Logger log = LoggerFactory.getLogger(SessionRegistry.class);
+
+  /**
+   * Sessions without activity for this long are closed first when draining.
+   */
+  static final long DRAIN_IDLE_TIME = 1000;
+  private static final long DRAIN_REPORT_INTERVAL = 1000;
+
+  /**
+   * A session as seen by the registry.
+   */
+  interface Session {
+    /**
+     * Coarse time of the last data relayed or the start of the session, see
+     * {@link TimingWheel#now()}.
+     */
+    long getLastActivity();
+
+    /**
+     * Close the session, may be called from any thread.
+     */
+    void close();
+  }
+
+  private final Set<Session> sessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+
+  void add(final Session session) {
+    sessions.add(session);
+  }
+
+  void remove(final Session session) {
+    sessions.remove(session);
+  }
+
+  int size() {
+    return sessions.size();
+  }
+
+  /**
+   * Close the sessions without activity since the given time.
+   *
+   * @return The number of sessions closed.
+   */
+  int closeIdle(final long idleSince) {
+    final List<Session> idle = new ArrayList<Session>();
+    for (final Session session : sessions) {
+      if (session.getLastActivity() <= idleSince) {
+        idle.add(session);
+      }
+    }
+    return close(idle);
+  }
+
+  /**
+   * @return The number of sessions closed.
+   */
+  int closeAll() {
+    return close(new ArrayList<Session>(sessions));
+  }
+
+  /**
+   * Wait up to the given time for the sessions to end, closing idle ones as
+   * they turn up and logging the progress every second. Whatever is left at
+   * the deadline is closed.
+   *
+   * @return The number of active sessions closed at the deadline.
+   */
+  int drain(final long timeout, final TimingWheel timingWheel) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + timeout;
+    long report = 0;
+    long left;
+    while (0 != sessions.size() && 0 < (left = deadline - System.currentTimeMillis())) {
+      if (report <= System.currentTimeMillis()) {
+        log.info("Draining {} sessions, {} ms left", sessions.size(), left);
+        report = System.currentTimeMillis() + DRAIN_REPORT_INTERVAL;
+      }
+      final int idle = closeIdle(timingWheel.now() - DRAIN_IDLE_TIME);
+      if (0 != idle) {
+        log.info("Closed {} idle sessions", idle);
+      }
+      Thread.sleep(Math.min(left, TimingWheel.DEFAULT_TICK));
+    }
+
+    final int forced = closeAll();
+    if (0 != forced) {
+      log.warn("Closed {} active sessions at the drain deadline", forced);
+    }
+    return forced;
+  }
+
+  // Private methods
+  // ///////////////
+
+  private int close(final List<Session> closed) {
+    for (final Session session : closed) {
+      sessions.remove(session);
+      session.close();
+    }
+    return closed.size();
+  }
+}
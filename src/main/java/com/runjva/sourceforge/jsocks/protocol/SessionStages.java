@@ -0,0 +1,52 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The stages a session passes through before relaying, each with its own
+ * threads and queue.
+ * <p/>
+ * The handshake stage runs the authentication, including ident lookups, and
+ * reads the request. The resolve stage looks up the host names of SOCKS5
+ * requests and the connect stage opens the outbound connection. The relay
+ * then runs on the event loops or the session executor, BIND and UDP
+ * requests go there right after the handshake, as they keep their thread.
+ */
+class SessionStages {
+  static final String HANDSHAKE = "handshake";
+  static final String RESOLVE = "resolve";
+  static final String CONNECT = "connect";
+
+  private final Stage handshake;
+  private final Stage resolve;
+  private final Stage connect;
+
+  SessionStages(final Stage handshake, final Stage resolve, final Stage connect) {
+    this.handshake = handshake;
+    this.resolve = resolve;
+    this.connect = connect;
+  }
+
+  Stage getHandshake() {
+    return handshake;
+  }
+
+  Stage getResolve() {
+    return resolve;
+  }
+
+  Stage getConnect() {
+    return connect;
+  }
+
+  List<Stage> getStages() {
+    return Arrays.asList(handshake, resolve, connect);
+  }
+
+  void shutdown() {
+    for (final Stage stage : getStages()) {
+      stage.shutdown();
+    }
+  }
+}
@@ -1,6 +1,5 @@
 package com.runjva.sourceforge.jsocks.protocol;
 
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -19,12 +18,13 @@ import com.runjva.sourceforge.jsocks.dns.DnsResolverFactory;
  */
 
 class Socks4Message extends ProxyMessage {
-  private Logger log = LoggerFactory.getLogger(Socks4Message.class);
+  private static final Logger log = LoggerFactory.getLogger(Socks4Message.class);
+  private static final DnsResolver DEFAULT_DNS_RESOLVER = DnsResolverFactory.getDefaultDnsResolverInstance();
   private static final String EMPTY_USERNAME = "";
 
   private byte[] msgBytes;
   private int msgLength;
-  private DnsResolver dnsResolver = DnsResolverFactory.getDefaultDnsResolverInstance();
+  private DnsResolver dnsResolver = DEFAULT_DNS_RESOLVER;
 
   /**
    * Server failed reply, cmd command for failed request
@@ -125,9 +125,8 @@ class Socks4Message extends ProxyMessage {
   @Override
   public void read(final InputStream in, final boolean clientMode)
       throws IOException {
-    final DataInputStream d_in = new DataInputStream(in);
-    version = d_in.readUnsignedByte();
-    command = d_in.readUnsignedByte();
+    version = readUnsignedByte(in);
+    command = readUnsignedByte(in);
     if (clientMode && (command != REPLY_OK)) {
       String errMsg;
       // FIXME: Range should be replaced with cases.
@@ -139,9 +138,9 @@ class Socks4Message extends ProxyMessage {
       }
       throw new SocksException(command, errMsg);
     }
-    port = d_in.readUnsignedShort();
+    port = readUnsignedByte(in) << 8 | readUnsignedByte(in);
     final byte[] addr = new byte[4];
-    d_in.readFully(addr);
+    readFully(in, addr);
 
     // read username
     if (!clientMode) {
@@ -151,7 +150,7 @@ class Socks4Message extends ProxyMessage {
       int b = in.read();
       if (b > 0) {
         StringBuilder builder = new StringBuilder(64);// simple guess of
-        builder.append(b);
+        builder.append((char) b);
 
         while ((b = in.read()) > 0) {
           builder.append((char) b);
@@ -187,7 +186,7 @@ class Socks4Message extends ProxyMessage {
     }
     else {
       ip = bytes2IP(addr);
-      host = ip.getHostName();
+      host = ip.getHostAddress();
     }
   }
 
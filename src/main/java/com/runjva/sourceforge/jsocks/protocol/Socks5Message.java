@@ -1,6 +1,5 @@
 package com.runjva.sourceforge.jsocks.protocol;
 
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -18,7 +17,8 @@ import com.runjva.sourceforge.jsocks.dns.DnsResolverFactory;
  */
 
 class Socks5Message extends ProxyMessage {
-  private Logger log = LoggerFactory.getLogger(Socks5Message.class);
+  private static final Logger log = LoggerFactory.getLogger(Socks5Message.class);
+  private static final DnsResolver DEFAULT_DNS_RESOLVER = DnsResolverFactory.getDefaultDnsResolverInstance();
 
   /**
    * Address type of given message
@@ -26,7 +26,7 @@ class Socks5Message extends ProxyMessage {
   public int addrType;
 
   byte[] data;
-  private DnsResolver dnsResolver = DnsResolverFactory.getDefaultDnsResolverInstance();
+  private DnsResolver dnsResolver = DEFAULT_DNS_RESOLVER;
 
   /**
    * Server error response.
@@ -58,9 +58,8 @@ class Socks5Message extends ProxyMessage {
     if (ip == null) {
       this.host = "0.0.0.0";
     }
-    else {
-      this.host = ip.getHostName();
-    }
+    // Otherwise the host is made from the IP only if asked for, replies
+    // must not wait for a reverse lookup.
 
     this.version = SOCKS_VERSION;
 
@@ -217,42 +216,40 @@ class Socks5Message extends ProxyMessage {
     data = null;
     ip = null;
 
-    final DataInputStream di = new DataInputStream(in);
-
-    version = di.readUnsignedByte();
-    command = di.readUnsignedByte();
+    version = readUnsignedByte(in);
+    command = readUnsignedByte(in);
 
     if (clientMode && (command != 0)) {
       throw new SocksException(command);
     }
 
-    di.readUnsignedByte();
-    addrType = di.readUnsignedByte();
+    readUnsignedByte(in);
+    addrType = readUnsignedByte(in);
 
     byte addr[];
 
     switch (addrType) {
       case SOCKS_ATYP_IPV4:
         addr = new byte[4];
-        di.readFully(addr);
+        readFully(in, addr);
         host = bytes2IPV4(addr, 0);
         break;
       case SOCKS_ATYP_IPV6:
         addr = new byte[SOCKS_IPV6_LENGTH];// I believe it is 16 bytes,huge!
-        di.readFully(addr);
+        readFully(in, addr);
         host = bytes2IPV6(addr, 0);
         break;
       case SOCKS_ATYP_DOMAINNAME:
         log.debug("Reading ATYP_DOMAINNAME");
-        addr = new byte[di.readUnsignedByte()];// Next byte shows the length
-        di.readFully(addr);
+        addr = new byte[readUnsignedByte(in)];// Next byte shows the length
+        readFully(in, addr);
         host = new String(addr);
         break;
       default:
         throw (new SocksException(SocksProxyBase.SOCKS_JUST_ERROR));
     }
 
-    port = di.readUnsignedShort();
+    port = readUnsignedByte(in) << 8 | readUnsignedByte(in);
 
     if ((addrType != SOCKS_ATYP_DOMAINNAME) && doResolveIP) {
       try {
@@ -318,7 +315,7 @@ class Socks5Message extends ProxyMessage {
     // FIXME: Single line version, please.
     final String s = "Socks5Message:" + "\n" + "VN   " + version + "\n"
         + "CMD  " + command + "\n" + "ATYP " + addrType + "\n"
-        + "ADDR " + host + "\n" + "PORT " + port + "\n";
+        + "ADDR " + getHost() + "\n" + "PORT " + port + "\n";
     return s;
   }
 
@@ -1,5 +1,6 @@
 package com.runjva.sourceforge.jsocks.protocol;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -22,8 +23,12 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
   private int selectedMethod;
 
   boolean resolveAddrLocally = true;
+  boolean pipelining = false;
   UDPEncapsulation udp_encapsulation = null;
 
+  // Greeting and authentication waiting to go out with the request.
+  private ByteArrayOutputStream pipelined;
+
 
   // Public Constructors
   // ====================
@@ -125,6 +130,34 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
     return resolveAddrLocally;
   }
 
+  /**
+   * Wether to send greeting, authentication and request back to back.
+   * <p/>
+   * Without pipelining every step of the handshake waits for the answer of
+   * the server, which costs two or three round trips before any data flows.
+   * With pipelining they go out in one segment and the answers are read
+   * afterwards, a single round trip. The greeting then offers one method
+   * only, username/password if set, otherwise none, so the server must
+   * accept that method. Other authentication methods are never pipelined.
+   *
+   * @param pipelining
+   *     Wether to pipeline the handshake, off by default.
+   *
+   * @return Previous settings.
+   */
+  public boolean setPipelining(boolean pipelining) {
+    final boolean old = this.pipelining;
+    this.pipelining = pipelining;
+    return old;
+  }
+
+  /**
+   * @see Socks5Proxy#setPipelining(boolean)
+   */
+  public boolean isPipelining() {
+    return pipelining;
+  }
+
   /**
    * Adds another authentication method.
    *
@@ -178,6 +211,7 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
 
     newProxy.directHosts = (InetRange) directHosts.clone();
     newProxy.resolveAddrLocally = resolveAddrLocally;
+    newProxy.pipelining = pipelining;
     newProxy.chainProxy = chainProxy;
     return newProxy;
   }
@@ -196,6 +230,7 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
     copy.directHosts = this.directHosts;
     copy.chainProxy = this.chainProxy;
     copy.resolveAddrLocally = this.resolveAddrLocally;
+    copy.pipelining = this.pipelining;
     return copy;
   }
 
@@ -209,6 +244,11 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
     Authentication auth;
     final Socket ps = proxySocket; // The name is too long
 
+    pipelined = null;
+    if (pipelining && startPipelined()) {
+      return;
+    }
+
     try {
 
       final byte nMethods = (byte) authMethods.size(); // Number of
@@ -227,24 +267,7 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
       out.write(buf);
       out.flush();
 
-      final int versionNumber = in.read();
-      selectedMethod = in.read();
-
-      if ((versionNumber < 0) || (selectedMethod < 0)) {
-        // EOF condition was reached
-        endSession();
-        final String s = "Connection to proxy lost.";
-        throw new SocksException(SOCKS_PROXY_IO_ERROR, s);
-      }
-
-      if (versionNumber < version) {
-        // What should we do??
-      }
-
-      if (selectedMethod == 0xFF) { // No method selected
-        ps.close();
-        throw (new SocksException(SOCKS_AUTH_NOT_SUPPORTED));
-      }
+      readSelection();
 
       auth = getAuthenticationMethod(selectedMethod);
       if (auth == null) {
@@ -290,6 +313,47 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
     }
   }
 
+  /**
+   * Sends the request, after the greeting and authentication if they were
+   * held back for pipelining, and reads the reply.
+   */
+  @Override
+  protected ProxyMessage exchange(ProxyMessage request) throws SocksException {
+    final ByteArrayOutputStream handshake = pipelined;
+    if (null == handshake) {
+      return super.exchange(request);
+    }
+    pipelined = null;
+    final int offered = selectedMethod;
+    try {
+      writeRequest(request, handshake);
+      handshake.writeTo(out);
+      out.flush();
+
+      readSelection();
+      if (selectedMethod != offered) {
+        endSession();
+        throw new SocksException(SOCKS_JUST_ERROR, "Server selected a method which was not offered");
+      }
+      if (UserPasswordAuthentication.METHOD_ID == selectedMethod) {
+        final int authVersion = in.read();
+        final int status = in.read();
+        if (authVersion < 0 || status != 0) {
+          // Server closed connection, or auth failed.
+          endSession();
+          throw new SocksException(SOCKS_AUTH_FAILURE);
+        }
+      }
+      return formMessage(in);
+    }
+    catch (final SocksException s_ex) {
+      throw s_ex;
+    }
+    catch (final IOException io_ex) {
+      throw new SocksException(SOCKS_PROXY_IO_ERROR, io_ex);
+    }
+  }
+
   @Override
   protected ProxyMessage formMessage(int cmd, InetAddress ip, int port) {
     return new Socks5Message(cmd, ip, port);
@@ -312,4 +376,60 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
     return new Socks5Message(in);
   }
 
+  // Private methods
+  // ===============
+
+  /**
+   * Holds back the greeting, offering a single method, and the
+   * authentication, to be sent along with the request.
+   *
+   * @return false if no method registered can be pipelined.
+   */
+  private boolean startPipelined() {
+    // Only these are known to use the plain streams of the socket.
+    final Authentication password = getAuthenticationMethod(UserPasswordAuthentication.METHOD_ID);
+    final Authentication none = getAuthenticationMethod(0);
+    final ByteArrayOutputStream handshake = new ByteArrayOutputStream();
+    handshake.write(version);
+    handshake.write(1);
+    if (null != password && UserPasswordAuthentication.class == password.getClass()) {
+      handshake.write(UserPasswordAuthentication.METHOD_ID);
+      final byte[] request = ((UserPasswordAuthentication) password).request;
+      handshake.write(request, 0, request.length);
+      selectedMethod = UserPasswordAuthentication.METHOD_ID;
+    }
+    else if (null != none && AuthenticationNone.class == none.getClass()) {
+      handshake.write(0);
+      selectedMethod = 0;
+    }
+    else {
+      return false;
+    }
+    pipelined = handshake;
+    return true;
+  }
+
+  /**
+   * Reads the method selected by the server.
+   */
+  private void readSelection() throws IOException {
+    final int versionNumber = in.read();
+    selectedMethod = in.read();
+
+    if ((versionNumber < 0) || (selectedMethod < 0)) {
+      // EOF condition was reached
+      endSession();
+      final String s = "Connection to proxy lost.";
+      throw new SocksException(SOCKS_PROXY_IO_ERROR, s);
+    }
+
+    if (versionNumber < version) {
+      // What should we do??
+    }
+
+    if (selectedMethod == 0xFF) { // No method selected
+      proxySocket.close();
+      throw (new SocksException(SOCKS_AUTH_NOT_SUPPORTED));
+    }
+  }
 }
@@ -0,0 +1,166 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import com.runjva.sourceforge.jsocks.server.NonBlockingAuthenticator;
+
+/**
+ * Server side of the SOCKS4, SOCKS4a and SOCKS5 handshake as a state machine
+ * fed with whatever bytes arrived so far.
+ * <p/>
+ * Every call of {@link #advance} consumes the complete messages of the
+ * buffer and puts the answers into the output buffer, an incomplete message
+ * stays in the buffer for the next call. The handshake ends with the
+ * request, which is not answered and not resolved, that is up to the session.
+ * <p/>
+ * Not thread safe, every connection uses a handshake of its own.
+ */
+final class SocksHandshake {
+  private static final int VERSION = 0;
+  private static final int GREETING = 1;
+  private static final int AUTHENTICATION = 2;
+  private static final int SOCKS5_REQUEST = 3;
+  private static final int SOCKS4_REQUEST = 4;
+  private static final int DONE = 5;
+  private static final int AUTHENTICATION_SUCCESS = 0;
+  private static final int AUTHENTICATION_FAILURE = 1;
+
+  private final NonBlockingAuthenticator.Handshake auth;
+  private final MessageView view = new MessageView();
+  private int state = VERSION;
+  private ProxyMessage request;
+
+  SocksHandshake(final NonBlockingAuthenticator.Handshake auth) {
+    this.auth = auth;
+  }
+
+  /**
+   * Consumes the bytes from the position of in.
+   *
+   * @param out
+   *     Answers to the client, needs room for 64 bytes.
+   *
+   * @return true once the request was read.
+   *
+   * @throws IOException
+   *     If the client sent garbage or was refused, the answer telling it so
+   *     may be in out.
+   */
+  boolean advance(final ByteBuffer in, final ByteBuffer out) throws IOException {
+    while (DONE != state) {
+      if (!step(in, out)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The request, once {@link #advance} returned true. A SOCKS4a request
+   * carries the host name only.
+   */
+  ProxyMessage getRequest() {
+    return request;
+  }
+
+  // Private methods
+  // ///////////////
+
+  /**
+   * @return false if the message of the current state did not arrive yet.
+   */
+  private boolean step(final ByteBuffer in, final ByteBuffer out) throws IOException {
+    switch (state) {
+      case VERSION:
+        return readVersion(in);
+      case GREETING:
+        if (!view.parseGreeting(in)) {
+          return false;
+        }
+        selectMethod(out);
+        return true;
+      case AUTHENTICATION:
+        if (!view.parseAuthentication(in)) {
+          return false;
+        }
+        authenticate(out);
+        return true;
+      case SOCKS5_REQUEST:
+        if (!view.parseSocks5(in)) {
+          return false;
+        }
+        request = socks5Request();
+        state = DONE;
+        return true;
+      case SOCKS4_REQUEST:
+        if (!view.parseSocks4Request(in)) {
+          return false;
+        }
+        request = socks4Request();
+        state = DONE;
+        return true;
+      default:
+        throw new IllegalStateException("Handshake state " + state);
+    }
+  }
+
+  private boolean readVersion(final ByteBuffer in) throws SocksException {
+    final int version = MessageView.peekVersion(in);
+    if (Socks5Message.SOCKS_VERSION == version) {
+      state = GREETING;
+    }
+    else if (Socks4Message.SOCKS_VERSION == version) {
+      state = SOCKS4_REQUEST;
+    }
+    else if (version >= 0) {
+      throw new SocksException(SocksProxyBase.SOCKS_JUST_ERROR, "Unsupported version " + version);
+    }
+    return version >= 0;
+  }
+
+  private void selectMethod(final ByteBuffer out) throws SocksException {
+    final int method = auth.selectMethod(view.getMethods(), view.getMethodCount());
+    if (NonBlockingAuthenticator.NO_AUTHENTICATION_METHOD == method) {
+      state = SOCKS5_REQUEST;
+    }
+    else if (NonBlockingAuthenticator.USER_PASSWORD_METHOD == method) {
+      state = AUTHENTICATION;
+    }
+    else {
+      MessageEncoder.putSelection(out, Socks5Message.SOCKS_VERSION, NonBlockingAuthenticator.NO_ACCEPTABLE_METHOD);
+      throw new SocksException(SocksProxyBase.SOCKS_AUTH_NOT_SUPPORTED);
+    }
+    MessageEncoder.putSelection(out, Socks5Message.SOCKS_VERSION, method);
+  }
+
+  private void authenticate(final ByteBuffer out) throws SocksException {
+    final String user = view.getUser();
+    if (!auth.authenticate(user, view.getPassword())) {
+      MessageEncoder.putSelection(out, MessageView.AUTHENTICATION_VERSION, AUTHENTICATION_FAILURE);
+      throw new SocksException(SocksProxyBase.SOCKS_AUTH_FAILURE, "Authentication of " + user + " failed");
+    }
+    MessageEncoder.putSelection(out, MessageView.AUTHENTICATION_VERSION, AUTHENTICATION_SUCCESS);
+    state = SOCKS5_REQUEST;
+  }
+
+  private ProxyMessage socks5Request() {
+    if (Socks5Message.SOCKS_ATYP_DOMAINNAME == view.getAddressType()) {
+      return new Socks5Message(view.getCommand(), view.getHost(), view.getPort());
+    }
+    return new Socks5Message(view.getCommand(), view.toInetAddress(), view.getPort());
+  }
+
+  private ProxyMessage socks4Request() throws SocksException {
+    final String user = view.getUser();
+    if (!auth.acceptSocks4(user)) {
+      throw new SocksException(SocksProxyBase.SOCKS_JUST_ERROR, "SOCKS4 not accepted");
+    }
+    final InetAddress ip = view.toInetAddress();
+    final Socks4Message msg = new Socks4Message(Socks4Message.SOCKS_VERSION, view.getCommand(), ip,
+        view.getPort(), user);
+    msg.host = null == ip ? view.getHost() : ip.getHostAddress();
+    return msg;
+  }
+}
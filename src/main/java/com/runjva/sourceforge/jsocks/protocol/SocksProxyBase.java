@@ -1,5 +1,6 @@
 package com.runjva.sourceforge.jsocks.protocol;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
@@ -29,6 +30,9 @@ public abstract class SocksProxyBase {
 
   protected int version;
 
+  // Client data to send along with the next request, see SocksSocket.
+  byte[] earlyData;
+
   protected SocksProxyBase chainProxy = null;
 
   // Protected static/class variables
@@ -523,7 +527,14 @@ public abstract class SocksProxyBase {
   protected ProxyMessage exchange(ProxyMessage request) throws SocksException {
     ProxyMessage reply;
     try {
-      request.write(out);
+      if (null == earlyData) {
+        request.write(out);
+      }
+      else {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        writeRequest(request, buf);
+        buf.writeTo(out);
+      }
       reply = formMessage(in);
     }
     catch (final SocksException s_ex) {
@@ -535,6 +546,19 @@ public abstract class SocksProxyBase {
     return reply;
   }
 
+  /**
+   * Writes the request into the buffer, followed by the early data, which is
+   * sent only once.
+   */
+  void writeRequest(ProxyMessage request, ByteArrayOutputStream buf)
+      throws IOException {
+    request.write(buf);
+    if (null != earlyData) {
+      buf.write(earlyData, 0, earlyData.length);
+      earlyData = null;
+    }
+  }
+
   // Private methods
   // ===============
 
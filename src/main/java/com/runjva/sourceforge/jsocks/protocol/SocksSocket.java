@@ -132,6 +132,67 @@ public class SocksSocket extends Socket {
     }
   }
 
+  /**
+   * Connects to host port using given proxy server, sending the first data
+   * along with the request instead of after the reply.
+   * <p/>
+   * The proxy can pass the data on as soon as it connected, which saves a
+   * round trip for protocols where the client speaks first, like the
+   * ClientHello of TLS. Together with {@link Socks5Proxy#setPipelining} the
+   * whole handshake and the data go out in one segment. If the connection
+   * fails the data is lost, the proxy does not answer it.
+   *
+   * @param earlyData
+   *     Data to send, the proxy passes on at most 16384 bytes of it
+   *     before the reply, the rest once it relays.
+   *
+   * @see SocksSocket#SocksSocket(SocksProxyBase, String, int)
+   */
+  public SocksSocket(SocksProxyBase p, String host, int port, byte[] earlyData)
+      throws SocksException, UnknownHostException {
+    if (p == null) {
+      throw new SocksException(SocksProxyBase.SOCKS_NO_PROXY);
+    }
+    proxy = p.copy();
+    remoteHost = host;
+    remotePort = port;
+    if (proxy.isDirect(host)) {
+      remoteIP = InetAddress.getByName(host);
+      doDirect();
+      sendDirect(earlyData);
+    }
+    else {
+      proxy.earlyData = earlyData;
+      processReply(proxy.connect(host, port));
+    }
+  }
+
+  /**
+   * Connects to given ip and port using given Proxy server, sending the
+   * first data along with the request. The host is kept in numeric form, no
+   * name is looked up before connecting.
+   *
+   * @see SocksSocket#SocksSocket(SocksProxyBase, String, int, byte[])
+   */
+  public SocksSocket(SocksProxyBase p, InetAddress ip, int port, byte[] earlyData)
+      throws SocksException {
+    if (p == null) {
+      throw new SocksException(SocksProxyBase.SOCKS_NO_PROXY);
+    }
+    this.proxy = p.copy();
+    this.remoteIP = ip;
+    this.remotePort = port;
+    this.remoteHost = ip.getHostAddress();
+    if (proxy.isDirect(remoteIP)) {
+      doDirect();
+      sendDirect(earlyData);
+    }
+    else {
+      proxy.earlyData = earlyData;
+      processReply(proxy.connect(ip, port));
+    }
+  }
+
   /**
    * Tryies to connect to given ip and port using default proxy. If no default
    * proxy speciefied it throws SocksException with error code SOCKS_NO_PROXY.
@@ -350,6 +411,22 @@ public class SocksSocket extends Socket {
     return proxy.proxySocket.getTcpNoDelay();
   }
 
+  /**
+   * Same as socket.
+   */
+  @Override
+  public void shutdownInput() throws IOException {
+    proxy.proxySocket.shutdownInput();
+  }
+
+  /**
+   * Same as socket.
+   */
+  @Override
+  public void shutdownOutput() throws IOException {
+    proxy.proxySocket.shutdownOutput();
+  }
+
   /**
    * Get string representation of the socket.
    */
@@ -406,4 +483,23 @@ public class SocksSocket extends Socket {
     }
   }
 
+  private void sendDirect(byte[] data) throws SocksException {
+    if (data == null || data.length == 0) {
+      return;
+    }
+    try {
+      proxy.out.write(data);
+    }
+    catch (final IOException io_ex) {
+      try {
+        directSock.close();
+      }
+      catch (final IOException ioe) {
+        log.debug("Can't close direct connection", ioe);
+      }
+      final int errCode = SocksProxyBase.SOCKS_DIRECT_FAILED;
+      throw new SocksException(errCode, "Direct connect failed:", io_ex);
+    }
+  }
+
 }
@@ -0,0 +1,108 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of the session pipeline, see {@link SessionStages}.
+ * <p/>
+ * A fixed number of threads works off a bounded queue. A slow dependency of
+ * the stage, like an ident or DNS server, makes its own queue grow, and once
+ * the queue is full further sessions are turned away instead of starting
+ * more threads.
+ */
+class Stage implements Executor {
+  private static final long KEEP_ALIVE = 60;
+
+  private final String name;
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong tasks = new AtomicLong();
+  private final AtomicLong queueNanos = new AtomicLong();
+  private final AtomicLong serviceNanos = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  Stage(final String name, final int threads, final int queueSize, final ThreadFactory threadFactory) {
+    if (threads <= 0 || queueSize <= 0) {
+      throw new IllegalArgumentException("Stage " + name + " needs threads and a queue: " + threads + ", "
+          + queueSize);
+    }
+    this.name = name;
+    this.executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), threadFactory);
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queue the task, timing its wait and its run.
+   *
+   * @throws RejectedExecutionException
+   *     If the queue is full or the stage is shut down.
+   */
+  @Override
+  public void execute(final Runnable task) {
+    final long queued = System.nanoTime();
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          final long started = System.nanoTime();
+          queueNanos.addAndGet(started - queued);
+          try {
+            task.run();
+          }
+          finally {
+            serviceNanos.addAndGet(System.nanoTime() - started);
+            tasks.incrementAndGet();
+          }
+        }
+      });
+    }
+    catch (final RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      throw e;
+    }
+  }
+
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  String getName() {
+    return name;
+  }
+
+  /**
+   * Number of tasks waiting for a thread of this stage.
+   */
+  int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Average time a task waited for a thread, in microseconds.
+   */
+  long getAverageQueueingDelay() {
+    final long count = tasks.get();
+    return 0 == count ? 0 : TimeUnit.NANOSECONDS.toMicros(queueNanos.get() / count);
+  }
+
+  /**
+   * Average time a task ran, in microseconds.
+   */
+  long getAverageServiceTime() {
+    final long count = tasks.get();
+    return 0 == count ? 0 : TimeUnit.NANOSECONDS.toMicros(serviceNanos.get() / count);
+  }
+
+  /**
+   * Number of tasks turned away because the queue was full.
+   */
+  long getRejected() {
+    return rejected.get();
+  }
+}
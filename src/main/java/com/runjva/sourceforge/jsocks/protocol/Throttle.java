@@ -0,0 +1,85 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The token buckets a session relays through, see {@link BandwidthShaper}.
+ */
+class Throttle {
+  /**
+   * Bytes to wait for when throttled, so a throttled relay does not wake up
+   * for every few bytes.
+   */
+  static final int MIN_GRANT = BufferSizing.DEFAULT_MIN;
+
+  private final TokenBucket[] buckets;
+
+  Throttle(final TokenBucket... levels) {
+    int count = 0;
+    for (final TokenBucket bucket : levels) {
+      if (null != bucket) {
+        count++;
+      }
+    }
+    buckets = new TokenBucket[count];
+    count = 0;
+    for (final TokenBucket bucket : levels) {
+      if (null != bucket) {
+        buckets[count++] = bucket;
+      }
+    }
+  }
+
+  /**
+   * Bytes all levels allow to relay right now.
+   */
+  long available(final long now) {
+    long available = Long.MAX_VALUE;
+    for (final TokenBucket bucket : buckets) {
+      available = Math.min(available, bucket.available(now));
+    }
+    return available;
+  }
+
+  /**
+   * Take the relayed bytes from all levels.
+   */
+  void take(final long bytes, final long now) {
+    for (final TokenBucket bucket : buckets) {
+      bucket.take(bytes, now);
+    }
+  }
+
+  /**
+   * Nanoseconds until all levels allow to relay again.
+   */
+  long delay(final long now) {
+    long delay = 0;
+    for (final TokenBucket bucket : buckets) {
+      delay = Math.max(delay, bucket.delay(MIN_GRANT, now));
+    }
+    return delay;
+  }
+
+  /**
+   * Blocks until all levels allow to relay some bytes.
+   *
+   * @return The bytes allowed, at most max.
+   */
+  int await(final int max) throws InterruptedIOException {
+    long now = System.nanoTime();
+    long available;
+    while ((available = available(now)) <= 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(Math.max(1, delay(now)));
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while throttled");
+      }
+      now = System.nanoTime();
+    }
+    return (int) Math.min(max, available);
+  }
+}
@@ -0,0 +1,229 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel tracking the idle, accept and handshake deadlines of all
+ * sessions of a server.
+ * <p/>
+ * A single ticker thread advances the wheel every tick and keeps a coarse
+ * clock, so pushing a deadline back on every read costs a volatile write
+ * instead of a system call. Scheduling, touching and cancelling are O(1). A
+ * touched timeout is not moved right away, the ticker moves it once it
+ * reaches the old slot and finds a later deadline. Deadlines fire at most one
+ * tick late.
+ * <p/>
+ * Expired tasks run on the ticker thread, so they must be short, like closing
+ * sockets or passing work on to an event loop.
+ */
+class TimingWheel implements Runnable {
+  private static final Logger log = LoggerFactory.getLogger(TimingWheel.class);
+
+  static final long DEFAULT_TICK = 100;
+  static final int DEFAULT_SLOTS = 512;
+
+  private final long tick;
+  private final ArrayDeque<Timeout>[] slots;
+  private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+  private volatile long now = System.currentTimeMillis();
+  private Thread thread;
+
+  TimingWheel() {
+    this(DEFAULT_TICK, DEFAULT_SLOTS);
+  }
+
+  /**
+   * @param tick
+   *     Resolution of the wheel in milliseconds.
+   * @param slots
+   *     Number of slots, one turn of the wheel takes tick * slots
+   *     milliseconds.
+   */
+  @SuppressWarnings("unchecked")
+  TimingWheel(final long tick, final int slots) {
+    this.tick = tick;
+    this.slots = new ArrayDeque[slots];
+    for (int i = 0; i < slots; i++) {
+      this.slots[i] = new ArrayDeque<Timeout>();
+    }
+  }
+
+  /**
+   * Start the ticker thread, unless it is running already.
+   */
+  synchronized void start(final String name) {
+    if (null != thread) {
+      return;
+    }
+    now = System.currentTimeMillis();
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stop the ticker thread, pending timeouts do not fire anymore.
+   */
+  void stop() {
+    final Thread stopped;
+    synchronized (this) {
+      stopped = thread;
+      thread = null;
+    }
+    if (null != stopped) {
+      stopped.interrupt();
+      try {
+        stopped.join();
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Coarse current time in milliseconds, updated every tick.
+   */
+  long now() {
+    return now;
+  }
+
+  /**
+   * Run the task once the given delay passed without the timeout being
+   * touched or cancelled.
+   *
+   * @param delay
+   *     Delay in milliseconds, zero implies infinity.
+   */
+  Timeout schedule(final long delay, final Runnable task) {
+    final Timeout timeout = new Timeout(delay, task);
+    timeout.deadline = now + delay;
+    if (0 != delay) {
+      added.add(timeout);
+    }
+    return timeout;
+  }
+
+  @Override
+  public void run() {
+    long ticks = now / tick;
+    final Thread self = Thread.currentThread();
+    while (isRunning(self)) {
+      try {
+        Thread.sleep(tick);
+      }
+      catch (final InterruptedException e) {
+        continue;
+      }
+      now = System.currentTimeMillis();
+      addPending(ticks);
+      final long target = now / tick;
+      // After a long pause every slot is visited once.
+      for (long t = Math.max(ticks + 1, target - slots.length + 1); t <= target; t++) {
+        expire(t);
+      }
+      ticks = Math.max(ticks, target);
+    }
+    log.debug("Timing wheel stopped");
+  }
+
+  // Private methods
+  // ///////////////
+
+  private synchronized boolean isRunning(final Thread self) {
+    return self == thread;
+  }
+
+  private void addPending(final long ticks) {
+    Timeout timeout;
+    while (null != (timeout = added.poll())) {
+      if (timeout.cancelled) {
+        continue;
+      }
+      if (timeout.deadline <= ticks * tick) {
+        fire(timeout);
+      }
+      else {
+        slotOf(timeout.deadline).addLast(timeout);
+      }
+    }
+  }
+
+  private void expire(final long t) {
+    final ArrayDeque<Timeout> slot = slots[(int) (t % slots.length)];
+    for (int count = slot.size(); count > 0; count--) {
+      final Timeout timeout = slot.pollFirst();
+      if (timeout.cancelled) {
+        continue;
+      }
+      if (timeout.deadline <= t * tick) {
+        fire(timeout);
+      }
+      else {
+        // Touched or more than one turn away.
+        slotOf(timeout.deadline).addLast(timeout);
+      }
+    }
+  }
+
+  private ArrayDeque<Timeout> slotOf(final long deadline) {
+    final long t = (deadline + tick - 1) / tick;
+    return slots[(int) (t % slots.length)];
+  }
+
+  private void fire(final Timeout timeout) {
+    timeout.expired = true;
+    try {
+      timeout.task.run();
+    }
+    catch (final RuntimeException e) {
+      log.warn("Timeout task threw exception", e);
+    }
+  }
+
+  /**
+   * A pending deadline of the wheel.
+   */
+  final class Timeout {
+    private final long delay;
+    private final Runnable task;
+    private volatile long deadline;
+    private volatile boolean cancelled;
+    private volatile boolean expired;
+
+    private Timeout(final long delay, final Runnable task) {
+      this.delay = delay;
+      this.task = task;
+    }
+
+    /**
+     * Push the deadline back to the full delay from now.
+     */
+    void touch() {
+      deadline = now + delay;
+    }
+
+    /**
+     * Coarse time the timeout was scheduled or last touched.
+     */
+    long getLastTouch() {
+      return deadline - delay;
+    }
+
+    void cancel() {
+      cancelled = true;
+    }
+
+    /**
+     * Tells wether the task of this timeout ran.
+     */
+    boolean isExpired() {
+      return expired;
+    }
+  }
+}
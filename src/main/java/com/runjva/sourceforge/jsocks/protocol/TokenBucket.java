@@ -0,0 +1,77 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket of bytes, refilled at a fixed rate up to its burst size and
+ * shared by many threads without locking.
+ * <p/>
+ * Instead of a token count the bucket keeps the time at which it will be full
+ * again, so taking tokens is a single compare and set and refilling needs no
+ * timer. Taking more than is available puts the bucket in debt, which the
+ * following takers wait for.
+ */
+class TokenBucket {
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final long burst;
+  private final double nanosPerByte;
+  private final long burstNanos;
+  private final AtomicLong fullAt;
+
+  /**
+   * @param rate
+   *     Bytes per second.
+   * @param burst
+   *     Bytes that can be taken at once after the bucket was idle.
+   */
+  TokenBucket(final long rate, final long burst) {
+    if (rate <= 0 || burst <= 0) {
+      throw new IllegalArgumentException("Rate and burst must be positive");
+    }
+    this.burst = burst;
+    this.nanosPerByte = NANOS_PER_SECOND / rate;
+    this.burstNanos = nanos(burst);
+    this.fullAt = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * Bytes that can be taken right now.
+   *
+   * @param now
+   *     {@link System#nanoTime()}
+   */
+  long available(final long now) {
+    final long debt = fullAt.get() - now;
+    if (debt <= 0) {
+      return burst;
+    }
+    return Math.max(0, burst - (long) (debt / nanosPerByte));
+  }
+
+  /**
+   * Take the given number of bytes, even if not that many are available.
+   */
+  void take(final long bytes, final long now) {
+    final long cost = nanos(bytes);
+    long old;
+    do {
+      old = fullAt.get();
+    }
+    while (!fullAt.compareAndSet(old, Math.max(old, now) + cost));
+  }
+
+  /**
+   * Nanoseconds until the given number of bytes, at most the burst size, is
+   * available.
+   */
+  long delay(final long bytes, final long now) {
+    final long wait = fullAt.get() - now - (burstNanos - nanos(Math.min(bytes, burst)));
+    return Math.max(0, wait);
+  }
+
+  private long nanos(final long bytes) {
+    return (long) (bytes * nanosPerByte);
+  }
+}
@@ -1,7 +1,6 @@
 package com.runjva.sourceforge.jsocks.protocol;
 
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
@@ -31,12 +30,16 @@ class UDPRelayServer implements Runnable {
 
   ServerAuthenticator auth;
 
-  long lastReadTime;
+  TimingWheel timingWheel;
+  TimingWheel.Timeout deadline;
+
+  final SocksProxyBase proxy;
+  final int datagramSize;
+  final int iddleTimeout;
 
   static Logger log = LoggerFactory.getLogger(UDPRelayServer.class);
-  static SocksProxyBase proxy = null;
-  static int datagramSize = 0xFFFF;// 64K, a bit more than max udp size
-  static int iddleTimeout = 180000;// 3 minutes
+  static final int DEFAULT_DATAGRAM_SIZE = 0xFFFF;// 64K, a bit more than max udp size
+  static final int DEFAULT_TIMEOUT = 180000;// 3 minutes
 
   /**
    * Constructs UDP relay server to communicate with client on given ip and
@@ -55,14 +58,28 @@ class UDPRelayServer implements Runnable {
    *     thread, it is introduced due to a bug in windows JVM which
    *     does not throw InterruptedIOException in threads which block
    *     in I/O operation.
+   * @param timingWheel
+   *     Wheel tracking the idle timeout of the relay.
+   * @param proxy
+   *     Proxy to relay the datagrams through, or null to send them
+   *     directly.
+   * @param iddleTimeout
+   *     Idle timeout of the relay, zero implies infinity.
+   * @param datagramSize
+   *     Size of the datagrams used by the relay.
    */
   public UDPRelayServer(InetAddress clientIP, int clientPort,
       Thread master_thread, Socket controlConnection,
-      ServerAuthenticator auth) throws IOException {
+      ServerAuthenticator auth, TimingWheel timingWheel,
+      SocksProxyBase proxy, int iddleTimeout, int datagramSize) throws IOException {
 
     this.master_thread = master_thread;
     this.controlConnection = controlConnection;
     this.auth = auth;
+    this.timingWheel = timingWheel;
+    this.proxy = proxy;
+    this.iddleTimeout = iddleTimeout;
+    this.datagramSize = datagramSize;
 
     client_sock = new Socks5DatagramSocket(true,
         auth.getUdpEncapsulation(), clientIP, clientPort);
@@ -85,25 +102,6 @@ class UDPRelayServer implements Runnable {
   // Public methods
   // ///////////////
 
-  /**
-   * Sets the timeout for UDPRelay server.<br>
-   * Zero timeout implies infinity.<br>
-   * Default timeout is 3 minutes.
-   */
-
-  static public void setTimeout(int timeout) {
-    iddleTimeout = timeout;
-  }
-
-  /**
-   * Sets the size of the datagrams used in the UDPRelayServer.<br>
-   * Default size is 64K, a bit more than maximum possible size of the
-   * datagram.
-   */
-  static public void setDatagramSize(int size) {
-    datagramSize = size;
-  }
-
   /**
    * Port to which client should send datagram for association.
    */
@@ -122,18 +120,21 @@ class UDPRelayServer implements Runnable {
    * Starts udp relay server. Spawns two threads of execution and returns.
    */
   public void start() throws IOException {
-    remote_sock.setSoTimeout(iddleTimeout);
-    client_sock.setSoTimeout(iddleTimeout);
-
     log.info("Starting UDP relay server on {}:{}", relayIP, relayPort);
     log.info("Remote socket {}:{}", remote_sock.getLocalAddress(),
         remote_sock.getLocalPort());
 
+    deadline = timingWheel.schedule(iddleTimeout, new Runnable() {
+      @Override
+      public void run() {
+        log.info("UDP relay timed out");
+        abort();
+      }
+    });
+
     pipe_thread1 = new Thread(this, "pipe1");
     pipe_thread2 = new Thread(this, "pipe2");
 
-    lastReadTime = System.currentTimeMillis();
-
     pipe_thread1.start();
     pipe_thread2.start();
   }
@@ -180,6 +181,8 @@ class UDPRelayServer implements Runnable {
 
     log.info("Aborting UDP Relay Server");
 
+    deadline.cancel();
+
     remote_sock.close();
     client_sock.close();
 
@@ -209,7 +212,7 @@ class UDPRelayServer implements Runnable {
     while (true) {
       try {
         from.receive(dp);
-        lastReadTime = System.currentTimeMillis();
+        deadline.touch();
 
         if (auth.checkRequest(dp, out)) {
           to.send(dp);
@@ -219,20 +222,6 @@ class UDPRelayServer implements Runnable {
       catch (final UnknownHostException uhe) {
         log.info("Dropping datagram for unknown host");
       }
-      catch (final InterruptedIOException iioe) {
-        // log("Interrupted: "+iioe);
-        // If we were interrupted by other thread.
-        if (iddleTimeout == 0) {
-          return;
-        }
-
-        // If last datagram was received, long time ago, return.
-        final long timeSinceRead = System.currentTimeMillis()
-            - lastReadTime;
-        if (timeSinceRead >= iddleTimeout - 100) {
-          return;
-        }
-      }
       dp.setLength(data.length);
     }
   }
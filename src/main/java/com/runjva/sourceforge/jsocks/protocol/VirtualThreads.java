@@ -0,0 +1,69 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to virtual threads of Java 21 and later.
+ * <p/>
+ * The project is built for older runtimes, so the thread builder API is
+ * looked up reflectively. On a runtime without virtual threads
+ * {@link #isSupported()} returns false.
+ */
+final class VirtualThreads {
+  private static final Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+
+  private static final Method OF_VIRTUAL;
+  private static final Method NAME;
+  private static final Method FACTORY;
+
+  static {
+    Method ofVirtual = null;
+    Method name = null;
+    Method factory = null;
+    try {
+      final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      name = builder.getMethod("name", String.class, long.class);
+      factory = builder.getMethod("factory");
+    }
+    catch (final ClassNotFoundException | NoSuchMethodException e) {
+      log.debug("Virtual threads are not available", e);
+    }
+    OF_VIRTUAL = ofVirtual;
+    NAME = name;
+    FACTORY = factory;
+  }
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * Tells wether the running JVM supports virtual threads.
+   */
+  static boolean isSupported() {
+    return null != OF_VIRTUAL;
+  }
+
+  /**
+   * Creates a factory of virtual threads named prefix followed by a counter.
+   *
+   * @throws UnsupportedOperationException
+   *     If the running JVM has no virtual threads.
+   */
+  static ThreadFactory newFactory(final String prefix) {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+    }
+    try {
+      final Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 1L);
+      return (ThreadFactory) FACTORY.invoke(builder);
+    }
+    catch (final ReflectiveOperationException e) {
+      throw new UnsupportedOperationException("Can't create virtual thread factory", e);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package com.runjva.sourceforge.jsocks.server;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Authentication scheme which can run without blocking.
+ * <p/>
+ * The SELECTOR engine of the ProxyServer runs the handshakes of clients on
+ * its event loops if the authenticator implements this interface, instead
+ * of a thread per handshake waiting in {@link ServerAuthenticator#startSession}.
+ * The engine parses the SOCKS messages, including the username/password
+ * sub-negotiation, the authenticator chooses the method and checks the
+ * credentials. None of the methods may block, they run on a thread shared by
+ * many connections.
+ */
+public interface NonBlockingAuthenticator extends ServerAuthenticator {
+  /**
+   * Answer of {@link Handshake#selectMethod} refusing the client.
+   */
+  int NO_ACCEPTABLE_METHOD = 0xFF;
+  /**
+   * SOCKS5 method without authentication.
+   */
+  int NO_AUTHENTICATION_METHOD = 0;
+  /**
+   * SOCKS5 method of the username/password authentication of RFC 1929.
+   */
+  int USER_PASSWORD_METHOD = 2;
+
+  /**
+   * Starts the handshake of an accepted client.
+   *
+   * @param s
+   *     Accepted socket, not to be read or written.
+   *
+   * @return The state of the handshake, or null to run it the blocking way
+   *         with {@link ServerAuthenticator#startSession}.
+   */
+  Handshake startHandshake(Socket s);
+
+  /**
+   * Authentication of one client, called by one thread at a time.
+   */
+  interface Handshake {
+    /**
+     * Chooses the method of a SOCKS5 client.
+     *
+     * @param methods
+     *     Methods offered by the client, valid up to count.
+     *
+     * @return {@link NonBlockingAuthenticator#NO_AUTHENTICATION_METHOD},
+     *         {@link NonBlockingAuthenticator#USER_PASSWORD_METHOD} or
+     *         {@link NonBlockingAuthenticator#NO_ACCEPTABLE_METHOD}, the
+     *         engine supports no other methods.
+     */
+    int selectMethod(byte[] methods, int count);
+
+    /**
+     * Checks the credentials of a client which was asked for username and
+     * password.
+     *
+     * @return false to refuse the client.
+     */
+    boolean authenticate(String user, String password);
+
+    /**
+     * Decides about a SOCKS4 client, which has no sub-negotiation.
+     *
+     * @param user
+     *     User id of the request.
+     *
+     * @return false to refuse the client.
+     */
+    boolean acceptSocks4(String user);
+
+    /**
+     * The authenticator of the session once the handshake is done, see the
+     * result of {@link ServerAuthenticator#startSession}.
+     *
+     * @param in
+     *     Input stream of the client, now blocking.
+     * @param out
+     *     Output stream of the client, now blocking.
+     */
+    ServerAuthenticator getSession(InputStream in, OutputStream out);
+  }
+}
@@ -0,0 +1,12 @@
+package com.runjva.sourceforge.jsocks.server;
+
+/**
+ * User validation which answers right away, without waiting for a
+ * directory, a database or an ident server.
+ * <p/>
+ * Only with such a validation the SELECTOR engine of the ProxyServer runs
+ * the handshakes of a {@link UserPasswordAuthenticator} on its event loops,
+ * any other validation is called on the threads of the sessions.
+ */
+public interface NonBlockingUserValidation extends UserValidation {
+}
@@ -1,5 +1,6 @@
 package com.runjva.sourceforge.jsocks.server;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -186,10 +187,7 @@ public abstract class ServerAuthenticatorBase implements ServerAuthenticator {
     response[0] = (byte) 5; // SOCKS version
     response[1] = (byte) 0xFF; // Not found, we are pessimistic
 
-    int bread = 0; // bytes read so far
-    while (bread < num_methods) {
-      bread += in.read(method_ids, bread, num_methods - bread);
-    }
+    readFully(in, method_ids);
 
     for (int i = 0; i < num_methods; ++i) {
       if (method_ids[i] == methodId) {
@@ -202,4 +200,22 @@ public abstract class ServerAuthenticatorBase implements ServerAuthenticator {
     out.write(response);
     return found;
   }
+
+  /**
+   * Reads exactly as many bytes as the buffer holds. A client may send its
+   * messages back to back, so a field can end anywhere within a segment.
+   *
+   * @throws EOFException
+   *     If the client closed the connection before.
+   */
+  static void readFully(InputStream in, byte[] buf) throws IOException {
+    int bread = 0; // bytes read so far
+    while (bread < buf.length) {
+      final int len = in.read(buf, bread, buf.length - bread);
+      if (len < 0) {
+        throw new EOFException("Connection closed during handshake");
+      }
+      bread += len;
+    }
+  }
 }
@@ -2,14 +2,51 @@ package com.runjva.sourceforge.jsocks.server;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.Socket;
 
 /**
  * Simplest possible ServerAuthenticator implementation. Extends common base.
  */
-public class ServerAuthenticatorNone extends ServerAuthenticatorBase {
+public class ServerAuthenticatorNone extends ServerAuthenticatorBase implements NonBlockingAuthenticator {
 
   public ServerAuthenticatorNone(InputStream in, OutputStream out, String username) {
     super(in, out, username);
   }
 
+  /**
+   * Accepts everyone, like {@link #startSession(Socket)}. Subclasses handshake
+   * the blocking way, unless they override this method as well.
+   */
+  @Override
+  public Handshake startHandshake(Socket s) {
+    if (ServerAuthenticatorNone.class != getClass()) {
+      return null;
+    }
+    return new Handshake() {
+      @Override
+      public int selectMethod(byte[] methods, int count) {
+        for (int i = 0; i < count; i++) {
+          if (NO_AUTHENTICATION_METHOD == methods[i]) {
+            return NO_AUTHENTICATION_METHOD;
+          }
+        }
+        return NO_ACCEPTABLE_METHOD;
+      }
+
+      @Override
+      public boolean authenticate(String user, String password) {
+        return false; // Never asked for, see selectMethod.
+      }
+
+      @Override
+      public boolean acceptSocks4(String user) {
+        return true;
+      }
+
+      @Override
+      public ServerAuthenticator getSession(InputStream in, OutputStream out) {
+        return new ServerAuthenticatorNone(in, out, null);
+      }
+    };
+  }
 }
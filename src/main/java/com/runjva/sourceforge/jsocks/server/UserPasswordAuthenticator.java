@@ -1,5 +1,6 @@
 package com.runjva.sourceforge.jsocks.server;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -8,8 +9,12 @@ import java.net.Socket;
 /**
  * This class implements SOCKS5 User/Password authentication scheme as defined
  * in rfc1929,the server side of it. (see docs/rfc1929.txt)
+ * <p/>
+ * With the SELECTOR engine a {@link NonBlockingUserValidation} is called on
+ * an event loop, any other validation may block and is called on the
+ * threads of the session.
  */
-public class UserPasswordAuthenticator extends ServerAuthenticatorBase {
+public class UserPasswordAuthenticator extends ServerAuthenticatorBase implements NonBlockingAuthenticator {
 
   static final int METHOD_ID = 2;
 
@@ -30,15 +35,31 @@ public class UserPasswordAuthenticator extends ServerAuthenticatorBase {
   public ServerAuthenticator startSession(Socket s) throws IOException {
     final InputStream in = s.getInputStream();
     final OutputStream out = s.getOutputStream();
+    // Answers held back while the client sent the next message already, so
+    // a pipelining client gets both of them in one segment.
+    final ByteArrayOutputStream answers = new ByteArrayOutputStream(4);
 
     if (in.read() != 5) {
       return null; // Drop non version 5 messages.
     }
 
-    if (!selectSocks5Authentication(in, out, METHOD_ID)) {
+    if (!selectSocks5Authentication(in, answers, METHOD_ID)) {
+      answers.writeTo(out);
       return null;
     }
-    final String username = doUserPasswordAuthentication(s, in, out);
+    if (0 == in.available()) {
+      // The client waits for the selection before sending credentials.
+      answers.writeTo(out);
+      answers.reset();
+    }
+    final String username;
+    try {
+      username = doUserPasswordAuthentication(s, in, answers);
+    }
+    finally {
+      // The held back selection goes out even if the credentials were cut short.
+      answers.writeTo(out);
+    }
     if (null == username) {
       return null;
     }
@@ -46,6 +67,51 @@ public class UserPasswordAuthenticator extends ServerAuthenticatorBase {
     return new ServerAuthenticatorNone(in, out, username);
   }
 
+  /**
+   * Username/password authentication without blocking, see
+   * {@link #startSession(Socket)}. Unless the validator is a
+   * {@link NonBlockingUserValidation}, and for subclasses not overriding this
+   * method as well, the handshake runs the blocking way.
+   */
+  @Override
+  public Handshake startHandshake(final Socket s) {
+    if (UserPasswordAuthenticator.class != getClass() || !(validator instanceof NonBlockingUserValidation)) {
+      return null;
+    }
+    return new Handshake() {
+      private String username;
+
+      @Override
+      public int selectMethod(byte[] methods, int count) {
+        for (int i = 0; i < count; i++) {
+          if (USER_PASSWORD_METHOD == methods[i]) {
+            return USER_PASSWORD_METHOD;
+          }
+        }
+        return NO_ACCEPTABLE_METHOD;
+      }
+
+      @Override
+      public boolean authenticate(String user, String password) {
+        if (!validator.isUserValid(user, password, s)) {
+          return false;
+        }
+        username = user;
+        return true;
+      }
+
+      @Override
+      public boolean acceptSocks4(String user) {
+        return false; // Drop non version 5 messages.
+      }
+
+      @Override
+      public ServerAuthenticator getSession(InputStream in, OutputStream out) {
+        return new ServerAuthenticatorNone(in, out, username);
+      }
+    };
+  }
+
   // Private Methods
   // ////////////////
 
@@ -62,13 +128,13 @@ public class UserPasswordAuthenticator extends ServerAuthenticatorBase {
     }
 
     final byte[] user = new byte[ulen];
-    in.read(user);
+    readFully(in, user);
     final int plen = in.read();
     if (plen < 0) {
       return null;
     }
     final byte[] password = new byte[plen];
-    in.read(password);
+    readFully(in, password);
 
     final String username = new String(user);
     if (validator.isUserValid(username, new String(password), s)) {
@@ -0,0 +1,154 @@
+package com.runjva.sourceforge.jsocks.main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.runjva.sourceforge.jsocks.monitor.NullProxyMonitor;
+import com.runjva.sourceforge.jsocks.protocol.HostNameResolver;
+import com.runjva.sourceforge.jsocks.protocol.ProxyEngine;
+import com.runjva.sourceforge.jsocks.protocol.ProxyServer;
+import com.runjva.sourceforge.jsocks.protocol.ProxyStatus;
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticatorNone;
+
+/**
+ * Benchmark of the accept path with a slow client name resolver, for manual
+ * testing.
+ * <p/>
+ * Usage: AcceptBenchmark [engine [delay [seconds]]]
+ * <p/>
+ * Opens short SOCKS5 sessions from several threads, once without client name
+ * lookups and once with a resolver that takes the given delay in
+ * milliseconds for every lookup, and reports sessions per second. The rates
+ * should be about the same, an accept thread waiting for every lookup could
+ * do no more than 1000 / delay sessions per second.
+ */
+public class AcceptBenchmark {
+  private static final Logger log = LoggerFactory.getLogger(AcceptBenchmark.class);
+  private static final int CLIENT_THREADS = 8;
+
+  public static void main(String[] args) throws Exception {
+    final ProxyEngine engine = args.length > 0 ? ProxyEngine.valueOf(args[0]) : ProxyEngine.BLOCKING;
+    final long delay = args.length > 1 ? Long.parseLong(args[1]) : 200;
+    final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+    final ServerSocket target = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+    final Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            target.accept().close();
+          }
+        }
+        catch (final IOException e) {
+          log.debug("Target stopped", e);
+        }
+      }
+    }, "target");
+    acceptor.start();
+    try {
+      run(engine, null, "no lookups", target.getLocalPort(), seconds);
+      run(engine, new HostNameResolver() {
+        @Override
+        public String getHostName(final InetAddress address) throws IOException {
+          try {
+            Thread.sleep(delay);
+          }
+          catch (final InterruptedException e) {
+            throw new IOException(e);
+          }
+          return address.getHostAddress();
+        }
+      }, delay + " ms lookups", target.getLocalPort(), seconds);
+      log.info("Waiting for every lookup: at most {} sessions/s", 1000 / Math.max(1, delay));
+    }
+    finally {
+      target.close();
+    }
+  }
+
+  private static void run(final ProxyEngine engine, final HostNameResolver resolver, final String name,
+      final int targetPort, final int seconds) throws Exception {
+    final ProxyServer proxyServer = new ProxyServer(new ServerAuthenticatorNone(null, null, null),
+        Executors.newCachedThreadPool(), NullProxyMonitor.INSTANCE);
+    proxyServer.setEngine(engine);
+    proxyServer.setClientNameResolver(resolver);
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        proxyServer.start(0, 1024, InetAddress.getLoopbackAddress());
+      }
+    }).start();
+    if (ProxyStatus.STARTED != proxyServer.awaitStartup()) {
+      throw new IllegalStateException("Proxy did not start");
+    }
+
+    try {
+      final AtomicLong sessions = new AtomicLong();
+      final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+      final Thread[] threads = new Thread[CLIENT_THREADS];
+      for (int t = 0; t < threads.length; t++) {
+        threads[t] = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              while (System.nanoTime() < deadline) {
+                connect(proxyServer.getPort(), targetPort);
+                sessions.incrementAndGet();
+              }
+            }
+            catch (final IOException e) {
+              log.warn("Session failed", e);
+            }
+          }
+        });
+        threads[t].start();
+      }
+      for (final Thread thread : threads) {
+        thread.join();
+      }
+      log.info("{}, {}: {} sessions/s", engine, name, sessions.get() / seconds);
+    }
+    finally {
+      proxyServer.stop();
+    }
+  }
+
+  /**
+   * Opens a session with a minimal SOCKS5 handshake and closes it once the
+   * CONNECT succeeded.
+   */
+  private static void connect(final int proxyPort, final int targetPort) throws IOException {
+    final Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+    try {
+      final OutputStream out = socket.getOutputStream();
+      final InputStream in = socket.getInputStream();
+      out.write(new byte[] { 5, 1, 0, 5, 1, 0, 1, 127, 0, 0, 1, (byte) (targetPort >> 8), (byte) targetPort });
+      final byte[] reply = new byte[12];
+      int read = 0;
+      while (read < reply.length) {
+        final int len = in.read(reply, read, reply.length - read);
+        if (len < 0) {
+          throw new IOException("Proxy closed connection");
+        }
+        read += len;
+      }
+      if (0 != reply[3]) {
+        throw new IOException("Connect failed with " + reply[3]);
+      }
+    }
+    finally {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package com.runjva.sourceforge.jsocks.main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.runjva.sourceforge.jsocks.protocol.ProxyEngine;
+import com.runjva.sourceforge.jsocks.protocol.ProxyServer;
+import com.runjva.sourceforge.jsocks.protocol.ProxyStatus;
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticatorNone;
+
+/**
+ * Launcher holding a listening socket on the loopback interface across
+ * restarts of the proxy server, to try out restarts without refusing
+ * connections.
+ * <p/>
+ * Every line read from the standard input starts a new server on the same
+ * listener and then drains the previous one, the end of the input drains the
+ * last one. The servers do no authentication, so the listener is only bound
+ * to the loopback interface.
+ */
+public class HandoverSocksMain {
+
+  private static final int DEFAULT_PORT = 1080;
+  private static final int DEFAULT_DRAIN_TIMEOUT = 30000;
+  private static final Logger log = LoggerFactory.getLogger(HandoverSocksMain.class);
+
+  private static void usage() {
+    log.info("Usage: java HandoverSocksMain [port [drainTimeout [BLOCKING|VIRTUAL_THREAD|SELECTOR]]]");
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    final int port;
+    final int drainTimeout;
+    final ProxyEngine engine;
+    try {
+      port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+      drainTimeout = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_DRAIN_TIMEOUT;
+      engine = args.length > 2 ? ProxyEngine.valueOf(args[2]) : ProxyEngine.SELECTOR;
+    }
+    catch (final IllegalArgumentException e) {
+      usage();
+      return;
+    }
+
+    final ServerSocketChannel listener = ServerSocketChannel.open();
+    listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    log.info("Holding listener {}, press enter to restart the server", listener.getLocalAddress());
+
+    final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+    int generation = 1;
+    ProxyServer server = start(listener, engine, generation);
+    while (null != in.readLine()) {
+      final ProxyServer previous = server;
+      server = start(listener, engine, ++generation);
+      drain(previous, drainTimeout, generation - 1);
+    }
+    drain(server, drainTimeout, generation);
+    listener.close();
+  }
+
+  private static ProxyServer start(final ServerSocketChannel listener, final ProxyEngine engine,
+      final int generation) throws InterruptedException {
+    final ProxyServer server = new ProxyServer(new ServerAuthenticatorNone(null, null, null));
+    server.setEngine(engine);
+    final Thread thread = new Thread("HandoverSocksMain-" + generation) {
+      @Override
+      public void run() {
+        server.start(listener);
+      }
+    };
+    thread.start();
+    if (ProxyStatus.STARTED != server.awaitStartup()) {
+      throw new IllegalStateException("Server " + generation + " did not start");
+    }
+    log.info("Server {} accepting", generation);
+    return server;
+  }
+
+  private static void drain(final ProxyServer server, final int drainTimeout, final int generation)
+      throws InterruptedException {
+    log.info("Draining server {}", generation);
+    if (server.drain(drainTimeout)) {
+      log.info("Server {} drained", generation);
+    }
+    else {
+      log.warn("Server {} closed active sessions", generation);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package com.runjva.sourceforge.jsocks.main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.runjva.sourceforge.jsocks.monitor.NullProxyMonitor;
+import com.runjva.sourceforge.jsocks.protocol.ProxyEngine;
+import com.runjva.sourceforge.jsocks.protocol.ProxyServer;
+import com.runjva.sourceforge.jsocks.protocol.ProxyStatus;
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticatorNone;
+
+/**
+ * Benchmark of the time from connecting to the proxy to the first byte of
+ * the target, for manual testing.
+ * <p/>
+ * Usage: ReplyLatencyBenchmark [engine [target address [sessions]]]
+ * <p/>
+ * The target listens on the given address, by default the first IPv4
+ * address of the host which is not a loopback address, and sends one byte
+ * to every connection. The CONNECT reply carries the local address of the
+ * proxy towards the target, and the benchmark also times a reverse lookup of
+ * that address, which is what every reply waited for while replies were
+ * built with host names. Pick an address without PTR record, or a host
+ * whose resolver is slow, to see that cost at its worst.
+ */
+public class ReplyLatencyBenchmark {
+  private static final Logger log = LoggerFactory.getLogger(ReplyLatencyBenchmark.class);
+
+  public static void main(String[] args) throws Exception {
+    final ProxyEngine engine = args.length > 0 ? ProxyEngine.valueOf(args[0]) : ProxyEngine.BLOCKING;
+    final InetAddress address = args.length > 1 ? InetAddress.getByName(args[1]) : firstExternalAddress();
+    final int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+    final ServerSocket target = new ServerSocket(0, 1024, address);
+    final Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            final Socket s = target.accept();
+            s.getOutputStream().write(1);
+            s.close();
+          }
+        }
+        catch (final IOException e) {
+          log.debug("Target stopped", e);
+        }
+      }
+    }, "target");
+    acceptor.start();
+
+    final ProxyServer proxyServer = new ProxyServer(new ServerAuthenticatorNone(null, null, null),
+        Executors.newCachedThreadPool(), NullProxyMonitor.INSTANCE);
+    proxyServer.setEngine(engine);
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        proxyServer.start(0, 1024, InetAddress.getLoopbackAddress());
+      }
+    }).start();
+    if (ProxyStatus.STARTED != proxyServer.awaitStartup()) {
+      throw new IllegalStateException("Proxy did not start");
+    }
+
+    try {
+      final long[] micros = new long[sessions];
+      for (int i = 0; i < sessions; i++) {
+        micros[i] = firstByte(proxyServer.getPort(), target);
+      }
+      Arrays.sort(micros);
+      log.info("{}, target {}: connect to first byte p50 {} us, p99 {} us", engine, address.getHostAddress(),
+          micros[sessions / 2], micros[sessions * 99 / 100]);
+
+      // A fresh instance, like every reply got, so nothing is cached.
+      final InetAddress reply = InetAddress.getByAddress(address.getAddress());
+      final long start = System.nanoTime();
+      final String name = reply.getHostName();
+      log.info("Reverse lookup of {} to {} took {} us, formerly paid by every reply", address.getHostAddress(),
+          name, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+    finally {
+      proxyServer.stop();
+      target.close();
+    }
+  }
+
+  /**
+   * Opens a session with a minimal SOCKS5 handshake and waits for the first
+   * byte of the target.
+   *
+   * @return Microseconds from connecting to the first byte.
+   */
+  private static long firstByte(final int proxyPort, final ServerSocket target) throws IOException {
+    final byte[] ip = target.getInetAddress().getAddress();
+    final int port = target.getLocalPort();
+    final long start = System.nanoTime();
+    final Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+    try {
+      final OutputStream out = socket.getOutputStream();
+      final InputStream in = socket.getInputStream();
+      out.write(new byte[] { 5, 1, 0, 5, 1, 0, 1, ip[0], ip[1], ip[2], ip[3], (byte) (port >> 8), (byte) port });
+      final byte[] reply = new byte[12];
+      int read = 0;
+      while (read < reply.length) {
+        final int len = in.read(reply, read, reply.length - read);
+        if (len < 0) {
+          throw new IOException("Proxy closed connection");
+        }
+        read += len;
+      }
+      if (0 != reply[3]) {
+        throw new IOException("Connect failed with " + reply[3]);
+      }
+      if (in.read() < 0) {
+        throw new IOException("Target closed connection");
+      }
+      return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    }
+    finally {
+      socket.close();
+    }
+  }
+
+  private static InetAddress firstExternalAddress() throws IOException {
+    for (final NetworkInterface nif : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+      for (final InetAddress a : Collections.list(nif.getInetAddresses())) {
+        if (a instanceof Inet4Address && !a.isLoopbackAddress()) {
+          return a;
+        }
+      }
+    }
+    return InetAddress.getLoopbackAddress();
+  }
+}
@@ -0,0 +1,263 @@
+package com.runjva.sourceforge.jsocks.main;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.runjva.sourceforge.jsocks.monitor.NullProxyMonitor;
+import com.runjva.sourceforge.jsocks.protocol.ProxyEngine;
+import com.runjva.sourceforge.jsocks.protocol.ProxyServer;
+import com.runjva.sourceforge.jsocks.protocol.ProxyStatus;
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticatorNone;
+
+/**
+ * Benchmark of many concurrent tunnels, for manual testing.
+ * <p/>
+ * Usage: TunnelBenchmark [engine [tunnels [active [seconds]]]]
+ * <p/>
+ * Opens the given number of idle SOCKS5 tunnels to a local echo server,
+ * reports threads and heap needed to hold them, then keeps the given number
+ * of them busy with ping pong messages and reports throughput and latency.
+ * Without an engine all engines are measured one after the other. Every
+ * tunnel needs four file descriptors, so raise the limit (ulimit -n) before
+ * running with the default of 50000 tunnels.
+ */
+public class TunnelBenchmark {
+  private static final Logger log = LoggerFactory.getLogger(TunnelBenchmark.class);
+  private static final int MESSAGE_SIZE = 64;
+  private static final int CLIENT_THREADS = 8;
+
+  public static void main(String[] args) throws Exception {
+    final List<ProxyEngine> engines = new ArrayList<ProxyEngine>();
+    if (args.length > 0) {
+      engines.add(ProxyEngine.valueOf(args[0]));
+    }
+    else {
+      for (final ProxyEngine engine : ProxyEngine.values()) {
+        engines.add(engine);
+      }
+    }
+    final int tunnels = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+    final int active = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+    final int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+    final EchoServer echo = new EchoServer();
+    new Thread(echo, "echo").start();
+    try {
+      for (final ProxyEngine engine : engines) {
+        run(engine, echo.getPort(), tunnels, Math.min(active, tunnels), seconds);
+      }
+    }
+    finally {
+      echo.stop();
+    }
+  }
+
+  private static void run(final ProxyEngine engine, final int echoPort, final int tunnels, final int active,
+      final int seconds) throws Exception {
+    final ProxyServer proxyServer = new ProxyServer(new ServerAuthenticatorNone(null, null, null),
+        Executors.newCachedThreadPool(), NullProxyMonitor.INSTANCE);
+    proxyServer.setEngine(engine);
+    proxyServer.setIdleTimeout(0);
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        proxyServer.start(0, 1024, InetAddress.getLoopbackAddress());
+      }
+    }).start();
+    if (ProxyStatus.STARTED != proxyServer.awaitStartup()) {
+      throw new IllegalStateException("Proxy did not start");
+    }
+
+    try {
+      final int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+      final long baseHeap = usedHeap();
+      final long start = System.nanoTime();
+      final SocketChannel[] channels = new SocketChannel[tunnels];
+      for (int i = 0; i < tunnels; i++) {
+        channels[i] = connect(proxyServer.getPort(), echoPort);
+      }
+      final long setupNanos = System.nanoTime() - start;
+      Thread.sleep(1000);
+
+      log.info("{}: {} idle tunnels in {} ms, {} extra threads, {} KiB extra heap", engine, tunnels,
+          TimeUnit.NANOSECONDS.toMillis(setupNanos),
+          ManagementFactory.getThreadMXBean().getThreadCount() - baseThreads, (usedHeap() - baseHeap) / 1024);
+
+      pingPong(engine, channels, active, seconds);
+
+      for (final SocketChannel channel : channels) {
+        channel.close();
+      }
+    }
+    finally {
+      proxyServer.stop();
+    }
+  }
+
+  private static void pingPong(final ProxyEngine engine, final SocketChannel[] channels, final int active,
+      final int seconds) throws InterruptedException {
+    final AtomicLong messages = new AtomicLong();
+    final AtomicLong latency = new AtomicLong();
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    final Thread[] threads = new Thread[CLIENT_THREADS];
+    for (int t = 0; t < threads.length; t++) {
+      final int first = t;
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          final ByteBuffer buf = ByteBuffer.allocate(MESSAGE_SIZE);
+          try {
+            while (System.nanoTime() < deadline) {
+              for (int i = first; i < active; i += CLIENT_THREADS) {
+                final long sent = System.nanoTime();
+                buf.clear();
+                while (buf.hasRemaining()) {
+                  channels[i].write(buf);
+                }
+                buf.clear();
+                while (buf.hasRemaining()) {
+                  if (channels[i].read(buf) < 0) {
+                    throw new IOException("Tunnel closed");
+                  }
+                }
+                latency.addAndGet(System.nanoTime() - sent);
+                messages.incrementAndGet();
+              }
+            }
+          }
+          catch (final IOException e) {
+            log.warn("Ping pong failed", e);
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    final long count = Math.max(1, messages.get());
+    log.info("{}: {} active tunnels, {} messages/s, {} us mean round trip", engine, active, count / seconds,
+        TimeUnit.NANOSECONDS.toMicros(latency.get() / count));
+  }
+
+  /**
+   * Opens a tunnel with a minimal SOCKS5 handshake, no authentication and a
+   * CONNECT to the loopback address.
+   */
+  private static SocketChannel connect(final int proxyPort, final int echoPort) throws IOException {
+    final SocketChannel channel =
+        SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), proxyPort));
+    final byte[] loopback = InetAddress.getLoopbackAddress().getAddress();
+    final ByteBuffer request = ByteBuffer.allocate(13);
+    request.put(new byte[] { 5, 1, 0 });
+    request.put(new byte[] { 5, 1, 0, 1 }).put(loopback).putShort((short) echoPort);
+    request.flip();
+    while (request.hasRemaining()) {
+      channel.write(request);
+    }
+    final ByteBuffer reply = ByteBuffer.allocate(2 + 6 + loopback.length);
+    while (reply.hasRemaining()) {
+      if (channel.read(reply) < 0) {
+        throw new IOException("Proxy closed connection");
+      }
+    }
+    if (0 != reply.get(3)) {
+      throw new IOException("Connect failed with " + reply.get(3));
+    }
+    return channel;
+  }
+
+  private static long usedHeap() {
+    System.gc();
+    final Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Single threaded echo server, so the benchmark itself does not need a
+   * thread per tunnel.
+   */
+  private static class EchoServer implements Runnable {
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private volatile boolean running = true;
+
+    EchoServer() throws IOException {
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+      serverChannel.configureBlocking(false);
+      selector = Selector.open();
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    int getPort() {
+      return serverChannel.socket().getLocalPort();
+    }
+
+    void stop() throws IOException {
+      running = false;
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      final ByteBuffer buf = ByteBuffer.allocateDirect(8192);
+      try {
+        while (running) {
+          selector.select();
+          final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            final SelectionKey key = keys.next();
+            keys.remove();
+            if (key.isAcceptable()) {
+              SocketChannel channel;
+              while (null != (channel = serverChannel.accept())) {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+              }
+            }
+            else if (key.isReadable()) {
+              final SocketChannel channel = (SocketChannel) key.channel();
+              buf.clear();
+              try {
+                if (channel.read(buf) < 0) {
+                  channel.close();
+                  continue;
+                }
+                buf.flip();
+                // Replies are small, a blocking spin is good enough here.
+                while (buf.hasRemaining()) {
+                  channel.write(buf);
+                }
+              }
+              catch (final IOException e) {
+                channel.close();
+              }
+            }
+          }
+        }
+        selector.close();
+        serverChannel.close();
+      }
+      catch (final IOException e) {
+        log.error("Echo server failed", e);
+      }
+    }
+  }
+}
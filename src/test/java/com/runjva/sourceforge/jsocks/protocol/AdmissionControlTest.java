@@ -0,0 +1,77 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControlTest {
+
+  @Test
+  public void shouldRejectBeyondLimits() {
+    final AdmissionControl admission = new AdmissionControl();
+    admission.setLimits(3, 0, 2);
+
+    assertTrue(admission.tryAdmit());
+    assertTrue(admission.tryAdmit());
+    assertFalse(admission.tryAdmit());
+    admission.handshakeEnded();
+    assertTrue(admission.tryAdmit());
+    admission.handshakeEnded();
+    assertFalse(admission.tryAdmit());
+    admission.sessionEnded();
+    assertTrue(admission.tryAdmit());
+
+    assertEquals(3, admission.getSessions());
+    assertEquals(2, admission.getRejected());
+  }
+
+  @Test
+  public void shouldShedAboveWatermark() {
+    final AdmissionControl admission = new AdmissionControl();
+    admission.setLimits(0, 1, 0);
+
+    assertTrue(admission.tryAdmit());
+    assertTrue(admission.handshakeStarted(System.nanoTime()));
+    assertTrue(admission.tryAdmit());
+    assertFalse(admission.handshakeStarted(System.nanoTime()));
+    assertEquals(1, admission.getShed());
+  }
+
+  @Test
+  public void shouldShedOnlyAfterDelayPersists() throws Exception {
+    final AdmissionControl admission = new AdmissionControl();
+    admission.setShedding(10, 50);
+    final long late = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(100);
+
+    // A single late handshake is tolerated.
+    assertTrue(admission.handshakeStarted(late));
+    Thread.sleep(60);
+    assertFalse(admission.handshakeStarted(late));
+    // Back below the target stops shedding.
+    assertTrue(admission.handshakeStarted(System.nanoTime()));
+    assertTrue(admission.handshakeStarted(late));
+  }
+
+  @Test
+  public void shouldReportHandshakeTimes() {
+    final AdmissionControl admission = new AdmissionControl();
+    assertEquals(0, admission.getHandshakeTime(50));
+
+    final long now = System.nanoTime();
+    for (int i = 0; i < 99; i++) {
+      admission.requestRead(now);
+    }
+    admission.requestRead(now - TimeUnit.SECONDS.toNanos(10));
+    admission.handshakeTimedOut();
+
+    assertTrue(admission.getHandshakeTime(50) < TimeUnit.SECONDS.toMicros(1));
+    final long slowest = admission.getHandshakeTime(100);
+    assertTrue(slowest >= TimeUnit.SECONDS.toMicros(10));
+    assertTrue(slowest <= TimeUnit.SECONDS.toMicros(12));
+    assertEquals(1, admission.getHandshakeTimeouts());
+  }
+}
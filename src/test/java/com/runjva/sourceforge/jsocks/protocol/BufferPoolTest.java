@@ -0,0 +1,39 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+
+  @Test
+  public void shouldKeepBuffersUpToMaxBytes() {
+    final BufferPool pool = new BufferPool(8192);
+    final RelayMemoryBudget budget = new RelayMemoryBudget(1024 * 1024, 1024, 8192);
+    final ByteBuffer[] buffers = { pool.acquire(65536), pool.acquire(4096), pool.acquire(4096), pool.acquire(4096) };
+    for (final ByteBuffer buffer : buffers) {
+      pool.release(buffer, budget);
+    }
+
+    assertEquals(2, pool.getPooled());
+    assertEquals(8192, budget.getPooled());
+    pool.acquire(4096);
+    assertEquals(4096, budget.getPooled());
+  }
+
+  @Test
+  public void shouldChargeTheLatestBudget() {
+    final BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_BYTES);
+    final RelayMemoryBudget replaced = new RelayMemoryBudget(1024 * 1024, 1024, 8192);
+    final RelayMemoryBudget current = new RelayMemoryBudget(4096, 1024, 8192);
+    pool.release(pool.acquire(4096), replaced);
+    pool.release(pool.acquire(1024), current);
+
+    assertEquals(0, replaced.getPooled());
+    assertEquals(4096, current.getPooled());
+    assertTrue(current.isExhausted());
+  }
+}
@@ -0,0 +1,196 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.runjva.sourceforge.jsocks.server.UserPasswordAuthenticator;
+import com.runjva.sourceforge.jsocks.server.UserValidation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeficitRoundRobinTest {
+  private static final int TUNNELS_PER_CLASS = 4;
+
+  @Test
+  public void shouldShareTunnelsByWeight() throws Exception {
+    final ServerSocket sink = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    startSink(sink);
+    final ProxyServer proxyServer = new ProxyServer(new UserPasswordAuthenticator(new UserValidation() {
+      @Override
+      public boolean isUserValid(final String username, final String password, final Socket connection) {
+        return true;
+      }
+    }));
+    proxyServer.setEngine(ProxyEngine.SELECTOR);
+    proxyServer.setEventLoops(1);
+    proxyServer.setSchedulingClass("premium", 3);
+    proxyServer.setUserSchedulingClass("gold", "premium");
+    startProxy(proxyServer);
+    final List<Socket> sockets = new ArrayList<Socket>();
+    try {
+      assertEquals(ProxyStatus.STARTED, proxyServer.awaitStartup());
+      // A writer and a sink thread per tunnel against one loop thread, so
+      // the loop is the bottleneck and the tunnels always have data.
+      for (int i = 0; i < TUNNELS_PER_CLASS; i++) {
+        sockets.add(connect(proxyServer, "gold", sink));
+        sockets.add(connect(proxyServer, "bronze", sink));
+      }
+      for (final Socket socket : sockets) {
+        startWriter(socket);
+      }
+
+      final long[] start = relayUntil(proxyServer, 4L << 20);
+      final long[] end = relayUntil(proxyServer, 68L << 20);
+      final double ratio = (double) (end[0] - start[0]) / (end[1] - start[1]);
+      assertTrue("Ratio " + ratio, ratio > 2.5 && ratio < 3.5);
+    }
+    finally {
+      for (final Socket socket : sockets) {
+        socket.close();
+      }
+      proxyServer.stop();
+      sink.close();
+    }
+  }
+
+  @Test
+  public void shouldDrainIdleQueues() {
+    final DeficitRoundRobin scheduler = new DeficitRoundRobin();
+    final SchedulingClass schedulingClass = new SchedulingClass("default", 1);
+    scheduler.enqueue(new Once(schedulingClass, 100000));
+    scheduler.enqueue(new Once(schedulingClass, 100000));
+
+    scheduler.run();
+    assertTrue(scheduler.isEmpty());
+    assertEquals(200000, schedulingClass.getBytes());
+  }
+
+  @Test
+  public void shouldShareTheFlowOfAReplacedClass() {
+    final DeficitRoundRobin scheduler = new DeficitRoundRobin();
+    final SchedulingClass replaced = new SchedulingClass("gold", 1);
+    final SchedulingClass current = new SchedulingClass("gold", 3);
+    scheduler.enqueue(new Once(replaced, 100));
+    scheduler.enqueue(new Once(current, 200));
+
+    scheduler.run();
+    assertTrue(scheduler.isEmpty());
+    assertEquals(100, replaced.getBytes());
+    assertEquals(200, current.getBytes());
+  }
+
+  private static class Once extends DeficitRoundRobin.Task {
+    private final SchedulingClass schedulingClass;
+    private final long bytes;
+
+    Once(final SchedulingClass schedulingClass, final long bytes) {
+      this.schedulingClass = schedulingClass;
+      this.bytes = bytes;
+    }
+
+    @Override
+    SchedulingClass getSchedulingClass() {
+      return schedulingClass;
+    }
+
+    @Override
+    long run() {
+      return bytes;
+    }
+  }
+
+  /**
+   * @return The bytes scheduled for the premium and the default class, once
+   *         the total reached the given bytes.
+   */
+  private static long[] relayUntil(final ProxyServer proxyServer, final long bytes) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 30000;
+    while (true) {
+      final Map<String, Long> scheduled = proxyServer.getStatistics().getScheduledBytes();
+      final long premium = scheduled.get("premium");
+      final long bulk = scheduled.get(FairShare.DEFAULT_CLASS);
+      if (premium + bulk >= bytes) {
+        return new long[] { premium, bulk };
+      }
+      assertTrue("Relayed only " + (premium + bulk), System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private static Socket connect(final ProxyServer proxyServer, final String user, final ServerSocket sink)
+      throws IOException {
+    final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    proxy.setAuthenticationMethod(UserPasswordAuthentication.METHOD_ID,
+        new UserPasswordAuthentication(user, "secret"));
+    return new SocksSocket(proxy, InetAddress.getLoopbackAddress(), sink.getLocalPort());
+  }
+
+  private static void startWriter(final Socket socket) {
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        final byte[] data = new byte[65536];
+        try {
+          final OutputStream out = socket.getOutputStream();
+          while (true) {
+            out.write(data);
+          }
+        }
+        catch (final IOException e) {
+          // Closed by the test.
+        }
+      }
+    }).start();
+  }
+
+  private static void startSink(final ServerSocket serverSocket) {
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            final Socket socket = serverSocket.accept();
+            new Thread(new Runnable() {
+              @Override
+              public void run() {
+                final byte[] buf = new byte[65536];
+                try {
+                  final InputStream in = socket.getInputStream();
+                  while (in.read(buf) >= 0) {
+                    // Discard.
+                  }
+                  socket.close();
+                }
+                catch (final IOException e) {
+                  // Closed by the test.
+                }
+              }
+            }).start();
+          }
+        }
+        catch (final IOException e) {
+          // Closed by the test.
+        }
+      }
+    }).start();
+  }
+
+  private static void startProxy(final ProxyServer proxyServer) {
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        proxyServer.start(0, 50, InetAddress.getLoopbackAddress());
+      }
+    }).start();
+  }
+}
@@ -6,6 +6,7 @@ import com.runjva.sourceforge.jsocks.dns.DnsResolverFactory;
 import com.runjva.sourceforge.jsocks.server.IdentAuthenticator;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class DnsProxyServerTest {
@@ -43,6 +44,15 @@ public class DnsProxyServerTest {
     assertEquals(ProxyStatus.STOPED, proxyServer.getProxyStatus());
   }
 
+  @Test
+  public void shouldNotReportMetricsOfTheSelectorEngine() {
+    final RelayStatistics statistics = getDnsProxyServerInstance().getStatistics();
+    assertFalse(statistics.hasMemoryBudget());
+    assertEquals(0, statistics.getMaxBufferedBytes());
+    assertTrue(statistics.getQueueingDelays().isEmpty());
+    assertTrue(statistics.getScheduledBytes().isEmpty());
+  }
+
   @Test
   public void shouldBeStartedAfterStart() {
     DnsProxyServer proxyServer = getDnsProxyServerInstance();
@@ -0,0 +1,75 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HappyEyeballsConnectorTest {
+
+  @Test
+  public void shouldFallBackToNextAddress() throws Exception {
+    final InetAddress listening = InetAddress.getByName("127.0.0.1");
+    final InetAddress refusing = InetAddress.getByName("127.0.0.2");
+    final RttTable rtts = new RttTable(16);
+    final HappyEyeballsConnector connector = new HappyEyeballsConnector(5000, 250, rtts);
+    final ServerSocket serverSocket = new ServerSocket();
+    try {
+      serverSocket.bind(new InetSocketAddress(listening, 0));
+      final SocketChannel channel =
+          connector.connect(new InetAddress[] { refusing, listening }, serverSocket.getLocalPort());
+      try {
+        assertTrue(channel.isConnected());
+        assertTrue(channel.isBlocking());
+        assertEquals(listening, channel.socket().getInetAddress());
+      }
+      finally {
+        channel.close();
+      }
+    }
+    finally {
+      serverSocket.close();
+    }
+    // The refused address now has a penalty and comes last.
+    assertTrue(rtts.get(refusing) > rtts.get(listening));
+    assertArrayEquals(new InetAddress[] { listening, refusing },
+        connector.order(new InetAddress[] { refusing, listening }));
+  }
+
+  @Test
+  public void shouldOrderFailedAddressLast() throws Exception {
+    final InetAddress v6 = InetAddress.getByName("2001:db8::1");
+    final InetAddress v4 = InetAddress.getByName("192.0.2.1");
+    final InetAddress failed = InetAddress.getByName("192.0.2.2");
+    final RttTable rtts = new RttTable(16);
+    final HappyEyeballsConnector connector = new HappyEyeballsConnector(0, 250, rtts);
+    // Fast so far, the failure does not move the smoothed time much.
+    rtts.record(failed, 100);
+    rtts.failed(failed, 10000000);
+
+    assertArrayEquals(new InetAddress[] { v6, v4, failed },
+        connector.order(new InetAddress[] { failed, v6, v4 }));
+
+    rtts.record(failed, 100);
+    assertArrayEquals(new InetAddress[] { failed, v6, v4 },
+        connector.order(new InetAddress[] { failed, v6, v4 }));
+  }
+
+  @Test
+  public void shouldInterleaveAddressFamilies() throws Exception {
+    final InetAddress v6a = InetAddress.getByName("2001:db8::1");
+    final InetAddress v6b = InetAddress.getByName("2001:db8::2");
+    final InetAddress v4a = InetAddress.getByName("192.0.2.1");
+    final InetAddress v4b = InetAddress.getByName("192.0.2.2");
+    final HappyEyeballsConnector connector = new HappyEyeballsConnector(0, 250, new RttTable(16));
+
+    assertArrayEquals(new InetAddress[] { v6a, v4a, v6b, v4b },
+        connector.order(new InetAddress[] { v6a, v6b, v4a, v4b }));
+  }
+}
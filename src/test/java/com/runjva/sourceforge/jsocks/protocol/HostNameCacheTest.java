@@ -0,0 +1,73 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HostNameCacheTest {
+
+  @Test
+  public void shouldResolveInBackground() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger lookups = new AtomicInteger();
+    final HostNameCache names = new HostNameCache(new HostNameResolver() {
+      @Override
+      public String getHostName(final InetAddress address) throws IOException {
+        lookups.incrementAndGet();
+        try {
+          release.await();
+        }
+        catch (final InterruptedException e) {
+          throw new IOException(e);
+        }
+        return "client.example";
+      }
+    }, 16, 60000, 1, 1);
+    final InetAddress address = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+
+    names.resolve(address);
+    names.resolve(address);
+    assertNull(names.getIfResolved(address));
+
+    release.countDown();
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (null == names.getIfResolved(address) && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals("client.example", names.getIfResolved(address));
+    names.resolve(address);
+    assertEquals(1, lookups.get());
+  }
+
+  @Test
+  public void shouldDropLookupsWhenQueueIsFull() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final HostNameCache names = new HostNameCache(new HostNameResolver() {
+      @Override
+      public String getHostName(final InetAddress address) throws IOException {
+        try {
+          release.await();
+        }
+        catch (final InterruptedException e) {
+          throw new IOException(e);
+        }
+        return address.getHostAddress();
+      }
+    }, 16, 60000, 1, 1);
+
+    final long start = System.nanoTime();
+    for (int i = 1; i <= 10; i++) {
+      names.resolve(InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i }));
+    }
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    release.countDown();
+  }
+}
@@ -0,0 +1,88 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Allocations per SOCKS5 handshake of the stream messages and of the
+ * {@link MessageView}, for manual testing.
+ * <p/>
+ * Usage: MessageAllocationBenchmark [handshakes]
+ * <p/>
+ * Decodes a greeting and a CONNECT request to the loopback address and encodes
+ * the reply, over and over, and reports the bytes allocated and the time per
+ * handshake. Needs a JVM whose thread MXBean reports allocated bytes, like
+ * HotSpot.
+ */
+public class MessageAllocationBenchmark {
+  private static final Logger log = LoggerFactory.getLogger(MessageAllocationBenchmark.class);
+
+  public static void main(String[] args) throws Exception {
+    final int handshakes = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    final InetAddress target = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+    final ByteBuffer request = ByteBuffer.allocate(64);
+    MessageEncoder.putGreeting(request, new byte[] { 0 }, 1);
+    MessageEncoder.putSocks5(request, SocksProxyBase.SOCKS_CMD_CONNECT, Socks5Message.SOCKS_ATYP_IPV4,
+        target.getAddress(), 4, 80);
+    request.flip();
+    final byte[] bytes = new byte[request.remaining()];
+    request.get(bytes);
+
+    for (int round = 0; round < 2; round++) {
+      // The first round warms up.
+      measure("streams", handshakes, new Runnable() {
+        @Override
+        public void run() {
+          try {
+            final ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+            in.skip(3);
+            final Socks5Message msg = new Socks5Message(in, false);
+            new Socks5Message(0, msg.ip, msg.port).write(new ByteArrayOutputStream(16));
+          }
+          catch (final IOException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      });
+      final MessageView view = new MessageView();
+      final ByteBuffer in = ByteBuffer.wrap(bytes);
+      final ByteBuffer out = ByteBuffer.allocate(64);
+      measure("view", handshakes, new Runnable() {
+        @Override
+        public void run() {
+          try {
+            in.clear();
+            out.clear();
+            view.parseGreeting(in);
+            view.parseSocks5(in);
+            MessageEncoder.putSocks5(out, 0, view);
+          }
+          catch (final SocksException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      });
+    }
+  }
+
+  private static void measure(final String name, final int handshakes, final Runnable handshake) {
+    final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long thread = Thread.currentThread().getId();
+    final long allocated = threads.getThreadAllocatedBytes(thread);
+    final long start = System.nanoTime();
+    for (int i = 0; i < handshakes; i++) {
+      handshake.run();
+    }
+    final long nanos = System.nanoTime() - start;
+    log.info("{}: {} bytes allocated and {} ns per handshake", name,
+        (threads.getThreadAllocatedBytes(thread) - allocated) / handshakes, nanos / handshakes);
+  }
+}
@@ -0,0 +1,113 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageViewTest {
+
+  @Test
+  public void shouldParseSocks5RequestIncrementally() throws Exception {
+    final byte[] host = "example.org".getBytes(StandardCharsets.US_ASCII);
+    final ByteBuffer encoded = ByteBuffer.allocate(64);
+    MessageEncoder.putSocks5(encoded, SocksProxyBase.SOCKS_CMD_CONNECT, Socks5Message.SOCKS_ATYP_DOMAINNAME,
+        host, host.length, 443);
+    encoded.flip();
+
+    final MessageView view = new MessageView();
+    final ByteBuffer in = ByteBuffer.allocate(64);
+    while (encoded.remaining() > 1) {
+      in.put(encoded.get());
+      in.flip();
+      assertFalse(view.parseSocks5(in));
+      assertEquals(0, in.position());
+      in.position(in.limit());
+      in.limit(in.capacity());
+    }
+    in.put(encoded.get());
+    in.flip();
+    assertTrue(view.parseSocks5(in));
+    assertFalse(in.hasRemaining());
+
+    assertEquals(SocksProxyBase.SOCKS_CMD_CONNECT, view.getCommand());
+    assertEquals(Socks5Message.SOCKS_ATYP_DOMAINNAME, view.getAddressType());
+    assertEquals("example.org", view.getHost());
+    assertNull(view.toInetAddress());
+    assertEquals(443, view.getPort());
+  }
+
+  @Test
+  public void shouldMatchStreamMessages() throws Exception {
+    final InetAddress ip = InetAddress.getByAddress(new byte[] { 10, 1, 2, 3 });
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    new Socks5Message(0, ip, 1080).write(written);
+
+    final ByteBuffer encoded = ByteBuffer.allocate(64);
+    MessageEncoder.putSocks5(encoded, 0, Socks5Message.SOCKS_ATYP_IPV4, ip.getAddress(), 4, 1080);
+    encoded.flip();
+    assertEquals(ByteBuffer.wrap(written.toByteArray()), encoded);
+
+    final MessageView view = new MessageView();
+    assertTrue(view.parseSocks5(encoded));
+    assertEquals(ip, view.toInetAddress());
+
+    final Socks5Message read = new Socks5Message(new ByteArrayInputStream(written.toByteArray()), true);
+    assertEquals(read.host, view.getHost());
+    assertEquals(read.port, view.getPort());
+  }
+
+  @Test
+  public void shouldParseGreetingAuthenticationAndSocks4() throws Exception {
+    final byte[] user = "joe".getBytes(StandardCharsets.US_ASCII);
+    final byte[] password = "secret".getBytes(StandardCharsets.US_ASCII);
+    final byte[] host = "example.org".getBytes(StandardCharsets.US_ASCII);
+    final ByteBuffer buf = ByteBuffer.allocate(128);
+    MessageEncoder.putGreeting(buf, new byte[] { 0, 2 }, 2);
+    MessageEncoder.putAuthentication(buf, user, user.length, password, password.length);
+    MessageEncoder.putSocks4Request(buf, Socks4Message.REQUEST_CONNECT, null, 80, user, user.length, host,
+        host.length);
+    buf.flip();
+
+    final MessageView view = new MessageView();
+    assertEquals(Socks5Message.SOCKS_VERSION, MessageView.peekVersion(buf));
+    assertTrue(view.parseGreeting(buf));
+    assertTrue(view.hasMethod(2));
+    assertFalse(view.hasMethod(1));
+
+    assertTrue(view.parseAuthentication(buf));
+    assertEquals("joe", view.getUser());
+    assertEquals("secret", view.getPassword());
+
+    assertEquals(Socks4Message.SOCKS_VERSION, MessageView.peekVersion(buf));
+    assertTrue(view.parseSocks4Request(buf));
+    assertEquals("joe", view.getUser());
+    assertEquals("example.org", view.getHost());
+    assertEquals(80, view.getPort());
+    assertFalse(buf.hasRemaining());
+  }
+
+  @Test
+  public void shouldReplyWithNumericAddress() throws Exception {
+    final InetAddress ip = InetAddress.getByAddress(new byte[] { 32, 1, 13, (byte) 184, 0, 0, 0, 0, 0, 0, 0, 0,
+        0, 0, 0, 1 });
+    final Socks5Message request = new Socks5Message(SocksProxyBase.SOCKS_CMD_CONNECT, "example.org", 80);
+    final ProxyMessage reply = ProxyServerRunnable.successReply(request, ip, 1080);
+    assertNull(reply.host);
+
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    reply.write(written);
+    final ProxyMessage read = new Socks5Message(new ByteArrayInputStream(written.toByteArray()), true);
+    assertEquals("2001:db8:0:0:0:0:0:1", read.host);
+    assertEquals(read.host, reply.getHost());
+    assertEquals(1080, read.port);
+  }
+}
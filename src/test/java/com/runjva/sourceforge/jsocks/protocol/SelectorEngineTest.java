@@ -0,0 +1,497 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.runjva.sourceforge.jsocks.server.NonBlockingUserValidation;
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticatorNone;
+import com.runjva.sourceforge.jsocks.server.UserPasswordAuthenticator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SelectorEngineTest {
+
+  private ServerSocket echoServer;
+  private ProxyServer proxyServer;
+
+  @Before
+  public void setUp() throws Exception {
+    echoServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    startEcho(echoServer);
+
+    proxyServer = new ProxyServer(new ServerAuthenticatorNone(null, null, null));
+    proxyServer.setEngine(ProxyEngine.SELECTOR);
+    proxyServer.setEventLoops(2);
+    proxyServer.setAcceptors(2);
+    proxyServer.setLoadBalancing(LoadBalancing.LEAST_LOADED);
+    startProxy(proxyServer);
+    assertEquals(ProxyStatus.STARTED, proxyServer.awaitStartup());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    proxyServer.stop();
+    echoServer.close();
+  }
+
+  @Test
+  public void shouldRelaySocks5Connect() throws Exception {
+    final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    assertEcho(new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort()));
+  }
+
+  @Test
+  public void shouldRelaySocks4Connect() throws Exception {
+    final Socks4Proxy proxy = new Socks4Proxy(InetAddress.getLoopbackAddress(), proxyServer.getPort(), "user");
+    assertEcho(new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort()));
+  }
+
+  @Test
+  public void shouldRelayManyTunnels() throws Exception {
+    final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    final Socket[] sockets = new Socket[20];
+    for (int i = 0; i < sockets.length; i++) {
+      sockets[i] = new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort());
+    }
+    for (final Socket socket : sockets) {
+      assertEcho(socket);
+    }
+  }
+
+  @Test
+  public void shouldPropagateHalfClose() throws Exception {
+    final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    final Socket socket = new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort());
+    try {
+      final byte[] data = new byte[100000];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) i;
+      }
+      socket.getOutputStream().write(data);
+      socket.shutdownOutput();
+
+      // The echo server sees the end of stream only after all data, and still gets to answer.
+      final ByteArrayOutputStream echo = new ByteArrayOutputStream();
+      final InputStream in = socket.getInputStream();
+      final byte[] buf = new byte[4096];
+      int len;
+      while ((len = in.read(buf)) >= 0) {
+        echo.write(buf, 0, len);
+      }
+      assertArrayEquals(data, echo.toByteArray());
+    }
+    finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void shouldCloseIdleTunnel() throws Exception {
+    proxyServer.setIdleTimeout(200);
+    final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    final Socket socket = new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort());
+    try {
+      socket.setSoTimeout(5000);
+      assertEquals(-1, socket.getInputStream().read());
+    }
+    finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void shouldResetSilentClient() throws Exception {
+    proxyServer.setHandshakeTimeout(200);
+    final Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    try {
+      socket.setSoTimeout(5000);
+      // Sends nothing, the proxy resets the connection after the deadline.
+      socket.getInputStream().read();
+    }
+    catch (final IOException e) {
+      // Connection reset
+    }
+    finally {
+      socket.close();
+    }
+    assertEquals(1, proxyServer.getStatistics().getHandshakeTimeouts());
+  }
+
+  @Test
+  public void shouldKeepSettingsOfRunningSessions() throws Exception {
+    final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    final Socket running = new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort());
+    try {
+      proxyServer.reconfigure(new Runnable() {
+        @Override
+        public void run() {
+          proxyServer.setIdleTimeout(200);
+          proxyServer.setAcceptTimeout(200);
+        }
+      });
+      final Socket started = new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort());
+      try {
+        started.setSoTimeout(5000);
+        assertEquals(-1, started.getInputStream().read());
+      }
+      finally {
+        started.close();
+      }
+      assertEcho(running);
+    }
+    finally {
+      running.close();
+    }
+  }
+
+  @Test
+  public void shouldReleaseBufferSizesOnClose() throws Exception {
+    final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    assertEcho(new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort()));
+
+    final RelayStatistics statistics = proxyServer.getStatistics();
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (sum(statistics.getBufferSizeCounts()) > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, sum(statistics.getBufferSizeCounts()));
+    assertEquals(0, statistics.getGrownBufferBytes());
+  }
+
+  @Test
+  public void shouldReleaseMemoryBudgetOnClose() throws Exception {
+    proxyServer.setRelayMemoryLimits(1024 * 1024, 1024, 8192);
+    final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    assertEcho(new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort()));
+
+    final RelayStatistics statistics = proxyServer.getStatistics();
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (statistics.getBufferedBytes() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, statistics.getBufferedBytes());
+    assertTrue(statistics.getPeakBufferedBytes() > 0);
+  }
+
+  @Test
+  public void shouldCountRelayCalls() throws Exception {
+    final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    assertEcho(new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort()));
+
+    final RelayStatistics statistics = proxyServer.getStatistics();
+    assertTrue(statistics.getRelayedBytes() >= 200000);
+    assertTrue(statistics.getReadCalls() > 0);
+    assertTrue(statistics.getWriteCalls() > 0);
+  }
+
+  @Test
+  public void shouldDrainIdleTunnels() throws Exception {
+    final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    final Socket socket = new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort());
+    try {
+      socket.setSoTimeout(5000);
+      socket.getOutputStream().write(1);
+      assertEquals(1, socket.getInputStream().read());
+
+      assertTrue(proxyServer.drain(5000));
+      assertEquals(ProxyStatus.STOPED, proxyServer.getProxyStatus());
+      assertEquals(-1, socket.getInputStream().read());
+    }
+    finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void shouldHandOverAdoptedListener() throws Exception {
+    final ServerSocketChannel listener = ServerSocketChannel.open();
+    try {
+      listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), listener.socket().getLocalPort());
+      for (int generation = 0; generation < 2; generation++) {
+        final ProxyServer server = new ProxyServer(new ServerAuthenticatorNone(null, null, null));
+        server.setEngine(ProxyEngine.SELECTOR);
+        startProxy(server, listener);
+        assertEquals(ProxyStatus.STARTED, server.awaitStartup());
+        assertEcho(new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort()));
+
+        assertTrue(server.drain(5000));
+        assertTrue(listener.isOpen());
+      }
+    }
+    finally {
+      listener.close();
+    }
+  }
+
+  @Test
+  public void shouldServeSeveralListeners() throws Exception {
+    final ProxyServer server = new ProxyServer(new ServerAuthenticatorNone(null, null, null));
+    server.setEngine(ProxyEngine.SELECTOR);
+    final ProxyListener limited = new ProxyListener(0, 50, InetAddress.getLoopbackAddress());
+    limited.setSessionLimits(1, 0, 0);
+    server.addListener(limited);
+    startProxy(server);
+    try {
+      assertEquals(ProxyStatus.STARTED, server.awaitStartup());
+      final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), limited.getPort());
+      final Socket held = new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort());
+      try {
+        try {
+          new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort()).close();
+          fail("Session limit of the listener not applied");
+        }
+        catch (final IOException e) {
+          // Closed right after accept
+        }
+        final Socks5Proxy primary = new Socks5Proxy(InetAddress.getLoopbackAddress(), server.getPort());
+        assertEcho(new SocksSocket(primary, InetAddress.getLoopbackAddress(), echoServer.getLocalPort()));
+        assertEcho(held);
+      }
+      finally {
+        held.close();
+      }
+    }
+    finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void shouldServePipelinedHandshake() throws Exception {
+    final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    proxy.setPipelining(true);
+    assertEcho(new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort()));
+
+    final ProxyServer server = new ProxyServer(new UserPasswordAuthenticator(new NonBlockingUserValidation() {
+      @Override
+      public boolean isUserValid(final String username, final String password, final Socket connection) {
+        return "joe".equals(username) && "secret".equals(password);
+      }
+    }));
+    server.setEngine(ProxyEngine.SELECTOR);
+    startProxy(server);
+    try {
+      assertEquals(ProxyStatus.STARTED, server.awaitStartup());
+      final Socks5Proxy secured = new Socks5Proxy(InetAddress.getLoopbackAddress(), server.getPort());
+      secured.setPipelining(true);
+      secured.setAuthenticationMethod(UserPasswordAuthentication.METHOD_ID,
+          new UserPasswordAuthentication("joe", "secret"));
+      assertEcho(new SocksSocket(secured, InetAddress.getLoopbackAddress(), echoServer.getLocalPort()));
+
+      secured.setAuthenticationMethod(UserPasswordAuthentication.METHOD_ID,
+          new UserPasswordAuthentication("joe", "wrong"));
+      try {
+        new SocksSocket(secured, InetAddress.getLoopbackAddress(), echoServer.getLocalPort()).close();
+        fail("Wrong password accepted");
+      }
+      catch (final SocksException e) {
+        assertEquals(SocksProxyBase.SOCKS_AUTH_FAILURE, e.getErrorCode());
+      }
+    }
+    finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void shouldForwardEarlyData() throws Exception {
+    final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    proxy.setPipelining(true);
+    final byte[] hello = "hello".getBytes("US-ASCII");
+    final Socket socket = new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort(), hello);
+    try {
+      socket.setSoTimeout(5000);
+      final byte[] echo = new byte[hello.length];
+      int read = 0;
+      while (read < echo.length) {
+        read += socket.getInputStream().read(echo, read, echo.length - read);
+      }
+      assertArrayEquals(hello, echo);
+      assertEcho(socket);
+    }
+    finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void shouldResumeHandshakeSentByteByByte() throws Exception {
+    final int port = echoServer.getLocalPort();
+    // SOCKS4a, the session resolves the host, the event loop never does.
+    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    request.write(new byte[] { 4, 1, (byte) (port >> 8), (byte) port, 0, 0, 0, 1 });
+    request.write("user".getBytes("US-ASCII"));
+    request.write(0);
+    request.write(InetAddress.getLoopbackAddress().getHostAddress().getBytes("US-ASCII"));
+    request.write(0);
+
+    final Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    socket.setTcpNoDelay(true);
+    socket.setSoTimeout(5000);
+    final OutputStream out = socket.getOutputStream();
+    for (final byte b : request.toByteArray()) {
+      out.write(b);
+      Thread.sleep(5);
+    }
+    final byte[] reply = new byte[8];
+    int read = 0;
+    while (read < reply.length) {
+      read += socket.getInputStream().read(reply, read, reply.length - read);
+    }
+    assertEquals(Socks4Message.REPLY_OK, reply[1]);
+    assertEcho(socket);
+  }
+
+  @Test
+  public void shouldRunTasksPostedAfterTheLoopStopped() throws Exception {
+    final RelayEventLoop loop = new RelayEventLoop(0);
+    final Thread thread = new Thread(loop);
+    thread.start();
+    loop.shutdown();
+    thread.join();
+
+    final boolean[] ran = new boolean[1];
+    loop.execute(new Runnable() {
+      @Override
+      public void run() {
+        ran[0] = true;
+      }
+    });
+    assertTrue(ran[0]);
+  }
+
+  @Test
+  public void shouldRelayThroughStages() throws Exception {
+    final ProxyServer staged = new ProxyServer(new ServerAuthenticatorNone(null, null, null));
+    staged.setEngine(ProxyEngine.SELECTOR);
+    staged.setStages(1, 1, 1, 8);
+    startProxy(staged);
+    try {
+      assertEquals(ProxyStatus.STARTED, staged.awaitStartup());
+      final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), staged.getPort());
+      proxy.resolveAddrLocally(false);
+      assertEcho(new SocksSocket(proxy, "localhost", echoServer.getLocalPort()));
+
+      final RelayStatistics statistics = staged.getStatistics();
+      assertEquals(3, statistics.getStageServiceTimes().size());
+      assertEquals(Long.valueOf(0), statistics.getStageRejections().get(SessionStages.RESOLVE));
+    }
+    finally {
+      staged.stop();
+    }
+  }
+
+  @Test
+  public void shouldShapeBandwidth() throws Exception {
+    // 200000 bytes echoed through both directions at 200000 bytes per second.
+    proxyServer.setConnectionBandwidthLimit(200000, 16384);
+    final Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), proxyServer.getPort());
+    final long start = System.currentTimeMillis();
+    assertEcho(new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer.getLocalPort()));
+    assertTrue(System.currentTimeMillis() - start >= 800);
+  }
+
+  private static long sum(final long[] values) {
+    long sum = 0;
+    for (final long value : values) {
+      sum += value;
+    }
+    return sum;
+  }
+
+  private void assertEcho(final Socket socket) throws IOException {
+    try {
+      final byte[] data = new byte[100000];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) i;
+      }
+      final OutputStream out = socket.getOutputStream();
+      final InputStream in = socket.getInputStream();
+      out.write(data);
+      out.flush();
+
+      final byte[] echo = new byte[data.length];
+      int read = 0;
+      while (read < echo.length) {
+        final int len = in.read(echo, read, echo.length - read);
+        if (len < 0) {
+          break;
+        }
+        read += len;
+      }
+      assertArrayEquals(data, echo);
+    }
+    finally {
+      socket.close();
+    }
+  }
+
+  private void startEcho(final ServerSocket serverSocket) {
+    new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            final Socket socket = serverSocket.accept();
+            new Thread(new Runnable() {
+
+              @Override
+              public void run() {
+                try {
+                  final InputStream in = socket.getInputStream();
+                  final OutputStream out = socket.getOutputStream();
+                  final byte[] buf = new byte[4096];
+                  int len;
+                  while ((len = in.read(buf)) >= 0) {
+                    out.write(buf, 0, len);
+                  }
+                  socket.close();
+                }
+                catch (final IOException e) {
+                }
+              }
+            }).start();
+          }
+        }
+        catch (final IOException e) {
+        }
+      }
+    }).start();
+  }
+
+  private void startProxy(final ProxyServer proxyServer, final ServerSocketChannel listener) {
+    new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        proxyServer.start(listener);
+      }
+    }).start();
+  }
+
+  private void startProxy(final ProxyServer proxyServer) {
+    new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        proxyServer.start(0, 50, InetAddress.getLoopbackAddress());
+      }
+    }).start();
+  }
+}
@@ -0,0 +1,77 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+  private TimingWheel timingWheel;
+
+  @Before
+  public void setUp() {
+    // Small wheel, so deadlines span several turns.
+    timingWheel = new TimingWheel(10, 8);
+    timingWheel.start("test-timer");
+  }
+
+  @After
+  public void tearDown() {
+    timingWheel.stop();
+  }
+
+  @Test
+  public void shouldExpireAfterDelay() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final long start = System.currentTimeMillis();
+    final TimingWheel.Timeout timeout = timingWheel.schedule(200, countDown(latch));
+
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertTrue(System.currentTimeMillis() - start >= 190);
+    assertTrue(timeout.isExpired());
+  }
+
+  @Test
+  public void shouldPostponeTouchedTimeout() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final TimingWheel.Timeout timeout = timingWheel.schedule(100, countDown(latch));
+    for (int i = 0; i < 10; i++) {
+      Thread.sleep(30);
+      timeout.touch();
+    }
+    assertFalse(timeout.isExpired());
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void shouldNotExpireCancelledTimeout() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final TimingWheel.Timeout timeout = timingWheel.schedule(50, countDown(latch));
+    timeout.cancel();
+    assertFalse(latch.await(300, TimeUnit.MILLISECONDS));
+    assertFalse(timeout.isExpired());
+  }
+
+  @Test
+  public void shouldNeverExpireWithoutDelay() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final TimingWheel.Timeout timeout = timingWheel.schedule(0, countDown(latch));
+    timeout.touch();
+    assertFalse(latch.await(200, TimeUnit.MILLISECONDS));
+  }
+
+  private static Runnable countDown(final CountDownLatch latch) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    };
+  }
+}
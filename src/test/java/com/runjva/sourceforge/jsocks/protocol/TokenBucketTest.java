@@ -0,0 +1,36 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+  @Test
+  public void shouldRefillAtRate() {
+    final TokenBucket bucket = new TokenBucket(1000, 500);
+    final long now = System.nanoTime();
+    assertEquals(500, bucket.available(now));
+
+    bucket.take(500, now);
+    assertEquals(0, bucket.available(now));
+    assertEquals(100, bucket.available(now + TimeUnit.MILLISECONDS.toNanos(100)), 1);
+    assertEquals(500, bucket.available(now + TimeUnit.SECONDS.toNanos(1)));
+  }
+
+  @Test
+  public void shouldWaitForDebt() {
+    final TokenBucket bucket = new TokenBucket(1000, 500);
+    final long now = System.nanoTime();
+    bucket.take(1500, now);
+
+    assertEquals(0, bucket.available(now));
+    final long delay = bucket.delay(100, now);
+    assertTrue(delay >= TimeUnit.MILLISECONDS.toNanos(1099));
+    assertTrue(delay <= TimeUnit.MILLISECONDS.toNanos(1101));
+    assertEquals(100, bucket.available(now + delay), 1);
+  }
+}